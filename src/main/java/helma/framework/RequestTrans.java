@@ -51,10 +51,16 @@ public class RequestTrans implements Serializable {
     public final static String EXTERNAL = "EXTERNAL";
     public final static String INTERNAL = "INTERNAL";
 
+    // suffix added to the ETag of gzip encoded responses
+    public final static String GZIP_ETAG_SUFFIX = "-gzip";
+
     // the servlet request and response, may be null
     final HttpServletRequest request;
     final HttpServletResponse response;
 
+    // callback used to start a streamed response, may be null
+    private transient ResponseTrans.StreamHandler streamHandler;
+
     // the path info of the request
     private final String path;
 
@@ -362,6 +368,22 @@ public class RequestTrans implements Serializable {
         return response;
     }
 
+    /**
+     * Set the callback used to send the headers of a streamed response.
+     * This is set by the servlet client before the request is executed.
+     */
+    public void setStreamHandler(ResponseTrans.StreamHandler handler) {
+        streamHandler = handler;
+    }
+
+    /**
+     * Returns the callback used to send the headers of a streamed response,
+     * or null if the response can't be streamed.
+     */
+    public ResponseTrans.StreamHandler getStreamHandler() {
+        return streamHandler;
+    }
+
     /**
      *  The hash code is computed from the session id if available. This is used to
      *  detect multiple identic requests.
@@ -524,12 +546,59 @@ public class RequestTrans implements Serializable {
         if (etagHeader.indexOf(",") > -1) {
             StringTokenizer st = new StringTokenizer(etagHeader, ", \r\n");
             while (st.hasMoreTokens())
-                etags.add(st.nextToken());
+                etags.add(stripEncoding(st.nextToken()));
         } else {
-            etags.add(etagHeader);
+            etags.add(stripEncoding(etagHeader));
         }
     }
 
+    /**
+     * Remove the suffix added to the ETag of gzip encoded responses, so
+     * the ETag matches the one of the response's plain content.
+     */
+    private String stripEncoding(String etag) {
+        if (etag.endsWith(GZIP_ETAG_SUFFIX + "\"")) {
+            return etag.substring(0, etag.length() - GZIP_ETAG_SUFFIX.length() - 1) + "\"";
+        }
+        return etag;
+    }
+
+    /**
+     * Check if the client accepts gzip encoded responses.
+     *
+     * @return true if the Accept-Encoding header allows gzip
+     */
+    public boolean acceptsGzip() {
+        String header = getHeader("Accept-Encoding");
+        if (header == null) {
+            return false;
+        }
+        StringTokenizer st = new StringTokenizer(header, ",");
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken().trim();
+            String coding = token;
+            int semicolon = token.indexOf(';');
+            if (semicolon > -1) {
+                coding = token.substring(0, semicolon).trim();
+                // an explicit q=0 means not acceptable
+                String param = token.substring(semicolon + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        if (Double.parseDouble(param.substring(2).trim()) == 0) {
+                            continue;
+                        }
+                    } catch (NumberFormatException ignore) {
+                        // treat as acceptable
+                    }
+                }
+            }
+            if ("gzip".equalsIgnoreCase(coding) || "*".equals(coding)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      *
      *
@@ -18,8 +18,10 @@ package helma.framework;
 
 import helma.objectmodel.db.Transactor;
 import helma.scripting.ScriptingException;
+import helma.util.StringUtils;
 
 import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.PrintWriter;
@@ -323,6 +325,47 @@ public class ResponseBean implements Serializable {
         res.setCacheable(cache);
     }
 
+    /**
+     * Get the number of seconds the response is kept in the application's
+     * response cache
+     *
+     * @return the time to live in seconds, 0 if the response is not cached
+     */
+    public int getCacheTTL() {
+        return res.getCacheTTL();
+    }
+
+    /**
+     * Set the number of seconds the response is kept in the application's
+     * response cache. Only responses to anonymous GET and HEAD requests
+     * that don't set cookies are cached.
+     *
+     * @param seconds the time to live in seconds, 0 to not cache the response
+     */
+    public void setCacheTTL(int seconds) {
+        res.setCacheTTL(seconds);
+    }
+
+    /**
+     * Get the names of the prototypes whose data the cached response depends on
+     *
+     * @return comma separated prototype names, or null
+     */
+    public String getCacheDependencies() {
+        String[] deps = res.getCacheDependencies();
+        return deps == null ? null : String.join(", ", deps);
+    }
+
+    /**
+     * Set the names of the prototypes whose data the cached response depends on.
+     * The response is dropped from the cache when data of any of them changes.
+     *
+     * @param prototypes comma separated prototype names
+     */
+    public void setCacheDependencies(String prototypes) {
+        res.setCacheDependencies(StringUtils.split(prototypes, ", "));
+    }
+
     /**
      * Get the current charset/encoding name for the response
      *
@@ -606,7 +649,7 @@ public class ResponseBean implements Serializable {
      * writes will be redirected to this buffer.
      */
     public void push() {
-        res.pushBuffer(null);
+        res.push();
     }
 
     /**
@@ -625,7 +668,7 @@ public class ResponseBean implements Serializable {
      */
     @Deprecated
     public void pushStringBuffer() {
-        res.pushBuffer(null);
+        res.push();
     }
 
     /**
@@ -674,6 +717,38 @@ public class ResponseBean implements Serializable {
        return res.getBuffer().toString();
    }
 
+    /**
+     * Switch to streaming mode, sending the response headers right away
+     * and writing output to the client while it is rendered rather than
+     * after the request has finished. Headers, cookies and the status code
+     * must be set before calling this. Streamed responses have no ETag
+     * and are sent using chunked transfer encoding.
+     *
+     * @return true if the response is streamed, false if streaming is not
+     *         available for this request
+     * @throws IOException if the response headers couldn't be sent
+     */
+    public boolean stream() throws IOException {
+        return res.stream();
+    }
+
+    /**
+     * Check whether the response is streamed to the client.
+     *
+     * @return true if stream() was called for this response
+     */
+    public boolean isStreaming() {
+        return res.isStreaming();
+    }
+
+    /**
+     * Write pending output of a streamed response to the client. Does
+     * nothing if the response is not streamed.
+     */
+    public void flush() {
+        res.flush();
+    }
+
     /**
      * Commit changes made during the course of the current transaction
      * and start a new one
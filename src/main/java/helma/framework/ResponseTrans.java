@@ -23,8 +23,16 @@ import helma.scripting.ScriptingException;
 
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.security.*;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.xmlrpc.XmlRpcResponseProcessor;
@@ -32,12 +40,19 @@ import org.apache.xmlrpc.XmlRpcResponseProcessor;
 /**
  * A Transmitter for a response to the servlet client. Objects of this
  * class are directly exposed to JavaScript as global property res.
+ *
+ * The rendering methods (write, encode, pushBuffer etc.) are not synchronized,
+ * as they are only ever called by the request evaluator thread. Methods that
+ * may be called from the servlet thread, such as close() and reset(), are.
  */
 public final class ResponseTrans extends Writer implements Serializable {
 
     static final long serialVersionUID = -8627370766119740844L;
     static final int INITIAL_BUFFER_SIZE = 2048;
 
+    // number of chars collected before they are written to a streamed response
+    static final int STREAM_CHUNK_SIZE = 8192;
+
     static final String newLine = System.getProperty("line.separator");
 
     //  MIME content type of the response.
@@ -58,6 +73,9 @@ public final class ResponseTrans extends Writer implements Serializable {
     // the actual response
     private byte[] response = null;
 
+    // gzip encoded response, created on demand
+    private transient byte[] compressed = null;
+
     // contains the redirect URL
     private String redir = null;
 
@@ -85,6 +103,9 @@ public final class ResponseTrans extends Writer implements Serializable {
     // these are used to implement the _as_string variants for Hop templates.
     private transient Stack buffers;
 
+    // buffers handed out through pushBuffer(), which must not be recycled
+    private transient Set escapedBuffers;
+
     // the path used to tell where to look for skins
     private transient Object[] skinpath = null;
 
@@ -112,12 +133,47 @@ public final class ResponseTrans extends Writer implements Serializable {
     // the request trans for this response
     private transient RequestTrans reqtrans;
 
+    // seconds to keep this response in the application's response cache, 0 if not cached
+    private transient int cacheTTL = 0;
+
+    // prototypes whose data changes invalidate the cached response
+    private transient String[] cacheDependencies;
+
+    // the data version of the dependencies at the time they were set
+    private transient long cacheDataVersion = 0;
+
     // the message digest used to generate composed digests for ETag headers
     private transient MessageDigest digest;
 
     // the skin current or last rendered skin
     private transient volatile Skin activeSkin;
 
+    // true if the response is streamed to the client as it is rendered
+    private transient boolean streaming = false;
+
+    // the output stream of a streamed response, null if the body is discarded
+    private transient OutputStream streamOut;
+
+    // the buffer that is written out when streaming
+    private transient StringBuffer streamBuffer;
+
+    // encoder and reusable buffers used to write streamed output
+    private transient CharsetEncoder streamEncoder;
+    private transient CharBuffer streamChars;
+    private transient ByteBuffer streamBytes;
+
+    // set if writing the streamed response failed, e.g. because the client went away
+    private transient boolean streamFailed = false;
+
+    // number of callers holding positions within the response buffer
+    private transient int bufferLocks = 0;
+
+    // pool to take response buffers from, owned by the request evaluator
+    private transient volatile BufferPool bufferPool;
+
+    // hash used to generate automatic ETags, owned by the request evaluator
+    private transient volatile ContentHash contentHash;
+
     // the application
     Application app;
 
@@ -175,7 +231,7 @@ public final class ResponseTrans extends Writer implements Serializable {
     /**
      * Reset the current response buffer.
      */
-    public synchronized void resetBuffer() {
+    public void resetBuffer() {
         if (buffer != null) {
             buffer.setLength(0);
         }
@@ -191,6 +247,7 @@ public final class ResponseTrans extends Writer implements Serializable {
 
         buffers = null;
         response = null;
+        compressed = null;
         cacheable = true;
         redir = forward = message = null;
         error = null;
@@ -204,6 +261,9 @@ public final class ResponseTrans extends Writer implements Serializable {
         skinpath = null;
         skincache = null;
         cookies = null;
+        cacheTTL = 0;
+        cacheDependencies = null;
+        cacheDataVersion = 0;
 
         if (digest != null) {
             digest.reset();
@@ -213,11 +273,29 @@ public final class ResponseTrans extends Writer implements Serializable {
     /**
      * This is called before a skin is rendered as string
      * (renderSkinAsString) to redirect the output to a new
-     * string buffer.
+     * string buffer. The buffer is recycled when it is popped
+     * through popString().
+     */
+    public void push() {
+        pushInternal(null);
+    }
+
+    /**
+     * Redirect the output to a new string buffer, and return that buffer.
+     * Since the caller may keep the buffer, it is never recycled.
      * @param buf the StringBuffer to use, or null
      * @return the new StringBuffer instance
      */
-    public synchronized StringBuffer pushBuffer(StringBuffer buf) {
+    public StringBuffer pushBuffer(StringBuffer buf) {
+        pushInternal(buf);
+        if (escapedBuffers == null) {
+            escapedBuffers = Collections.newSetFromMap(new IdentityHashMap());
+        }
+        escapedBuffers.add(buffer);
+        return buffer;
+    }
+
+    private void pushInternal(StringBuffer buf) {
         if (buffers == null) {
             buffers = new Stack();
         }
@@ -232,24 +310,42 @@ public final class ResponseTrans extends Writer implements Serializable {
             buffer = cachedBuffer;
             cachedBuffer = null;
         } else {
-            buffer = new StringBuffer(64);
+            buffer = bufferPool == null ? new StringBuffer(64) : bufferPool.get(64);
         }
-        return buffer;
     }
 
     /**
      * Returns the content of the current string buffer and switches back to the previos one.
      */
-    public synchronized String popString() {
-        StringBuffer buf = popBuffer();
+    public String popString() {
+        StringBuffer buf = popInternal();
         String str = buf.toString();
+        if (escapedBuffers != null && escapedBuffers.remove(buf)) {
+            return str;
+        }
         // store stringbuffer for later reuse
         buf.setLength(0);
-        cachedBuffer = buf;
+        if (cachedBuffer == null) {
+            cachedBuffer = buf;
+        } else if (bufferPool != null) {
+            bufferPool.release(buf);
+        }
         return str;
     }
 
-    public synchronized StringBuffer popBuffer() {
+    /**
+     * Switch back to the previous buffer and return the current one. The
+     * returned buffer is no longer used by the response, and not recycled.
+     */
+    public StringBuffer popBuffer() {
+        StringBuffer buf = popInternal();
+        if (escapedBuffers != null) {
+            escapedBuffers.remove(buf);
+        }
+        return buf;
+    }
+
+    private StringBuffer popInternal() {
         if (buffer == null) {
             throw new RuntimeException("Can't pop string buffer: buffer is null");
         } else if (buffers == null) {
@@ -263,11 +359,13 @@ public final class ResponseTrans extends Writer implements Serializable {
     }
 
     /**
-     *  Get the response buffer, creating it if it doesn't exist
+     *  Get the response buffer, creating it if it doesn't exist. The buffer
+     *  is recycled when the response is closed, so callers must not keep a
+     *  reference to it.
      */
-    public synchronized StringBuffer getBuffer() {
+    public StringBuffer getBuffer() {
         if (buffer == null) {
-            buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            buffer = newBuffer(INITIAL_BUFFER_SIZE);
         }
 
         return buffer;
@@ -276,12 +374,13 @@ public final class ResponseTrans extends Writer implements Serializable {
     /**
      * Append a string to the response unchanged.
      */
-    public synchronized void write(String str) {
+    public void write(String str) {
         if (str != null) {
             if (buffer == null) {
-                buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                buffer = newBuffer(str.length() + 100);
             }
             buffer.append(str);
+            checkStream();
         }
     }
 
@@ -302,11 +401,12 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param offset
      * @param length
      */
-    public synchronized void write(char[] chars, int offset, int length) {
+    public void write(char[] chars, int offset, int length) {
         if (buffer == null) {
-            buffer = new StringBuffer(Math.max(length + 100, INITIAL_BUFFER_SIZE));
+            buffer = newBuffer(length + 100);
         }
         buffer.append(chars, offset, length);
+        checkStream();
     }
 
     /**
@@ -323,11 +423,12 @@ public final class ResponseTrans extends Writer implements Serializable {
      * Appends a signle character to the response buffer.
      * @param c
      */
-    public synchronized void write(int c) {
+    public void write(int c) {
         if (buffer == null) {
-            buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            buffer = newBuffer(INITIAL_BUFFER_SIZE);
         }
         buffer.append((char) c);
+        checkStream();
     }
 
     /**
@@ -337,33 +438,73 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param length
      */
     public void write(String str, int offset, int length) {
-        char cbuf[]  = new char[length];
-        str.getChars(offset, (offset + length), cbuf, 0);
-        write(cbuf, 0, length);
+        if (buffer == null) {
+            buffer = newBuffer(length + 100);
+        }
+        buffer.append(str, offset, offset + length);
+        checkStream();
+    }
+
+    /**
+     * Check whether a buffer has been handed out by pushBuffer().
+     */
+    private boolean isEscaped(StringBuffer buf) {
+        return escapedBuffers != null && escapedBuffers.contains(buf);
+    }
+
+    /**
+     * Create a new response buffer, taking it from the buffer pool if available.
+     */
+    private StringBuffer newBuffer(int minCapacity) {
+        minCapacity = Math.max(minCapacity, INITIAL_BUFFER_SIZE);
+        return bufferPool == null ?
+                new StringBuffer(minCapacity) : bufferPool.get(minCapacity);
+    }
+
+    /**
+     * Set the pool used to allocate and recycle response buffers. The pool is
+     * owned by the request evaluator and reused for subsequent requests.
+     *
+     * @param pool the buffer pool, or null to allocate buffers without pooling
+     */
+    public void setBufferPool(BufferPool pool) {
+        bufferPool = pool;
+    }
+
+    /**
+     * Set the hash used to generate automatic ETags. The hash is owned by the
+     * request evaluator and reused for subsequent requests.
+     *
+     * @param hash the content hash, or null to create a new hash when needed
+     */
+    public void setContentHash(ContentHash hash) {
+        contentHash = hash;
     }
 
     /**
      * Write object to response buffer and append a platform dependent newline sequence.
      */
-    public synchronized void writeln(Object what) {
+    public void writeln(Object what) {
         if (what != null) {
             write(what.toString());
         } else if (buffer == null) {
             // if what is null, buffer may still be uninitialized
-            buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            buffer = newBuffer(INITIAL_BUFFER_SIZE);
         }
         buffer.append(newLine);
+        checkStream();
     }
 
     /**
      * Writes a platform dependent newline sequence to response buffer.
      */
-    public synchronized void writeln() {
+    public void writeln() {
         // buffer may still be uninitialized
         if (buffer == null) {
-            buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            buffer = newBuffer(INITIAL_BUFFER_SIZE);
         }
         buffer.append(newLine);
+        checkStream();
     }
 
     /**
@@ -387,30 +528,32 @@ public final class ResponseTrans extends Writer implements Serializable {
      * Replace special characters with entities, including {@code <}, {@code >} and {@code "}, thus allowing
      * no HTML tags.
      */
-    public synchronized void encode(Object what) {
+    public void encode(Object what) {
         if (what != null) {
             String str = what.toString();
 
             if (buffer == null) {
-                buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                buffer = newBuffer(str.length() + 100);
             }
 
             HtmlEncoder.encodeAll(str, buffer);
+            checkStream();
         }
     }
 
     /**
      * Replace special characters with entities but pass through HTML tags
      */
-    public synchronized void format(Object what) {
+    public void format(Object what) {
         if (what != null) {
             String str = what.toString();
 
             if (buffer == null) {
-                buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                buffer = newBuffer(str.length() + 100);
             }
 
             HtmlEncoder.encode(str, buffer);
+            checkStream();
         }
     }
 
@@ -418,30 +561,32 @@ public final class ResponseTrans extends Writer implements Serializable {
      * Replace special characters with entities, including {@code <}, {@code >} and {@code "}, thus allowing
      * no HTML tags.
      */
-    public synchronized void encodeXml(Object what) {
+    public void encodeXml(Object what) {
         if (what != null) {
             String str = what.toString();
 
             if (buffer == null) {
-                buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                buffer = newBuffer(str.length() + 100);
             }
 
             HtmlEncoder.encodeXml(str, buffer);
+            checkStream();
         }
     }
 
     /**
      * Encode HTML entities, but leave newlines alone. This is for the content of textarea forms.
      */
-    public synchronized void encodeForm(Object what) {
+    public void encodeForm(Object what) {
         if (what != null) {
             String str = what.toString();
 
             if (buffer == null) {
-                buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                buffer = newBuffer(str.length() + 100);
             }
 
             HtmlEncoder.encodeAll(str, buffer, false);
+            checkStream();
         }
     }
 
@@ -496,7 +641,19 @@ public final class ResponseTrans extends Writer implements Serializable {
      *  overwrite the previous output.
      * @param bytes an arbitrary byte array
      */
-    public void writeBinary(byte[] bytes) {
+    public synchronized void writeBinary(byte[] bytes) {
+        if (streaming) {
+            // write out pending chars first to keep the output in order
+            writeStream(false);
+            if (streamOut != null && !streamFailed) {
+                try {
+                    streamOut.write(bytes);
+                } catch (IOException iox) {
+                    streamError(iox);
+                }
+            }
+            return;
+        }
         response = bytes;
     }
 
@@ -628,8 +785,213 @@ public final class ResponseTrans extends Writer implements Serializable {
         writeBinary(xresproc.encodeException(x, charset));
     }
 
-    public void flush() {
-        // does nothing!
+    /**
+     * Write pending output to the client if the response is streamed.
+     * Does nothing for buffered responses.
+     */
+    public synchronized void flush() {
+        if (streaming && bufferLocks == 0 && buffer == streamBuffer) {
+            writeStream(true);
+        }
+    }
+
+    /**
+     * Switch this response to streaming mode. The response headers are sent
+     * right away, and from now on output is encoded and written to the client
+     * in chunks while the response is rendered, without holding the whole body
+     * in memory. Streamed responses don't get an ETag or Content-Length header,
+     * so HTTP/1.1 clients receive them with chunked transfer encoding. Headers,
+     * cookies and the status code can't be changed once streaming has started,
+     * and redirects are ignored.
+     *
+     * @return true if the response is streamed, false if streaming is not
+     *         available for this response, e.g. for internal or XML-RPC requests
+     * @throws IOException if the response headers couldn't be sent
+     */
+    public synchronized boolean stream() throws IOException {
+        if (streaming) {
+            return true;
+        }
+
+        StreamHandler handler = reqtrans.getStreamHandler();
+        HttpServletResponse res = reqtrans.getServletResponse();
+
+        if (handler == null || res == null || res.isCommitted() || response != null) {
+            return false;
+        }
+        if (buffers != null && !buffers.empty()) {
+            throw new IllegalStateException("Can't stream response while rendering to a string buffer");
+        }
+
+        if (charset == null) {
+            charset = app.getCharset();
+        }
+        if (charset == null) {
+            charset = "UTF-8";
+        }
+
+        Charset cs;
+        try {
+            cs = Charset.forName(charset);
+        } catch (IllegalArgumentException iae) {
+            throw new UnsupportedEncodingException(charset);
+        }
+
+        streamEncoder = cs.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        streamChars = CharBuffer.allocate(STREAM_CHUNK_SIZE);
+        streamBytes = ByteBuffer.allocate(STREAM_CHUNK_SIZE * 2);
+        // no automatic ETag for streamed responses
+        etag = null;
+
+        streamOut = handler.startStream(this);
+        streaming = true;
+        streamBuffer = getBuffer();
+
+        // write out what has been rendered so far
+        if (bufferLocks == 0) {
+            writeStream(true);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether this response is streamed to the client.
+     *
+     * @return true if stream() was called successfully
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Prevent the response buffer from being written to a streamed response.
+     * This must be called by code that keeps positions within the buffer
+     * returned by getBuffer(), and must be balanced by a call to unlockBuffer().
+     */
+    public void lockBuffer() {
+        bufferLocks += 1;
+    }
+
+    /**
+     * Release a lock obtained via lockBuffer().
+     */
+    public void unlockBuffer() {
+        bufferLocks -= 1;
+        checkStream();
+    }
+
+    /**
+     * Write the response buffer to the client if the response is streamed and
+     * enough output has been collected.
+     */
+    private void checkStream() {
+        if (streaming && bufferLocks == 0 && buffer == streamBuffer &&
+                buffer.length() >= STREAM_CHUNK_SIZE) {
+            writeStream(false);
+        }
+    }
+
+    /**
+     * Encode the stream buffer and write it to the client.
+     *
+     * @param flush whether to flush the output stream afterwards
+     */
+    private synchronized void writeStream(boolean flush) {
+        StringBuffer buf = streamBuffer;
+        if (streamOut == null || streamFailed) {
+            // body is discarded, e.g. for HEAD requests
+            buf.setLength(0);
+            return;
+        }
+        try {
+            encodeStream(buf, false);
+            if (flush) {
+                streamOut.flush();
+            }
+        } catch (IOException iox) {
+            streamError(iox);
+        }
+        buf.setLength(0);
+    }
+
+    /**
+     * Encode the contents of a buffer into the reusable byte buffer, writing it
+     * to the output stream whenever it is full.
+     *
+     * @param buf the chars to encode
+     * @param endOfInput true if this is the last output of the response
+     */
+    private void encodeStream(StringBuffer buf, boolean endOfInput) throws IOException {
+        int length = buf.length();
+        int pos = 0;
+        char[] chars = streamChars.array();
+
+        while (true) {
+            // fill up the char buffer, which may contain a leftover surrogate
+            int n = Math.min(streamChars.remaining(), length - pos);
+            buf.getChars(pos, pos + n, chars, streamChars.position());
+            streamChars.position(streamChars.position() + n);
+            pos += n;
+
+            streamChars.flip();
+            CoderResult result = streamEncoder.encode(streamChars, streamBytes,
+                                                      endOfInput && pos == length);
+            streamChars.compact();
+
+            if (result.isOverflow()) {
+                writeStreamBytes();
+            } else if (pos == length) {
+                break;
+            }
+        }
+
+        if (endOfInput) {
+            while (streamEncoder.flush(streamBytes).isOverflow()) {
+                writeStreamBytes();
+            }
+        }
+        writeStreamBytes();
+    }
+
+    private void writeStreamBytes() throws IOException {
+        streamBytes.flip();
+        if (streamBytes.hasRemaining()) {
+            streamOut.write(streamBytes.array(), 0, streamBytes.limit());
+        }
+        streamBytes.clear();
+    }
+
+    private void streamError(IOException iox) {
+        // most likely the client closed the connection. discard further output.
+        streamFailed = true;
+        app.logEvent("Error writing streamed response for " + reqtrans.getPath() + ": " + iox);
+    }
+
+    /**
+     * Write the remaining output of a streamed response and flush it.
+     */
+    private void finishStream() {
+        if (contentType != null && contentType.startsWith("text/html") &&
+                debugBuffer != null) {
+            debugBuffer.append("</div>");
+            streamBuffer.append(debugBuffer);
+            debugBuffer = null;
+        }
+        if (streamOut == null || streamFailed) {
+            streamBuffer.setLength(0);
+            return;
+        }
+        try {
+            encodeStream(streamBuffer, true);
+            streamOut.flush();
+        } catch (IOException iox) {
+            streamError(iox);
+        }
+        streamBuffer.setLength(0);
+        // the encoder has been flushed, discard any further output
+        streamOut = null;
     }
 
     /**
@@ -647,6 +1009,15 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @throws UnsupportedEncodingException if the charset is not a valid encoding name
      */
     public synchronized void close(String defaultCharset) throws UnsupportedEncodingException {
+        if (streaming) {
+            // the response has been sent to the client while rendering,
+            // there is nothing left for attached requests to reuse
+            finishStream();
+            response = null;
+            notifyAll();
+            return;
+        }
+
         // if the response was already written and committed by the application
         // there's no point in closing the response buffer
         HttpServletResponse res = reqtrans.getServletResponse();
@@ -661,6 +1032,15 @@ public final class ResponseTrans extends Writer implements Serializable {
 
         boolean encodingError = false;
 
+        // if etag is not set, generate it from the content, but only if
+        // not a redirect or error
+        boolean autoETag = etag == null &&
+                lastModified == -1 &&
+                status == 200 &&
+                redir == null &&
+                "true".equals(app.getProperty("autoETags", "true"));
+        ContentHash hash = contentHash == null ? new ContentHash() : contentHash;
+
         // only close if the response hasn't been closed yet, and if no
         // response was generated using writeBinary().
         if (response == null) {
@@ -685,45 +1065,54 @@ public final class ResponseTrans extends Writer implements Serializable {
                 }
             }
 
+            // hash the chars before encoding them, so a response the client
+            // already has doesn't need to be encoded at all
+            if (autoETag) {
+                hash.reset();
+                hash.update(charset);
+                if (buffer != null) {
+                    hash.update(buffer);
+                }
+                etag = hash.toETag();
+                autoETag = false;
+                checkNotModified();
+            }
+
             // get the buffer's bytes in the specified encoding
             if (buffer != null) {
-                try {
-                    response = buffer.toString().getBytes(charset);
-                } catch (UnsupportedEncodingException uee) {
-                    encodingError = true;
-                    response = buffer.toString().getBytes();
+                if (!notModified) {
+                    try {
+                        response = buffer.toString().getBytes(charset);
+                    } catch (UnsupportedEncodingException uee) {
+                        encodingError = true;
+                        response = buffer.toString().getBytes();
+                    }
                 }
 
                 // make sure this is done only once, even with more requsts attached
+                if (bufferPool != null) {
+                    if (!isEscaped(buffer)) {
+                        bufferPool.release(buffer);
+                    }
+                    if (cachedBuffer != null) {
+                        bufferPool.release(cachedBuffer);
+                        cachedBuffer = null;
+                    }
+                }
                 buffer = null;
-            } else {
+                escapedBuffers = null;
+            }
+            if (response == null) {
                 response = new byte[0];
             }
         }
 
-        boolean autoETags = "true".equals(app.getProperty("autoETags", "true"));
-        // if etag is not set, calc MD5 digest and check it, but only if
-        // not a redirect or error
-        if (autoETags &&
-                etag == null &&
-                lastModified == -1 &&
-                status == 200 &&
-                redir == null) {
-            try {
-                digest = MessageDigest.getInstance("MD5");
-                // if (contentType != null)
-                //     digest.update (contentType.getBytes());
-                byte[] b = this.digest.digest(this.response);
-                this.etag = "\"" + new String(Base64.encodeBase64(b)) + "\""; //$NON-NLS-1$ //$NON-NLS-2$
-                // only set response to 304 not modified if no cookies were set
-                if (reqtrans.hasETag(etag) && countCookies() == 0) {
-                    response = new byte[0];
-                    notModified = true;
-                }
-            } catch (Exception e) {
-                // Etag creation failed for some reason.
-                app.logError("Error creating ETag: " + e);
-            }
+        // binary responses set through writeBinary() are hashed as they are
+        if (autoETag) {
+            hash.reset();
+            hash.update(response, 0, response.length);
+            etag = hash.toETag();
+            checkNotModified();
         }
 
         notifyAll();
@@ -734,6 +1123,17 @@ public final class ResponseTrans extends Writer implements Serializable {
         }
     }
 
+    /**
+     * Turn the response into a Not-Modified response if the client already
+     * has the current ETag, but only if no cookies were set.
+     */
+    private void checkNotModified() {
+        if (reqtrans.hasETag(etag) && countCookies() == 0) {
+            response = new byte[0];
+            notModified = true;
+        }
+    }
+
     /**
      * If we just attached to evaluation we call this instead of close because only the primary thread
      * is responsible for closing the result
@@ -748,6 +1148,34 @@ public final class ResponseTrans extends Writer implements Serializable {
         }
     }
 
+    /**
+     * Set the content of this response from a response cached by the
+     * application. The response is marked as not modified if the request
+     * already has the cached content.
+     *
+     * @param content the response body
+     * @param compressed the gzip encoded response body, or null
+     * @param contentType the content type including charset
+     * @param etag the ETag header value, or null
+     * @param lastModified the Last-Modified header in milliseconds, or -1
+     */
+    public synchronized void setCachedContent(byte[] content, byte[] compressed,
+                                              String contentType, String etag,
+                                              long lastModified) {
+        this.response = content;
+        this.compressed = compressed;
+        this.contentType = contentType;
+        this.charset = null;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        if (etag != null) {
+            notModified = reqtrans.hasETag(etag);
+        } else if (lastModified > -1) {
+            notModified = reqtrans.getIfModifiedSince() == lastModified;
+        }
+        notifyAll();
+    }
+
     /**
      * Get the body content for this response as byte array, encoded using the
      * response's charset.
@@ -758,6 +1186,75 @@ public final class ResponseTrans extends Writer implements Serializable {
         return response;
     }
 
+    /**
+     * Get the body content for this response encoded using gzip. The content
+     * is compressed only once, so requests attached to this response share the
+     * compressed bytes.
+     *
+     * @param deflater the deflater to use, or null to use a temporary one
+     * @return the gzip encoded response body, or null if there is no content
+     */
+    public synchronized byte[] getCompressedContent(Deflater deflater) {
+        if (compressed == null && response != null) {
+            boolean temporary = deflater == null;
+            if (temporary) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            try {
+                compressed = gzip(response, deflater);
+            } finally {
+                if (temporary) {
+                    deflater.end();
+                }
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Returns true if the gzip encoded content has already been created.
+     */
+    public synchronized boolean isCompressed() {
+        return compressed != null;
+    }
+
+    /**
+     * Encode data in gzip format.
+     *
+     * @param data the data
+     * @param deflater a deflater in raw (nowrap) mode, reset before use
+     * @return the gzip encoded data
+     */
+    static byte[] gzip(byte[] data, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+        // gzip header: magic, deflate method, no flags, no time, unknown OS
+        out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff}, 0, 10);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        deflater.reset();
+
+        // trailer: CRC-32 and size, little endian
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, data.length);
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int i) {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
     /**
      * Get the number of bytes of the response body.
      *
@@ -830,6 +1327,57 @@ public final class ResponseTrans extends Writer implements Serializable {
         }
     }
 
+    /**
+     * Set the number of seconds this response is kept in the application's
+     * response cache. Only responses to anonymous GET and HEAD requests are
+     * cached, and only if the response is cacheable.
+     *
+     * @param seconds the time to live, 0 to not cache the response
+     */
+    public void setCacheTTL(int seconds) {
+        cacheTTL = Math.max(0, seconds);
+    }
+
+    /**
+     * Get the number of seconds this response is kept in the application's
+     * response cache.
+     *
+     * @return the time to live in seconds, 0 if the response is not cached
+     */
+    public int getCacheTTL() {
+        return cacheTTL;
+    }
+
+    /**
+     * Set the prototypes whose data the response depends on. The cached
+     * response is dropped as soon as data of any of them changes.
+     *
+     * @param prototypes the prototype names
+     */
+    public void setCacheDependencies(String[] prototypes) {
+        cacheDependencies = prototypes;
+        cacheDataVersion = app.getDataVersion(prototypes);
+    }
+
+    /**
+     * Get the prototypes whose data the response depends on.
+     *
+     * @return the prototype names, or null
+     */
+    public String[] getCacheDependencies() {
+        return cacheDependencies;
+    }
+
+    /**
+     * Get the data version of the response's dependencies at the
+     * time they were set.
+     *
+     * @return the data version
+     */
+    public long getCacheDataVersion() {
+        return cacheDataVersion;
+    }
+
     /**
      * Get the ETag header value for this response.
      *
@@ -1174,4 +1722,20 @@ public final class ResponseTrans extends Writer implements Serializable {
     public void setRealm(String realm) {
         this.realm = realm;
     }
+
+    /**
+     * Callback provided by the servlet client to start a streamed response.
+     */
+    public interface StreamHandler {
+        /**
+         * Send the status line, headers and cookies of a response that
+         * is about to be streamed.
+         *
+         * @param res the response
+         * @return the output stream to write the response body to, or null
+         *         if the body should be discarded
+         * @throws IOException if the headers couldn't be sent
+         */
+        OutputStream startStream(ResponseTrans res) throws IOException;
+    }
 }
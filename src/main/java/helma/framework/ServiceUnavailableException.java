@@ -0,0 +1,50 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework;
+
+
+/**
+ * ServiceUnavailableException is thrown when no request evaluator could be
+ * obtained for a request, either because the queue of waiting requests is full
+ * or because no evaluator became available within the queue timeout.
+ */
+public class ServiceUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = -2915434612427513268L;
+
+    // number of seconds the client should wait before retrying
+    private final int retryAfter;
+
+    /**
+     * Creates a new ServiceUnavailableException object.
+     *
+     * @param message the detail message
+     * @param retryAfter the number of seconds after which the client may retry
+     */
+    public ServiceUnavailableException(String message, int retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Get the number of seconds after which the client may retry the request.
+     *
+     * @return the value for the Retry-After response header
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
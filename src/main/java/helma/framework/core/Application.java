@@ -82,6 +82,12 @@ public final class Application implements Runnable {
     // The session manager
     SessionManager sessionMgr;
 
+    // cache of rendered responses
+    ResponseCache responseCache;
+
+    // reports changes to file repositories if watchRepositories is enabled
+    RepositoryWatcher repositoryWatcher;
+
      /**
      *  The type manager checks if anything in the application's prototype definitions
      * has been updated prior to each evaluation.
@@ -94,10 +100,9 @@ public final class Application implements Runnable {
     protected SkinManager skinmgr;
 
     /**
-     * Collections for evaluator thread pooling
+     * Pool of request evaluators
      */
-    protected Stack freeThreads;
-    protected Vector allThreads;
+    EvaluatorPool evaluators;
     boolean running = false;
     boolean debug;
     long starttime;
@@ -110,6 +115,13 @@ public final class Application implements Runnable {
     Thread worker;
     // request timeout defaults to 60 seconds
     long requestTimeout = 60000;
+    // run request evaluators on virtual threads?
+    volatile boolean virtualThreads = false;
+
+    // gzip compression of responses: enabled, minimum size and content types
+    volatile boolean compressResponses = true;
+    volatile int compressionMinSize = 1024;
+    volatile Set compressionTypes = new HashSet();
     ThreadGroup threadgroup;
 
     // threadlocal variable for the current RequestEvaluator
@@ -374,6 +386,10 @@ public final class Application implements Runnable {
             // using the logging framework so that a new LogFactory gets created
             // for this app.
             Thread.currentThread().setContextClassLoader(typemgr.getClassLoader());
+            // watch file repositories for changes instead of polling them
+            if ("true".equalsIgnoreCase(props.getProperty("watchRepositories"))) {
+                startRepositoryWatcher();
+            }
             try {
                 typemgr.createPrototypes();
             } catch (Exception x) {
@@ -395,9 +411,9 @@ public final class Application implements Runnable {
                 }
             }
 
-            // create and init evaluator/thread lists
-            freeThreads = new Stack();
-            allThreads = new Vector();
+            // create and init evaluator pool
+            evaluators = new EvaluatorPool(Application.this, 50);
+            evaluators.updateProperties(props);
 
             activeRequests = new Hashtable();
             activeCronJobs = new Hashtable();
@@ -406,6 +422,9 @@ public final class Application implements Runnable {
             // create the skin manager
             skinmgr = new SkinManager(Application.this);
 
+            // create the response cache
+            responseCache = new ResponseCache(Application.this);
+
             // read in root id, root prototype, user prototype
             rootId = props.getProperty("rootid", "0");
             String rootPrototype = props.getProperty("rootprototype", "root");
@@ -476,8 +495,7 @@ public final class Application implements Runnable {
                 if (i == 0) {
                     ev.initScriptingEngine();
                 }
-                freeThreads.push(ev);
-                allThreads.addElement(ev);
+                evaluators.add(ev);
             }
         }
     }
@@ -528,18 +546,22 @@ public final class Application implements Runnable {
 
         worker = null;
 
+        if (repositoryWatcher != null) {
+            repositoryWatcher.shutdown();
+            repositoryWatcher = null;
+        }
+
         // stop evaluators
-        if (allThreads != null) {
-            for (Enumeration e = allThreads.elements(); e.hasMoreElements();) {
-                RequestEvaluator ev = (RequestEvaluator) e.nextElement();
+        if (evaluators != null) {
+            for (Iterator it = evaluators.getEvaluators().iterator(); it.hasNext();) {
+                RequestEvaluator ev = (RequestEvaluator) it.next();
                 ev.stopTransactor();
                 ev.shutdown();
             }
-        }
 
-        // remove evaluators
-        allThreads.removeAllElements();
-        freeThreads.clear();
+            // remove evaluators
+            evaluators.clear();
+        }
 
         // shut down node manager and embedded db
         try {
@@ -565,6 +587,11 @@ public final class Application implements Runnable {
             sessionMgr.storeSessionData(null, eval.scriptingEngine);
         }
         sessionMgr.shutdown();
+
+        // close db connection pools
+        for (Iterator i = new ArrayList(dbSources.values()).iterator(); i.hasNext();) {
+            ((DbSource) i.next()).shutdown();
+        }
     }
 
     /**
@@ -585,6 +612,15 @@ public final class Application implements Runnable {
         return appDir;
     }
 
+    /**
+     * Get the directory of the application's embedded database.
+     *
+     * @return the database directory
+     */
+    public File getDbDir() {
+        return dbDir;
+    }
+
     /**
      * Get a comparator for comparing Resources according to the order of
      * repositories they're contained in.
@@ -596,59 +632,18 @@ public final class Application implements Runnable {
     }
 
     /**
-     * Returns a free evaluator to handle a request.
+     * Returns a free evaluator to handle a request. If all evaluators are busy,
+     * the calling thread waits in line until one is released.
+     *
+     * @throws ServiceUnavailableException if the request queue is full or
+     *         no evaluator became available within the queue timeout
      */
     public RequestEvaluator getEvaluator() {
         if (!running) {
             throw new ApplicationStoppedException();
         }
 
-        // first try
-        try {
-            return (RequestEvaluator) freeThreads.pop();
-        } catch (EmptyStackException nothreads) {
-            int maxThreads = 50;
-
-            String maxThreadsProp = props.getProperty("maxThreads");
-            if (maxThreadsProp != null) {
-                try {
-                    maxThreads = Integer.parseInt(maxThreadsProp);
-                } catch (Exception ignore) {
-                    logEvent("Couldn't parse maxThreads property: " + maxThreadsProp);
-                }
-            }
-
-            synchronized (this) {
-                // allocate a new evaluator
-                if (allThreads.size() < maxThreads) {
-                    logEvent("Starting engine " + (allThreads.size() + 1) +
-                             " for " + name);
-
-                    RequestEvaluator ev = new RequestEvaluator(this);
-
-                    allThreads.addElement(ev);
-
-                    return (ev);
-                }
-            }
-        }
-
-        // we can't create a new evaluator, so we wait if one becomes available.
-        // give it 3 more tries, waiting 3 seconds each time.
-        for (int i = 0; i < 4; i++) {
-            try {
-                Thread.sleep(3000);
-
-                return (RequestEvaluator) freeThreads.pop();
-            } catch (EmptyStackException nothreads) {
-                // do nothing
-            } catch (InterruptedException inter) {
-                throw new RuntimeException("Thread interrupted.");
-            }
-        }
-
-        // no luck, give up.
-        throw new RuntimeException("Maximum Thread count reached.");
+        return evaluators.acquire();
     }
 
     /**
@@ -657,47 +652,69 @@ public final class Application implements Runnable {
     public void releaseEvaluator(RequestEvaluator ev) {
         if (ev != null) {
             ev.recycle();
-            freeThreads.push(ev);
+            evaluators.release(ev);
         }
     }
 
     /**
      * This can be used to set the maximum number of evaluators which will be allocated.
-     * If evaluators are required beyound this number, an error will be thrown.
+     * If evaluators are required beyond this number, requests are queued until
+     * one becomes available.
      */
     public boolean setNumberOfEvaluators(int n) {
         if ((n < 2) || (n > 511)) {
             return false;
         }
 
-        int current = allThreads.size();
-
-        synchronized (allThreads) {
-            if (n > current) {
-                int toBeCreated = n - current;
-
-                for (int i = 0; i < toBeCreated; i++) {
-                    RequestEvaluator ev = new RequestEvaluator(this);
+        evaluators.setMaxSize(n);
+        return true;
+    }
 
-                    freeThreads.push(ev);
-                    allThreads.addElement(ev);
-                }
-            } else if (n < current) {
-                int toBeDestroyed = current - n;
+    /**
+     * Check whether request evaluators run on virtual threads. This is enabled
+     * by setting <code>evaluatorMode = virtual</code> in app.properties.
+     * Note that this doesn't raise the number of requests processed at the
+     * same time: each request still needs an evaluator with its own scripting
+     * engine, so concurrency is limited by the evaluator pool size
+     * (<code>maxThreads</code>) in either mode. Virtual threads just avoid
+     * keeping a platform thread for each idle evaluator. Requests are still
+     * handed from the calling thread to the evaluator's thread and back, even
+     * if the calling thread is virtual itself, so the two thread switches per
+     * request remain.
+     *
+     * @return true if evaluators should use virtual threads
+     */
+    boolean useVirtualThreads() {
+        return virtualThreads;
+    }
 
-                for (int i = 0; i < toBeDestroyed; i++) {
-                    try {
-                        RequestEvaluator re = (RequestEvaluator) freeThreads.pop();
-                        allThreads.removeElement(re);
-                        re.stopTransactor();
-                    } catch (EmptyStackException empty) {
-                        return false;
-                    }
-                }
-            }
+    /**
+     * Check whether a response should be sent gzip encoded to clients that
+     * accept it. This is the case for responses with content of at least
+     * <code>responseCompressionMinSize</code> bytes and one of the content
+     * types listed in <code>responseCompressionTypes</code>, unless compression
+     * is disabled by setting <code>responseCompression = false</code>.
+     *
+     * @param res the closed response
+     * @return true if the response should be compressed
+     */
+    public boolean isCompressible(ResponseTrans res) {
+        if (!compressResponses || res.getNotModified() || res.getRedirect() != null) {
+            return false;
         }
-
-        return true;
+        byte[] content = res.getContent();
+        if (content == null || content.length < compressionMinSize) {
+            return false;
+        }
+        String type = res.getContentType();
+        if (type == null) {
+            return false;
+        }
+        int semicolon = type.indexOf(';');
+        if (semicolon > -1) {
+            type = type.substring(0, semicolon);
+        }
+        return compressionTypes.contains(type.trim().toLowerCase());
     }
 
     /**
@@ -723,14 +740,24 @@ public final class Application implements Runnable {
         // are we responsible for releasing the evaluator and closing the result?
         boolean primaryRequest = false;
 
+        // look for a cached response to the request
+        String cacheKey = responseCache == null ? null : responseCache.getKey(req, session);
+        long codeVersion = typemgr.getLastCodeUpdate();
+        if (cacheKey != null) {
+            res = responseCache.get(cacheKey, req);
+            if (res != null) {
+                return res;
+            }
+        }
+
         try {
             // first look if a request with same user/path/data is already being executed.
             // if so, attach the request to its output instead of starting a new evaluation
             // this helps to cleanly solve "doubleclick" kind of users
-            ev = (RequestEvaluator) activeRequests.get(req);
+            RequestEvaluator active = (RequestEvaluator) activeRequests.get(req);
 
-            if (ev != null) {
-                res = ev.attachHttpRequest(req);
+            if (active != null) {
+                res = active.attachHttpRequest(req);
                 if (res != null) {
                     // we can only use the existing response object if the response
                     // wasn't written to the HttpServletResponse directly.
@@ -756,20 +783,41 @@ public final class Application implements Runnable {
         } catch (ApplicationStoppedException stopped) {
             // let the servlet know that this application has gone to heaven
             throw stopped;
+        } catch (ServiceUnavailableException busy) {
+            // let the servlet tell the client to come back later
+            errorCount += 1;
+            throw busy;
         } catch (Exception x) {
             errorCount += 1;
             res = new ResponseTrans(this, req);
             res.reportError(x);
         } finally {
             if (primaryRequest) {
-                activeRequests.remove(req);
-                releaseEvaluator(ev);
+                // only remove the entry if it is ours, the evaluator may not
+                // have been acquired if the application is busy
+                if (ev != null) {
+                    activeRequests.remove(req, ev);
+                }
 
                 // response needs to be closed/encoded before sending it back
                 try {
-                    res.close(charset);
+                    if (res != null) {
+                        res.close(charset);
+                        // compress using the evaluator's deflater if the client
+                        // or the response cache will need the compressed bytes
+                        if (isCompressible(res) &&
+                                (req.acceptsGzip() || res.getCacheTTL() > 0)) {
+                            res.getCompressedContent(ev == null ? null : ev.getDeflater());
+                        }
+                        // keep the response if its action asked for it
+                        if (cacheKey != null && !session.isLoggedIn()) {
+                            responseCache.put(cacheKey, res, codeVersion);
+                        }
+                    }
                 } catch (UnsupportedEncodingException uee) {
                     logError("Unsupported response encoding", uee);
+                } finally {
+                    releaseEvaluator(ev);
                 }
             }
         }
@@ -841,6 +889,31 @@ public final class Application implements Runnable {
         return nmgr.getCacheStatistics();
     }
 
+    /**
+     * Returns a map of statistics about the response cache
+     */
+    public Map getResponseCacheStatistics() {
+        return responseCache.getStatistics();
+    }
+
+    /**
+     * Returns the data version of a set of prototypes, which changes whenever
+     * data of any of the prototypes is modified. Unknown prototypes are ignored.
+     *
+     * @param prototypes the prototype names
+     * @return the data version
+     */
+    public long getDataVersion(String[] prototypes) {
+        return responseCache.getDataVersion(prototypes);
+    }
+
+    /**
+     * Returns a map of statistics about the parsed skin cache
+     */
+    public Map getSkinCacheStatistics() {
+        return skinmgr.getCacheStatistics();
+    }
+
     /**
      *  Set the application's root element to an arbitrary object. After this is called
      *  with a non-null object, the helma node manager will be bypassed. This function
@@ -1038,6 +1111,8 @@ public final class Application implements Runnable {
     /**
      *  Return a skin for a given object. The skin is found by determining the prototype
      *  to use for the object, then looking up the skin for the prototype.
+     *  The returned skin is a copy of the cached skin, so its sandbox can be
+     *  changed without affecting other requests.
      */
     public Skin getSkin(String protoname, String skinname, Object[] skinpath) throws IOException {
         Prototype proto = getPrototypeByName(protoname);
@@ -1046,7 +1121,8 @@ public final class Application implements Runnable {
             return null;
         }
 
-        return skinmgr.getSkin(proto, skinname, skinpath);
+        Skin skin = skinmgr.getSkin(proto, skinname, skinpath);
+        return skin == null ? null : skin.copy();
     }
 
     /**
@@ -1612,13 +1688,10 @@ public final class Application implements Runnable {
 
     /**
      * The run method performs periodic tasks like executing the scheduler method and
-     * kicking out expired user sessions.
+     * checking db connection pools. Expired sessions are purged by the session manager.
      */
     public void run() {
 
-        // interval between session cleanups
-        long lastSessionCleanup = System.currentTimeMillis();
-
         while (Thread.currentThread() == worker) {
 
             try {
@@ -1644,13 +1717,13 @@ public final class Application implements Runnable {
                     break;
                 }
 
-                // purge sessions
-                try {
-                    lastSessionCleanup = sessionMgr.cleanupSessions(lastSessionCleanup);
-                } catch (Exception x) {
-                    logError("Error in session cleanup: " + x, x);
-                } catch (LinkageError x) {
-                    logError("Error in session cleanup: " + x, x);
+                // close idle and report leaked db connections
+                for (Iterator i = new ArrayList(dbSources.values()).iterator(); i.hasNext();) {
+                    try {
+                        ((DbSource) i.next()).checkPool(this);
+                    } catch (Exception x) {
+                        logError("Error checking connection pool: " + x, x);
+                    }
                 }
 
                 // execute cron jobs
@@ -1811,6 +1884,9 @@ public final class Application implements Runnable {
      */
     public boolean addRepository(Repository rep, Repository current) {
         if (rep != null && !repositories.contains(rep)) {
+            if (repositoryWatcher != null && rep instanceof FileRepository) {
+                repositoryWatcher.watch((FileRepository) rep);
+            }
             // Add the new repository before its parent/current repository.
             // This establishes the order of compilation between FileRepositories
             // and embedded ZipRepositories, or repositories added
@@ -1829,6 +1905,37 @@ public final class Application implements Runnable {
         return false;
     }
 
+    /**
+     * Start watching this app's file repositories for changes. Sub-repositories
+     * are watched as they are discovered. The time to wait for a burst of
+     * changes to settle is set by the watchRepositoriesDelay property.
+     */
+    private void startRepositoryWatcher() {
+        long delay = 100;
+        try {
+            delay = Long.parseLong(props.getProperty("watchRepositoriesDelay", "100"));
+        } catch (NumberFormatException nfe) {
+            logError("Invalid watchRepositoriesDelay: " +
+                    props.getProperty("watchRepositoriesDelay"));
+        }
+        try {
+            repositoryWatcher = new RepositoryWatcher(name, delay, getEventLog());
+        } catch (IOException iox) {
+            logError("Can't watch repositories, falling back to polling", iox);
+            return;
+        }
+        int watched = 0;
+        for (int i = 0; i < repositories.size(); i++) {
+            Object rep = repositories.get(i);
+            if (rep instanceof FileRepository &&
+                    repositoryWatcher.watch((FileRepository) rep)) {
+                watched += 1;
+            }
+        }
+        logEvent("Watching " + watched + " of " + repositories.size() +
+                " repositories for changes");
+    }
+
     /**
      * Searches for the index of the given repository for this app.
      * The arguement must be a root argument, or -1 will be returned.
@@ -1934,6 +2041,36 @@ public final class Application implements Runnable {
                 requestTimeout = 60000L;
             }
 
+            // run evaluators on platform threads or on a virtual thread per request
+            String evaluatorMode = props.getProperty("evaluatorMode", "platform");
+            boolean virtual = "virtual".equalsIgnoreCase(evaluatorMode);
+            if (virtual && !RequestEvaluator.supportsVirtualThreads()) {
+                logEvent("Virtual threads are not supported by this JVM, " +
+                         "using platform threads for evaluators");
+                virtual = false;
+            }
+            virtualThreads = virtual;
+
+            // gzip compression of responses for clients that accept it
+            compressResponses = !"false".equalsIgnoreCase(
+                    props.getProperty("responseCompression"));
+            String minSize = props.getProperty("responseCompressionMinSize", "1024");
+            try {
+                compressionMinSize = Integer.parseInt(minSize);
+            } catch (NumberFormatException nfe) {
+                logEvent("Couldn't parse responseCompressionMinSize property: " + minSize);
+                compressionMinSize = 1024;
+            }
+            HashSet types = new HashSet();
+            StringTokenizer typeTokens = new StringTokenizer(props.getProperty(
+                    "responseCompressionTypes", "text/html, text/plain, text/css, " +
+                    "text/xml, text/javascript, application/javascript, " +
+                    "application/json, application/xml, image/svg+xml"), ",; ");
+            while (typeTokens.hasMoreTokens()) {
+                types.add(typeTokens.nextToken().toLowerCase());
+            }
+            compressionTypes = types;
+
             // set base URI
             String base = props.getProperty("baseuri");
 
@@ -1969,6 +2106,21 @@ public final class Application implements Runnable {
                 nmgr.updateProperties(props);
             }
 
+            // update evaluator pool settings
+            if (evaluators != null) {
+                evaluators.updateProperties(props);
+            }
+
+            // update skin cache settings
+            if (skinmgr != null) {
+                skinmgr.updateProperties(props);
+            }
+
+            // update response cache settings
+            if (responseCache != null) {
+                responseCache.updateProperties(props);
+            }
+
             // update extensions
             if (Server.getServer() != null) {
                 Vector extensions = Server.getServer().getExtensions();
@@ -2080,21 +2232,35 @@ public final class Application implements Runnable {
      *
      */
     public int countEvaluators() {
-        return allThreads.size();
+        return evaluators.size();
     }
 
     /**
      *
      */
     public int countFreeEvaluators() {
-        return freeThreads.size();
+        return evaluators.countFree();
     }
 
     /**
      *
      */
     public int countActiveEvaluators() {
-        return allThreads.size() - freeThreads.size();
+        return evaluators.size() - evaluators.countFree();
+    }
+
+    /**
+     * Returns the number of requests currently waiting for an evaluator
+     */
+    public int countQueuedRequests() {
+        return evaluators.getQueueLength();
+    }
+
+    /**
+     * Returns a map with statistics about the evaluator pool
+     */
+    public Map getEvaluatorStatistics() {
+        return evaluators.getStatistics();
     }
 
     /**
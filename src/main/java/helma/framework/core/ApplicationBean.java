@@ -396,6 +396,39 @@ public class ApplicationBean implements Serializable {
         return app.getCacheUsage();
     }
 
+    /**
+     * Get statistics about the application-wide cache of parsed skins, including
+     * its size, the number of hits, misses and evictions, and the hit rate.
+     * @return a map of skin cache statistics
+     */
+    public Map getSkinCacheStatistics() {
+        return app.getSkinCacheStatistics();
+    }
+
+    /**
+     * Remove all parsed skins from the application-wide skin cache.
+     */
+    public void clearSkinCache() {
+        app.skinmgr.clearCache();
+    }
+
+    /**
+     * Get statistics about the application-wide cache of rendered responses,
+     * including the number of entries, their size in bytes, the number of hits,
+     * misses and evictions, and the hit rate.
+     * @return a map of response cache statistics
+     */
+    public Map getResponseCacheStatistics() {
+        return app.getResponseCacheStatistics();
+    }
+
+    /**
+     * Remove all responses from the application-wide response cache.
+     */
+    public void clearResponseCache() {
+        app.responseCache.clear();
+    }
+
     /**
      * Returns the app's data node used to share data between the app's evaluators
      *
@@ -549,6 +582,24 @@ public class ApplicationBean implements Serializable {
         return app.countEvaluators();
     }
 
+    /**
+     * Get the number of requests currently waiting for a free thread
+     * @return the number of queued requests
+     */
+    public int getQueuedRequests() {
+        return app.countQueuedRequests();
+    }
+
+    /**
+     * Get statistics about the request evaluator pool, including the current queue
+     * length, the number of requests that had to wait and the average and maximum
+     * wait time in milliseconds, and the number of rejected requests.
+     * @return a map of evaluator pool statistics
+     */
+    public Map getThreadStatistics() {
+        return app.getEvaluatorStatistics();
+    }
+
     /**
      * Set the maximal thread number for this application
      * @param n the maximal number of threads/request evaluators
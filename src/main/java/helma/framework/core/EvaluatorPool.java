@@ -0,0 +1,296 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.ServiceUnavailableException;
+import helma.util.ResourceProperties;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of request evaluators. Threads that find all evaluators busy
+ * are queued in FIFO order and handed the next evaluator that is released,
+ * until the configured queue timeout elapses. If the number of waiting threads
+ * exceeds the configured queue length, requests are rejected right away.
+ *
+ * The pool is configured through the following app properties:
+ * <ul>
+ * <li><code>maxThreads</code> - the maximum number of evaluators (default 50)</li>
+ * <li><code>maxQueuedRequests</code> - the maximum number of threads waiting for
+ *     an evaluator, or -1 for no limit (default -1)</li>
+ * <li><code>queueTimeout</code> - the number of seconds to wait for an evaluator
+ *     (default 12)</li>
+ * </ul>
+ */
+final class EvaluatorPool {
+
+    private final Application app;
+
+    // permits for evaluators in use, fair to grant them in FIFO order
+    private final ResizableSemaphore permits;
+
+    // idle evaluators, used as a stack so the most recently used evaluator is reused first
+    private final ConcurrentLinkedDeque<RequestEvaluator> free =
+            new ConcurrentLinkedDeque<RequestEvaluator>();
+
+    // all evaluators created by this pool
+    private final List<RequestEvaluator> all = new CopyOnWriteArrayList<RequestEvaluator>();
+
+    private volatile int maxSize;
+    private volatile int maxQueued = -1;
+    private volatile long queueTimeout = 12000L;
+
+    // statistics
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Create a new evaluator pool.
+     *
+     * @param app the application
+     * @param maxSize the maximum number of evaluators
+     */
+    EvaluatorPool(Application app, int maxSize) {
+        this.app = app;
+        this.maxSize = maxSize;
+        this.permits = new ResizableSemaphore(maxSize);
+    }
+
+    /**
+     * Update the pool settings from the application properties.
+     *
+     * @param props the app properties
+     */
+    void updateProperties(ResourceProperties props) {
+        String maxThreads = props.getProperty("maxThreads");
+        if (maxThreads != null) {
+            try {
+                setMaxSize(Integer.parseInt(maxThreads));
+            } catch (NumberFormatException x) {
+                app.logEvent("Couldn't parse maxThreads property: " + maxThreads);
+            }
+        }
+
+        String queued = props.getProperty("maxQueuedRequests", "-1");
+        try {
+            maxQueued = Integer.parseInt(queued);
+        } catch (NumberFormatException x) {
+            app.logEvent("Couldn't parse maxQueuedRequests property: " + queued);
+            maxQueued = -1;
+        }
+
+        String timeout = props.getProperty("queueTimeout", "12");
+        try {
+            queueTimeout = Long.parseLong(timeout) * 1000L;
+        } catch (NumberFormatException x) {
+            app.logEvent("Couldn't parse queueTimeout property: " + timeout);
+            queueTimeout = 12000L;
+        }
+    }
+
+    /**
+     * Get an evaluator from the pool, creating a new one if the pool has not
+     * reached its maximum size yet. If all evaluators are busy, the calling
+     * thread waits in line for one to be released.
+     *
+     * @return a request evaluator
+     * @throws ServiceUnavailableException if the queue is full or the wait timed out
+     */
+    RequestEvaluator acquire() {
+        try {
+            // a timed tryAcquire respects fairness, so we don't jump the queue
+            if (!permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                int limit = maxQueued;
+                if (limit >= 0 && permits.getQueueLength() >= limit) {
+                    rejectedCount.incrementAndGet();
+                    throw new ServiceUnavailableException("Maximum request queue length reached.",
+                            retryAfter());
+                }
+                long start = System.nanoTime();
+                boolean acquired = permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+                recordWait(System.nanoTime() - start);
+                if (!acquired) {
+                    rejectedCount.incrementAndGet();
+                    throw new ServiceUnavailableException("Maximum Thread count reached.",
+                            retryAfter());
+                }
+            }
+        } catch (InterruptedException ir) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Thread interrupted.");
+        }
+
+        RequestEvaluator ev = free.pollFirst();
+        if (ev == null) {
+            try {
+                ev = create();
+            } catch (RuntimeException x) {
+                permits.release();
+                throw x;
+            }
+        }
+        return ev;
+    }
+
+    /**
+     * Return an evaluator to the pool and hand it to the longest waiting thread, if any.
+     *
+     * @param ev the evaluator
+     */
+    void release(RequestEvaluator ev) {
+        if (all.size() > maxSize && all.remove(ev)) {
+            // the pool has been shrunk, discard the evaluator
+            ev.stopTransactor();
+        } else {
+            free.addFirst(ev);
+        }
+        permits.release();
+    }
+
+    /**
+     * Add an idle evaluator to the pool, used to preallocate evaluators.
+     *
+     * @param ev the evaluator
+     */
+    void add(RequestEvaluator ev) {
+        all.add(ev);
+        free.addFirst(ev);
+    }
+
+    /**
+     * Resize the pool. Surplus evaluators are discarded as they become idle.
+     *
+     * @param n the new maximum number of evaluators
+     */
+    synchronized void setMaxSize(int n) {
+        if (n < 1 || n == maxSize) {
+            return;
+        }
+        if (n > maxSize) {
+            permits.release(n - maxSize);
+        } else {
+            permits.reducePermits(maxSize - n);
+            // discard idle evaluators we don't need anymore
+            RequestEvaluator ev;
+            while (all.size() > n && (ev = free.pollLast()) != null) {
+                all.remove(ev);
+                ev.stopTransactor();
+            }
+        }
+        maxSize = n;
+    }
+
+    /**
+     * Create a new evaluator, called when no idle evaluator is available
+     * but the pool has not reached its maximum size.
+     */
+    private RequestEvaluator create() {
+        app.logEvent("Starting engine " + (all.size() + 1) + " for " + app.getName());
+        RequestEvaluator ev = new RequestEvaluator(app);
+        all.add(ev);
+        return ev;
+    }
+
+    private void recordWait(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        waitCount.incrementAndGet();
+        waitTime.addAndGet(millis);
+        long max;
+        while (millis > (max = maxWaitTime.get())) {
+            if (maxWaitTime.compareAndSet(max, millis)) {
+                break;
+            }
+        }
+    }
+
+    private int retryAfter() {
+        return (int) Math.max(1L, queueTimeout / 1000L);
+    }
+
+    /**
+     * Discard all evaluators, called when the application is stopped.
+     */
+    void clear() {
+        all.clear();
+        free.clear();
+    }
+
+    /**
+     * @return all evaluators created by this pool
+     */
+    List<RequestEvaluator> getEvaluators() {
+        return all;
+    }
+
+    int size() {
+        return all.size();
+    }
+
+    int countFree() {
+        return free.size();
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int getQueueLength() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Returns a map of statistics about the pool. Wait times are in milliseconds.
+     */
+    Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        long waits = waitCount.get();
+        stats.put("size", all.size());
+        stats.put("free", free.size());
+        stats.put("maxSize", maxSize);
+        stats.put("queueLength", permits.getQueueLength());
+        stats.put("maxQueueLength", maxQueued);
+        stats.put("waitCount", waits);
+        stats.put("averageWaitTime", waits == 0 ? 0L : waitTime.get() / waits);
+        stats.put("maxWaitTime", maxWaitTime.get());
+        stats.put("rejectedCount", rejectedCount.get());
+        return stats;
+    }
+
+    /**
+     * A fair semaphore that allows to reduce the number of permits.
+     */
+    static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 6373528431512496837L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.scripting.ScriptingEngine;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A session store that appends session records to a log file in the
+ * application's db directory. Only sessions that changed since they were last
+ * written are appended, and sessions that were merely used get a small touch
+ * record. An index of the latest record of each session is kept in memory and
+ * rebuilt from the memory-mapped log file on startup, so session data is only
+ * read and deserialized when a session is accessed.
+ *
+ * The log is rewritten with just the live records when outdated records take
+ * up more than half of the file. This is done by the application's scheduler
+ * thread, not by request threads.
+ */
+public class FileSessionStore implements SessionStore {
+
+    static final int MAGIC = 0x48535331;
+
+    // record types
+    static final byte DATA = 1;
+    static final byte TOUCH = 2;
+    static final byte REMOVE = 3;
+
+    // don't bother compacting files smaller than this
+    static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private Application app;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    // read-only mapping of the log, remapped when it has grown
+    private MappedByteBuffer mapped;
+
+    // end of the last complete record
+    private long size;
+
+    // total size of the records referenced from the index
+    private long liveBytes;
+
+    // session id to latest data record
+    private final HashMap index = new HashMap();
+
+    // ids of sessions currently being serialized by store(). remove() takes
+    // a session out of here, so store() knows not to write it afterwards.
+    private final HashSet storing = new HashSet();
+
+    /**
+     * Open the log file in the application's db directory, creating it if
+     * necessary, and build the index from it.
+     */
+    public synchronized void init(Application app) throws IOException {
+        this.app = app;
+        file = new File(app.dbDir, "sessions.log");
+        open();
+
+        if (size == 0) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC).flip();
+            write(header);
+        } else {
+            scan();
+        }
+        app.logEvent("found " + index.size() + " sessions in " + file);
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        size = channel.size();
+        mapped = null;
+    }
+
+    /**
+     * Read the whole log and record the latest state of each session. A partial
+     * record at the end of the file, left over from a crash, is cut off.
+     */
+    private void scan() throws IOException {
+        ByteBuffer buf = map(size);
+        if (size < 4 || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a session store: " + file);
+        }
+
+        long pos = 4;
+        while (pos < size) {
+            if (size - pos < 5) {
+                break;
+            }
+            byte type = buf.get((int) pos);
+            int length = buf.getInt((int) pos + 1);
+            long end = pos + 5 + length;
+            if (length < 0 || end > size) {
+                break;
+            }
+
+            DataInputStream in = new DataInputStream(new BufferInputStream(buf, pos + 5, length));
+            String id = in.readUTF();
+            long lastTouched = in.readLong();
+
+            if (type == DATA) {
+                Entry entry = new Entry();
+                entry.lastTouched = lastTouched;
+                entry.lastModified = in.readLong();
+                entry.uid = in.readBoolean() ? in.readUTF() : null;
+                entry.dataLength = in.readInt();
+                entry.dataOffset = end - entry.dataLength;
+                entry.recordOffset = pos;
+                entry.recordLength = (int) (end - pos);
+                put(id, entry);
+            } else if (type == TOUCH) {
+                Entry entry = (Entry) index.get(id);
+                if (entry != null) {
+                    entry.lastTouched = Math.max(entry.lastTouched, lastTouched);
+                }
+            } else if (type == REMOVE) {
+                Entry entry = (Entry) index.remove(id);
+                if (entry != null) {
+                    liveBytes -= entry.recordLength;
+                }
+            } else {
+                break;
+            }
+            pos = end;
+        }
+
+        if (pos < size) {
+            app.logError("Discarding " + (size - pos) + " bytes of incomplete session data in " + file);
+            channel.truncate(pos);
+            size = pos;
+            mapped = null;
+        }
+    }
+
+    public synchronized boolean contains(String sessionId) {
+        return index.containsKey(sessionId);
+    }
+
+    public synchronized String[] getSessionIds() {
+        return (String[]) index.keySet().toArray(new String[index.size()]);
+    }
+
+    public synchronized String getUID(String sessionId) {
+        Entry entry = (Entry) index.get(sessionId);
+        return entry == null ? null : entry.uid;
+    }
+
+    public synchronized long lastTouched(String sessionId) {
+        Entry entry = (Entry) index.get(sessionId);
+        return entry == null ? 0 : entry.lastTouched;
+    }
+
+    /**
+     * Read and deserialize a session's latest data record.
+     */
+    public Session load(String sessionId, ScriptingEngine engine)
+            throws IOException, ClassNotFoundException {
+        byte[] data;
+        long lastTouched;
+
+        synchronized (this) {
+            Entry entry = (Entry) index.get(sessionId);
+            if (entry == null) {
+                return null;
+            }
+            ByteBuffer buf = map(entry.dataOffset + entry.dataLength).duplicate();
+            buf.position((int) entry.dataOffset);
+            data = new byte[entry.dataLength];
+            buf.get(data);
+            lastTouched = entry.lastTouched;
+        }
+
+        Session session = (Session) engine.deserialize(new ByteArrayInputStream(data));
+        // the session may have been used after its data was last written
+        session.lastTouched = Math.max(session.lastTouched, lastTouched);
+        return session;
+    }
+
+    /**
+     * Append a data record if the session has been modified since it was last
+     * written, or a touch record if it has only been used since.
+     */
+    public boolean store(Session session, ScriptingEngine engine) throws IOException {
+        String id = session.getSessionId();
+        long lastModified = session.lastModified();
+        long lastTouched = session.lastTouched();
+
+        synchronized (this) {
+            Entry entry = (Entry) index.get(id);
+            if (entry != null && entry.lastModified == lastModified) {
+                if (entry.lastTouched >= lastTouched) {
+                    return false;
+                }
+                ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(bout);
+                out.writeUTF(id);
+                out.writeLong(lastTouched);
+                writeRecord(TOUCH, bout);
+                entry.lastTouched = lastTouched;
+                return true;
+            }
+            storing.add(id);
+        }
+
+        // serialize outside the lock, this may take a while for large sessions
+        ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
+        boolean serialized = false;
+        try {
+            engine.serialize(session, data);
+            serialized = true;
+        } finally {
+            if (!serialized) {
+                synchronized (this) {
+                    storing.remove(id);
+                }
+            }
+        }
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(data.size() + 128);
+        DataOutputStream out = new DataOutputStream(bout);
+        String uid = session.getUID();
+        out.writeUTF(id);
+        out.writeLong(lastTouched);
+        out.writeLong(lastModified);
+        out.writeBoolean(uid != null);
+        if (uid != null) {
+            out.writeUTF(uid);
+        }
+        out.writeInt(data.size());
+        data.writeTo(out);
+        out.flush();
+
+        synchronized (this) {
+            // the session was removed while we serialized it
+            if (!storing.remove(id)) {
+                return false;
+            }
+            // the session was changed by a request while we serialized it, so
+            // the data may be inconsistent. it is written on the next run.
+            if (session.lastModified() != lastModified) {
+                return false;
+            }
+            Entry entry = new Entry();
+            entry.recordOffset = size;
+            entry.recordLength = 5 + bout.size();
+            entry.dataLength = data.size();
+            entry.dataOffset = entry.recordOffset + entry.recordLength - entry.dataLength;
+            entry.lastTouched = lastTouched;
+            entry.lastModified = lastModified;
+            entry.uid = uid;
+            writeRecord(DATA, bout);
+            put(id, entry);
+        }
+        return true;
+    }
+
+    public synchronized void remove(String sessionId) throws IOException {
+        storing.remove(sessionId);
+        Entry entry = (Entry) index.remove(sessionId);
+        if (entry != null) {
+            liveBytes -= entry.recordLength;
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeUTF(sessionId);
+            out.writeLong(System.currentTimeMillis());
+            writeRecord(REMOVE, bout);
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Remove expired sessions, and rewrite the log if less than half of it
+     * is taken up by live records.
+     */
+    public synchronized void compact(long oldest) throws IOException {
+        ArrayList expired = new ArrayList();
+        for (Iterator it = index.entrySet().iterator(); it.hasNext();) {
+            Map.Entry e = (Map.Entry) it.next();
+            if (((Entry) e.getValue()).lastTouched < oldest) {
+                expired.add(e.getKey());
+            }
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            remove((String) expired.get(i));
+        }
+
+        if (size < MIN_COMPACT_SIZE || liveBytes * 2 > size) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long oldSize = size;
+        File tmp = new File(file.getPath() + ".tmp");
+        ByteBuffer buf = map(size);
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        HashMap offsets = new HashMap();
+
+        try {
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(4);
+            header.putInt(MAGIC).flip();
+            long pos = writeFully(outChannel, header, 0);
+
+            for (Iterator it = index.entrySet().iterator(); it.hasNext();) {
+                Map.Entry e = (Map.Entry) it.next();
+                Entry entry = (Entry) e.getValue();
+                ByteBuffer record = buf.duplicate();
+                record.limit((int) (entry.recordOffset + entry.recordLength));
+                record.position((int) entry.recordOffset);
+                String id = (String) e.getKey();
+                offsets.put(id, Long.valueOf(pos));
+                long end = writeFully(outChannel, record, pos);
+
+                // carry over the latest touch time, which follows the session id
+                ByteBuffer time = ByteBuffer.allocate(8);
+                time.putLong(entry.lastTouched).flip();
+                writeFully(outChannel, time, pos + 5 + 2 + utfLength(id));
+                pos = end;
+            }
+            outChannel.force(true);
+        } finally {
+            out.close();
+        }
+
+        // swap in the compacted file
+        raf.close();
+        mapped = null;
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        open();
+
+        for (Iterator it = index.entrySet().iterator(); it.hasNext();) {
+            Map.Entry e = (Map.Entry) it.next();
+            Entry entry = (Entry) e.getValue();
+            long offset = ((Long) offsets.get(e.getKey())).longValue();
+            entry.dataOffset += offset - entry.recordOffset;
+            entry.recordOffset = offset;
+        }
+        liveBytes = size - 4;
+
+        app.logEvent("compacted session store from " + oldSize + " to " + size +
+                " bytes in " + (System.currentTimeMillis() - start) + " millis");
+    }
+
+    public synchronized void shutdown() {
+        mapped = null;
+        if (raf != null) {
+            try {
+                channel.force(false);
+                raf.close();
+            } catch (IOException iox) {
+                app.logError("Error closing session store", iox);
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Get a read-only mapping of the log covering at least the given size.
+     */
+    private ByteBuffer map(long minSize) throws IOException {
+        if (mapped == null || mapped.capacity() < minSize) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Session store too large: " + file);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mapped;
+    }
+
+    private void put(String id, Entry entry) {
+        Entry old = (Entry) index.put(id, entry);
+        if (old != null) {
+            liveBytes -= old.recordLength;
+        }
+        liveBytes += entry.recordLength;
+    }
+
+    private void writeRecord(byte type, ByteArrayOutputStream body) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(5 + body.size());
+        buf.put(type).putInt(body.size()).put(body.toByteArray()).flip();
+        write(buf);
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        size = writeFully(channel, buf, size);
+    }
+
+    private static long writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+        return pos;
+    }
+
+    // length of a string in modified UTF-8, as written by DataOutput.writeUTF()
+    private static int utfLength(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The position and metadata of a session's latest data record.
+     */
+    static final class Entry {
+        long recordOffset;
+        int recordLength;
+        long dataOffset;
+        int dataLength;
+        long lastTouched;
+        long lastModified;
+        String uid;
+    }
+
+    /**
+     * An input stream reading a region of a byte buffer.
+     */
+    static final class BufferInputStream extends InputStream {
+        final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buffer, long offset, int length) {
+            buf = buffer.duplicate();
+            buf.limit((int) offset + length);
+            buf.position((int) offset);
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
+}
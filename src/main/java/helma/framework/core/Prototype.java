@@ -23,6 +23,7 @@ import helma.framework.repository.Resource;
 import helma.framework.repository.Repository;
 import helma.framework.repository.ResourceTracker;
 import helma.framework.repository.FileResource;
+import helma.framework.repository.FileRepository;
 import helma.scripting.ScriptingEngine;
 
 import java.io.*;
@@ -48,6 +49,9 @@ public final class Prototype {
     // tells us the checksum of the repositories at the time we last updated them
     long lastChecksum = -1;
 
+    // the checksum of the repositories at the last check if they are all watched
+    long lastWatchedChecksum = -1;
+
     // the time at which any of the prototype's files were found updated the last time
     volatile long lastCodeUpdate = 0;
 
@@ -143,6 +147,14 @@ public final class Prototype {
      * up-to-date and the lastCodeUpdate be set if there has been any changes.
      */
     public synchronized void checkForUpdates() {
+        // if all repositories are watched for changes, there's nothing
+        // to check unless a change has been reported for any of them
+        boolean watched = isWatched();
+        long checksum = watched ? getRepositoryChecksum() : -1;
+        if (watched && checksum == lastWatchedChecksum) {
+            return;
+        }
+
         boolean updatedResources = false;
 
         // check if any resource the prototype knows about has changed or gone
@@ -182,6 +194,26 @@ public final class Prototype {
             lastCodeUpdate = System.currentTimeMillis();
             app.typemgr.setLastCodeUpdate(lastCodeUpdate);
         }
+
+        lastWatchedChecksum = checksum;
+    }
+
+    /**
+     * Returns true if all of this prototype's repositories are file
+     * repositories watched for changes.
+     */
+    boolean isWatched() {
+        if (repositories.isEmpty()) {
+            return false;
+        }
+        for (Iterator i = repositories.iterator(); i.hasNext();) {
+            Object repository = i.next();
+            if (!(repository instanceof FileRepository) ||
+                    !((FileRepository) repository).isWatched()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private boolean checkResource(Resource res, ScriptingEngine engine) {
@@ -337,7 +369,7 @@ public final class Prototype {
             throws IOException {
         Resource res = skinMap.getResource(skinname);
         while (res != null) {
-            Skin skin = Skin.getSkin(res, app);
+            Skin skin = app.skinmgr.getSkin(res);
             if (subskin == null && skin.hasMainskin()) {
                 return skin;
             } else if (subskin != null && skin.hasSubskin(subskin)) {
@@ -529,7 +561,7 @@ public final class Prototype {
             Resource res = (Resource) get(key);
 
             if (res != null) {
-                return Skin.getSkin(res, app);
+                return app.skinmgr.getSkin(res);
             } else {
                 return null;
             }
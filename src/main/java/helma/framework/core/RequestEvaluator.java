@@ -20,8 +20,11 @@ import helma.framework.*;
 import helma.objectmodel.*;
 import helma.objectmodel.db.*;
 import helma.scripting.*;
+import helma.util.BufferPool;
+import helma.util.ContentHash;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.zip.Deflater;
 
 import org.apache.xmlrpc.XmlRpcRequestProcessor;
 import org.apache.xmlrpc.XmlRpcServerRequest;
@@ -58,6 +61,9 @@ public final class RequestEvaluator implements Runnable {
 
     private volatile Transactor transactor;
 
+    // deflater for compressing responses, reused to avoid native memory churn
+    private Deflater deflater;
+
     // the type of request to be serviced,
     // used to coordinate worker and waiter threads
     private volatile int reqtype;
@@ -83,6 +89,37 @@ public final class RequestEvaluator implements Runnable {
     // For numbering threads.
     private int threadId;
 
+    // response buffers recycled across requests served by this evaluator
+    private final BufferPool bufferPool = new BufferPool();
+
+    // hash for automatic ETags of responses served by this evaluator
+    private final ContentHash contentHash = new ContentHash();
+
+    // whether the current transactor thread is a virtual thread
+    private volatile boolean virtualThread;
+
+    // the transactor kept between requests when running on virtual threads,
+    // so db connections don't have to be opened again for each request
+    private Transactor idleTransactor;
+
+    // Thread.ofVirtual() and Thread.Builder.unstarted(), looked up reflectively
+    // because virtual threads are not available on all supported JVMs
+    private static final Method ofVirtual;
+    private static final Method unstarted;
+
+    static {
+        Method m1 = null, m2 = null;
+        try {
+            m1 = Thread.class.getMethod("ofVirtual");
+            m2 = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (Exception x) {
+            // virtual threads not supported by this JVM
+            m1 = m2 = null;
+        }
+        ofVirtual = m1;
+        unstarted = m2;
+    }
+
 
     /**
      *  Create a new RequestEvaluator for this application.
@@ -133,6 +170,28 @@ public final class RequestEvaluator implements Runnable {
         if (scriptingEngine != null) {
             scriptingEngine.shutdown();
         }
+        if (idleTransactor != null) {
+            idleTransactor.closeConnections();
+            idleTransactor = null;
+        }
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /**
+     * Get this evaluator's deflater for compressing responses. The deflater
+     * is reused for all responses, so it must only be used by the thread
+     * holding the evaluator.
+     *
+     * @return a deflater in raw mode
+     */
+    synchronized Deflater getDeflater() {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        return deflater;
     }
 
     /**
@@ -143,6 +202,14 @@ public final class RequestEvaluator implements Runnable {
         // when it's time to quit because another thread took over.
         Thread localThread = Thread.currentThread();
 
+        // pick up the transactor left by the previous virtual thread
+        synchronized (this) {
+            if (idleTransactor != null) {
+                idleTransactor.attach();
+                idleTransactor = null;
+            }
+        }
+
         // spans whole execution loop - close connections in finally clause
         try {
 
@@ -379,6 +446,10 @@ public final class RequestEvaluator implements Runnable {
                                     // set the req.action property, cutting off the _action suffix
                                     req.setAction(action);
 
+                                    // apply response cache settings declared for the action
+                                    app.responseCache.applyTypeSettings(
+                                            app.getPrototype(currentElement), req.getAction(), res);
+
                                     // reset skin recursion detection counter
                                     skinDepth = 0;
 
@@ -639,6 +710,12 @@ public final class RequestEvaluator implements Runnable {
                     }
                 }
 
+                // give pooled db connections back while we wait for the next request
+                Transactor tx = Transactor.getInstance();
+                if (tx != null) {
+                    tx.releaseConnections();
+                }
+
                 notifyAndWait();
 
             }
@@ -682,14 +759,44 @@ public final class RequestEvaluator implements Runnable {
 
         if ((thread == null) || !thread.isAlive()) {
             // app.logEvent ("Starting Thread");
-            thread = new Thread(app.threadgroup, this, app.getName() + "-" + (++threadId));
-            thread.setContextClassLoader(app.getClassLoader());
+            Thread t = app.useVirtualThreads() ? createVirtualThread() : null;
+            virtualThread = t != null;
+            if (t == null) {
+                t = new Thread(app.threadgroup, this);
+            }
+            t.setName(app.getName() + "-" + (++threadId));
+            t.setContextClassLoader(app.getClassLoader());
+            thread = t;
             thread.start();
         } else {
             notifyAll();
         }
     }
 
+    /**
+     * Create a new, unstarted virtual thread running this evaluator.
+     * @return the virtual thread, or null if virtual threads are not supported
+     */
+    private Thread createVirtualThread() {
+        if (ofVirtual == null) {
+            return null;
+        }
+        try {
+            return (Thread) unstarted.invoke(ofVirtual.invoke(null), this);
+        } catch (Exception x) {
+            app.logError("Error creating virtual thread", x);
+            return null;
+        }
+    }
+
+    /**
+     * Check whether the JVM we're running on supports virtual threads.
+     * @return true if virtual threads are available
+     */
+    static boolean supportsVirtualThreads() {
+        return ofVirtual != null;
+    }
+
     /**
      * Tell waiting thread that we're done, then wait for next request
      */
@@ -711,6 +818,21 @@ public final class RequestEvaluator implements Runnable {
         reqtype = NONE;
         notifyAll();
 
+        if (virtualThread) {
+            // virtual threads are cheap to create, so we use one per request
+            // instead of keeping it around waiting for the next one. The
+            // transactor and its db connections are handed on to the next
+            // thread, just like a platform thread keeps them while waiting.
+            Transactor tx = Transactor.getInstance();
+            if (tx != null) {
+                tx.detach();
+                idleTransactor = tx;
+            }
+            thread = null;
+            transactor = null;
+            return;
+        }
+
         try {
             // wait for request, max 10 min
             wait(1000 * 60 * 10);
@@ -740,6 +862,12 @@ public final class RequestEvaluator implements Runnable {
         Transactor t = transactor;
         thread = null;
         transactor = null;
+        // the transactor parked by the last virtual thread isn't used by
+        // any thread, so its connections can just be closed
+        if (idleTransactor != null) {
+            idleTransactor.closeConnections();
+            idleTransactor = null;
+        }
         boolean stopped = false;
         if (t != null && t.isActive()) {
             // let the scripting engine know that the
@@ -753,8 +881,10 @@ public final class RequestEvaluator implements Runnable {
             reqtype = NONE;
 
             t.kill();
+            // the killed thread may still be using its connections, so
+            // they must not go back to the pool before abort() gets them
+            t.discardConnections();
             t.abort();
-            t.closeConnections();
             stopped = true;
         }
         notifyAll();
@@ -780,6 +910,10 @@ public final class RequestEvaluator implements Runnable {
         wait(app.requestTimeout);
 
         if (reqtype != NONE && stopTransactor()) {
+            // the abandoned thread may still be writing to the response,
+            // so it must not share buffers or the hash with later requests
+            res.setBufferPool(null);
+            res.setContentHash(null);
             res.reset();
             res.reportError("Request timed out");
         }
@@ -964,6 +1098,8 @@ public final class RequestEvaluator implements Runnable {
         this.reqtype = HTTP;
         this.session = session;
         res = new ResponseTrans(app, req);
+        res.setBufferPool(bufferPool);
+        res.setContentHash(contentHash);
         result = null;
         exception = null;
     }
@@ -983,6 +1119,8 @@ public final class RequestEvaluator implements Runnable {
         req = new RequestTrans(reqtypeName, functionName);
         session = new Session(functionName, app);
         res = new ResponseTrans(app, req);
+        res.setBufferPool(bufferPool);
+        res.setContentHash(contentHash);
         result = null;
         exception = null;
     }
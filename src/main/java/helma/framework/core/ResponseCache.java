@@ -0,0 +1,345 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.framework.RequestTrans;
+import helma.framework.ResponseTrans;
+import helma.objectmodel.db.DbMapping;
+import helma.util.ResourceProperties;
+import helma.util.StringUtils;
+
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An application-wide, least-recently-used cache of rendered responses to
+ * anonymous GET and HEAD requests. Caching is opt-in per action, either by
+ * declaring a time to live in seconds in the prototype's type.properties:
+ *
+ * <pre>
+ * _cache.main = 60
+ * _cache.main.dependsOn = Story, Comment
+ * </pre>
+ *
+ * or by setting <code>res.cacheTTL</code> and optionally
+ * <code>res.cacheDependencies</code> from the action. Responses are keyed on
+ * host, path, query string and the values of the cookies listed in the
+ * <code>responseCacheCookies</code> app property. A cached response is used
+ * until its time to live has expired, the application's code has been updated,
+ * or the data of any prototype it depends on has changed.
+ *
+ * Only the plain and compressed content, content type, ETag and Last-Modified
+ * header of a response are cached, so responses that set cookies are not
+ * cached, and headers set directly through <code>res.setHeader()</code> are
+ * not replayed.
+ *
+ * The cache size in bytes is set through the <code>responseCacheSize</code> app
+ * property (default 8 MB). A size of 0 disables the cache.
+ */
+final class ResponseCache {
+
+    final Application app;
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    // the sum of cached content lengths and the maximum
+    private long size = 0;
+    private long capacity;
+
+    // cookies whose values are part of the cache key
+    private String[] cookies = new String[0];
+
+    // statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a new response cache.
+     *
+     * @param app the application
+     */
+    ResponseCache(Application app) {
+        this.app = app;
+        updateProperties(app.getProperties());
+    }
+
+    /**
+     * The app properties have been modified, update cache size and key cookies.
+     * Cached responses are dropped since their keys may have changed.
+     */
+    synchronized void updateProperties(ResourceProperties props) {
+        String str = props.getProperty("responseCacheSize", "8388608");
+        try {
+            capacity = Math.max(0, Long.parseLong(str));
+        } catch (NumberFormatException x) {
+            app.logEvent("Couldn't parse responseCacheSize property: " + str);
+            capacity = 8388608;
+        }
+        cookies = StringUtils.split(props.getProperty("responseCacheCookies", ""), ", ");
+        clear();
+    }
+
+    /**
+     * Get the cache key for a request, or null if the response to the
+     * request can't be cached.
+     *
+     * @param req the request
+     * @param session the request's session
+     * @return the cache key, or null
+     */
+    String getKey(RequestTrans req, Session session) {
+        if (capacity == 0 || !("GET".equals(req.getMethod()) || "HEAD".equals(req.getMethod()))) {
+            return null;
+        }
+        HttpServletRequest request = req.getServletRequest();
+        // only anonymous requests without pending session messages
+        if (request == null || session.isLoggedIn() ||
+                session.getMessage() != null || session.getDebugBuffer() != null) {
+            return null;
+        }
+
+        StringBuffer key = new StringBuffer();
+        key.append(request.getMethod()).append(' ')
+           .append(request.getHeader("Host")).append(' ')
+           .append(req.getPath());
+        String query = request.getQueryString();
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        Map cookieMap = req.getCookies();
+        for (int i = 0; i < cookies.length; i++) {
+            Cookie cookie = (Cookie) cookieMap.get(cookies[i]);
+            key.append('\n').append(cookies[i]).append('=');
+            if (cookie != null) {
+                key.append(cookie.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Get a cached response for a request.
+     *
+     * @param key the cache key as returned by getKey()
+     * @param req the request
+     * @return a response with the cached content, or null
+     */
+    ResponseTrans get(String key, RequestTrans req) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && !isValid(entry)) {
+                remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses += 1;
+                return null;
+            }
+            hits += 1;
+        }
+        ResponseTrans res = new ResponseTrans(app, req);
+        res.setCachedContent(entry.content, entry.compressed, entry.contentType,
+                entry.etag, entry.lastModified);
+        return res;
+    }
+
+    /**
+     * Cache a response if its action asked for it and it can be replayed.
+     *
+     * @param key the cache key as returned by getKey()
+     * @param res the closed response
+     * @param codeVersion the application's code version when the request started
+     */
+    void put(String key, ResponseTrans res, long codeVersion) {
+        int ttl = res.getCacheTTL();
+        byte[] content = res.getContent();
+        if (ttl <= 0 || content == null || !res.isCacheable() ||
+                res.getStatus() != 200 || res.getNotModified() ||
+                res.getRedirect() != null || res.getForward() != null ||
+                res.getError() != null || res.countCookies() > 0 ||
+                content.length > capacity) {
+            return;
+        }
+
+        byte[] compressed = res.isCompressed() ? res.getCompressedContent(null) : null;
+        Entry entry = new Entry(content, compressed, res.getContentType(), res.getETag(),
+                res.getLastModified(), System.currentTimeMillis() + ttl * 1000L,
+                codeVersion, getMappings(res.getCacheDependencies()),
+                res.getCacheDataVersion());
+
+        synchronized (this) {
+            remove(key);
+            entries.put(key, entry);
+            size += entry.size();
+            // walk from least to most recently used
+            for (Iterator it = entries.values().iterator(); size > capacity && it.hasNext();) {
+                Entry eldest = (Entry) it.next();
+                it.remove();
+                size -= eldest.size();
+                evictions += 1;
+            }
+        }
+    }
+
+    /**
+     * Apply the cache settings declared for an action in the type.properties
+     * of the prototype it is defined on.
+     *
+     * @param proto the prototype of the object the action is invoked on
+     * @param action the action name without _action suffix
+     * @param res the response
+     */
+    void applyTypeSettings(Prototype proto, String action, ResponseTrans res) {
+        if (capacity == 0 || action == null) {
+            return;
+        }
+        for (Prototype p = proto; p != null; p = p.getParentPrototype()) {
+            ResourceProperties props = p.getTypeProperties();
+            String ttl = props.getProperty("_cache." + action);
+            if (ttl != null) {
+                try {
+                    res.setCacheTTL(Integer.parseInt(ttl.trim()));
+                } catch (NumberFormatException x) {
+                    app.logEvent("Couldn't parse _cache." + action + " in " +
+                            p.getName() + ": " + ttl);
+                    return;
+                }
+                String deps = props.getProperty("_cache." + action + ".dependsOn");
+                if (deps != null) {
+                    res.setCacheDependencies(StringUtils.split(deps, ", "));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the data version of a set of prototypes, which changes
+     * whenever data of any of the prototypes is modified.
+     *
+     * @param prototypes the prototype names
+     * @return the data version
+     */
+    long getDataVersion(String[] prototypes) {
+        return getDataVersion(getMappings(prototypes));
+    }
+
+    private long getDataVersion(DbMapping[] mappings) {
+        long version = 0;
+        for (int i = 0; i < mappings.length; i++) {
+            // data change counters only ever grow, so the sum changes
+            // if any of them does
+            version += mappings[i].getLastDataChange();
+        }
+        return version;
+    }
+
+    private DbMapping[] getMappings(String[] prototypes) {
+        if (prototypes == null) {
+            return new DbMapping[0];
+        }
+        DbMapping[] mappings = new DbMapping[prototypes.length];
+        int count = 0;
+        for (int i = 0; i < prototypes.length; i++) {
+            DbMapping dbmap = app.getDbMapping(prototypes[i]);
+            if (dbmap != null) {
+                mappings[count++] = dbmap;
+            }
+        }
+        if (count < mappings.length) {
+            DbMapping[] copy = new DbMapping[count];
+            System.arraycopy(mappings, 0, copy, 0, count);
+            mappings = copy;
+        }
+        return mappings;
+    }
+
+    private boolean isValid(Entry entry) {
+        return entry.expires > System.currentTimeMillis() &&
+               entry.codeVersion == app.typemgr.getLastCodeUpdate() &&
+               entry.dataVersion == getDataVersion(entry.dependencies);
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size();
+        }
+    }
+
+    /**
+     * Remove all cached responses.
+     */
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns a map of cache statistics.
+     */
+    synchronized Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        long lookups = hits + misses;
+        stats.put("entries", entries.size());
+        stats.put("size", size);
+        stats.put("capacity", capacity);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups);
+        return stats;
+    }
+
+    static final class Entry {
+        final byte[] content;
+        final byte[] compressed;
+        final String contentType;
+        final String etag;
+        final long lastModified;
+        final long expires;
+        final long codeVersion;
+        final DbMapping[] dependencies;
+        final long dataVersion;
+
+        Entry(byte[] content, byte[] compressed, String contentType, String etag,
+              long lastModified, long expires, long codeVersion,
+              DbMapping[] dependencies, long dataVersion) {
+            this.content = content;
+            this.compressed = compressed;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.codeVersion = codeVersion;
+            this.dependencies = dependencies;
+            this.dataVersion = dataVersion;
+        }
+
+        long size() {
+            return content.length + (compressed == null ? 0 : compressed.length);
+        }
+    }
+}
@@ -62,6 +62,11 @@ public class Session implements Serializable {
     protected transient boolean modifiedInRequest = false;
     protected transient boolean registered = false;
 
+    // the session manager's expiry wheel slot holding this session, and the tick
+    // at which it is due. guarded by the session manager's SessionExpiry.
+    transient HashSet expirySlot;
+    transient long expiryTick;
+
     /**
      * Creates a new Session object.
      *
@@ -243,6 +248,9 @@ public class Session implements Serializable {
             }
             modifiedInRequest = false;
             cacheLastModified = cacheNode.lastModified();
+            // make sure the session store notices the change, even if the
+            // session was already modified within the same millisecond
+            lastModified = Math.max(System.currentTimeMillis(), lastModified + 1);
         }
     }
 
@@ -387,6 +395,8 @@ public class Session implements Serializable {
     protected UploadStatus createUpload(String uploadId) {
         if (uploads == null) {
             uploads = new HashMap();
+        } else {
+            pruneUploads();
         }
         UploadStatus status = new UploadStatus();
         uploads.put(uploadId, status);
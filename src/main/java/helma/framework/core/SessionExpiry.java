@@ -0,0 +1,151 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timing wheel holding the sessions of an application by the time
+ * they are due to expire. Each slot of the wheel covers one tick, and sessions
+ * expiring more than one revolution ahead share a slot with earlier ones and
+ * are skipped until their tick comes up.
+ *
+ * Session.touch() only updates the session's timestamp. Instead of moving a
+ * session on every request, a session whose slot comes up is checked against its
+ * last request and put back into the wheel if it has been used in the meantime,
+ * so each active session is looked at about once per timeout period, and the
+ * work done per tick is proportional to the number of sessions due at that tick.
+ */
+final class SessionExpiry {
+
+    private final HashSet[] wheel;
+    private final long tickMillis;
+
+    // the last tick that has been processed
+    private long currentTick;
+
+    /**
+     * Create a new timing wheel.
+     *
+     * @param slots the number of slots
+     * @param tickMillis the duration of a tick in milliseconds
+     */
+    SessionExpiry(int slots, long tickMillis) {
+        this.tickMillis = tickMillis;
+        wheel = new HashSet[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new HashSet();
+        }
+        currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * Returns the duration of a tick in milliseconds.
+     */
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Put a session into the wheel, or move it if it's already contained.
+     *
+     * @param session the session
+     * @param deadline the time at which the session expires
+     */
+    synchronized void schedule(Session session, long deadline) {
+        // round up so sessions are never checked before their deadline
+        long tick = Math.max(currentTick + 1, (deadline + tickMillis - 1) / tickMillis);
+        HashSet slot = wheel[(int) (tick % wheel.length)];
+        if (session.expirySlot != slot) {
+            if (session.expirySlot != null) {
+                session.expirySlot.remove(session);
+            }
+            slot.add(session);
+            session.expirySlot = slot;
+        }
+        session.expiryTick = tick;
+    }
+
+    /**
+     * Remove a session from the wheel.
+     *
+     * @param session the session
+     */
+    synchronized void remove(Session session) {
+        if (session.expirySlot != null) {
+            session.expirySlot.remove(session);
+            session.expirySlot = null;
+        }
+    }
+
+    /**
+     * Advance the wheel to the current time and return the sessions that have
+     * not been used within the timeout. Sessions due at a passed tick that have
+     * been used since are rescheduled. Returned sessions are removed from the wheel.
+     *
+     * @param now the current time
+     * @param timeout the session timeout in milliseconds
+     * @return the list of expired sessions
+     */
+    synchronized List expire(long now, long timeout) {
+        List expired = new ArrayList();
+        List active = new ArrayList();
+        long nowTick = now / tickMillis;
+
+        // visit each slot at most once, even if we've fallen behind more than a revolution
+        long first = Math.max(currentTick + 1, nowTick - wheel.length + 1);
+        for (long tick = first; tick <= nowTick; tick++) {
+            HashSet slot = wheel[(int) (tick % wheel.length)];
+            for (Iterator it = slot.iterator(); it.hasNext();) {
+                Session session = (Session) it.next();
+                if (session.expiryTick > nowTick) {
+                    // due in a later revolution
+                    continue;
+                }
+                it.remove();
+                session.expirySlot = null;
+                if (now - session.lastTouched() > timeout) {
+                    expired.add(session);
+                } else {
+                    active.add(session);
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+
+        for (int i = 0; i < active.size(); i++) {
+            Session session = (Session) active.get(i);
+            schedule(session, session.lastTouched() + timeout);
+        }
+        return expired;
+    }
+
+    /**
+     * Remove all sessions from the wheel.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < wheel.length; i++) {
+            for (Iterator it = wheel[i].iterator(); it.hasNext();) {
+                ((Session) it.next()).expirySlot = null;
+            }
+            wheel[i].clear();
+        }
+    }
+}
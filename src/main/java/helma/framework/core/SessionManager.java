@@ -29,16 +29,58 @@ public class SessionManager {
 
     protected Application app;
 
+    // persistent session storage, if persistentSessions is enabled
+    protected SessionStore store;
+
+    // sessions by expiry time, in ticks of 10 seconds
+    protected SessionExpiry expiry = new SessionExpiry(512, 10000);
+
+    // the session timeout the sessions in the expiry wheel are scheduled with
+    protected volatile long scheduledTimeout;
+
+    // the thread expiring sessions
+    protected volatile Thread expiryThread;
+
+    // held while expiring a stored session, so onLogout() is only called once
+    private final Object storeExpiryLock = new Object();
+
     public SessionManager() {
         sessions = new Hashtable();
     }
 
     public void init(Application app) {
         this.app = app;
+        scheduledTimeout = getSessionTimeout();
+
+        expiryThread = new Thread(new ExpiryRunner(), "SessionExpiry-" + app.getName());
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+
+        if ("true".equalsIgnoreCase(app.getProperty("persistentSessions"))) {
+            String storeImpl = app.getProperty("sessionStoreImpl",
+                                               "helma.framework.core.FileSessionStore");
+            try {
+                store = (SessionStore) Class.forName(storeImpl).newInstance();
+                store.init(app);
+            } catch (Exception x) {
+                app.logError("Error opening session store " + storeImpl, x);
+                store = null;
+            }
+        }
     }
 
     public void shutdown() {
+        Thread thread = expiryThread;
+        expiryThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        expiry.clear();
         sessions.clear();
+        if (store != null) {
+            store.shutdown();
+            store = null;
+        }
     }
 
     public Session createSession(String sessionId) {
@@ -53,11 +95,219 @@ public class SessionManager {
         if (sessionId == null) {
             return null;
         }
-        return (Session) sessions.get(sessionId);
+        Session session = (Session) sessions.get(sessionId);
+        if (session == null && store != null && store.contains(sessionId)) {
+            session = loadSession(sessionId);
+        }
+        return session;
+    }
+
+    /**
+     * Read a session from the session store on its first access after startup.
+     *
+     * @param sessionId the session id
+     * @return the session, or null if it couldn't be loaded or has expired
+     */
+    protected Session loadSession(String sessionId) {
+        SessionStore store = this.store;
+        if (store == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - store.lastTouched(sessionId) > getSessionTimeout()) {
+            expireStoredSession(sessionId, null);
+            return null;
+        }
+
+        Session session = readStoredSession(sessionId);
+        if (session == null) {
+            return null;
+        }
+        session.registered = true;
+
+        synchronized (sessions) {
+            // another thread may have loaded the session in the meantime
+            Session other = (Session) sessions.get(sessionId);
+            if (other != null) {
+                return other;
+            }
+            sessions.put(sessionId, session);
+        }
+        scheduleExpiry(session);
+        return session;
+    }
+
+    /**
+     * Read and deserialize a session from the session store without
+     * registering it.
+     *
+     * @param sessionId the session id
+     * @return the session, or null if it couldn't be read
+     */
+    private Session readStoredSession(String sessionId) {
+        SessionStore store = this.store;
+        if (store == null) {
+            return null;
+        }
+
+        // deserializing needs a scripting engine and a transactor to resolve
+        // HopObjects. Use the current request's if we're called from a script.
+        RequestEvaluator reval = app.getCurrentRequestEvaluator();
+        RequestEvaluator ev = null;
+        Transactor tx = Transactor.getInstance();
+        boolean ownTx = tx == null || !tx.isActive();
+
+        try {
+            if (reval == null) {
+                ev = reval = app.getEvaluator();
+                ev.initScriptingEngine();
+            }
+            if (ownTx) {
+                tx = Transactor.getInstance(app.getNodeManager());
+                tx.begin("sessionloader");
+            }
+            Session session = store.load(sessionId, reval.scriptingEngine);
+            if (ownTx) {
+                tx.commit();
+            }
+            if (session != null) {
+                session.setApp(app);
+            }
+            return session;
+        } catch (Exception x) {
+            app.logError("Error loading session " + sessionId, x);
+            if (ownTx && tx != null) {
+                tx.abort();
+            }
+            return null;
+        } finally {
+            if (ownTx && tx != null) {
+                tx.closeConnections();
+            }
+            if (ev != null) {
+                app.releaseEvaluator(ev);
+            }
+        }
+    }
+
+    /**
+     * Load the stored sessions that haven't been accessed since startup.
+     *
+     * @param uid only load sessions of this user, or null
+     * @param loggedIn only load sessions that are logged in
+     */
+    protected void loadStoredSessions(String uid, boolean loggedIn) {
+        SessionStore store = this.store;
+        if (store == null) {
+            return;
+        }
+        String[] ids = store.getSessionIds();
+        for (int i = 0; i < ids.length; i++) {
+            if (sessions.containsKey(ids[i])) {
+                continue;
+            }
+            String storedUid = store.getUID(ids[i]);
+            if ((uid == null || uid.equals(storedUid)) && (!loggedIn || storedUid != null)) {
+                loadSession(ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Expire the stored sessions that have not been used since the given time
+     * and haven't been accessed since startup. These sessions are not in the
+     * expiry wheel, so this is called periodically before the session store
+     * is compacted, which would drop them without calling onLogout().
+     *
+     * @param oldest sessions last used before this time are expired
+     * @param ev the evaluator to call onLogout() with, or null
+     */
+    protected void expireStoredSessions(long oldest, RequestEvaluator ev) {
+        SessionStore store = this.store;
+        if (store == null) {
+            return;
+        }
+        String[] ids = store.getSessionIds();
+        for (int i = 0; i < ids.length; i++) {
+            if (!sessions.containsKey(ids[i]) && store.lastTouched(ids[i]) < oldest) {
+                expireStoredSession(ids[i], ev);
+            }
+        }
+    }
+
+    /**
+     * Remove an expired session from the session store. If the session is
+     * logged in, it is read from the store to call onLogout() for its user
+     * first, just like for sessions expired from memory.
+     *
+     * @param sessionId the session id
+     * @param ev the evaluator to call onLogout() with, or null to use a new one
+     */
+    private void expireStoredSession(String sessionId, RequestEvaluator ev) {
+        SessionStore store = this.store;
+        if (store == null) {
+            return;
+        }
+        synchronized (storeExpiryLock) {
+            // another thread may have expired or loaded the session meanwhile
+            if (!store.contains(sessionId) || sessions.containsKey(sessionId)) {
+                return;
+            }
+            if (store.getUID(sessionId) != null) {
+                Session session = readStoredSession(sessionId);
+                if (session != null && session.userHandle != null) {
+                    RequestEvaluator thisEvaluator = ev;
+                    try {
+                        if (thisEvaluator == null) {
+                            thisEvaluator = app.getEvaluator();
+                        }
+                        Object[] param = {sessionId};
+                        thisEvaluator.invokeInternal(session.userHandle, "onLogout", param);
+                    } catch (Exception x) {
+                        app.logError("Error in onLogout", x);
+                    } finally {
+                        if (ev == null && thisEvaluator != null) {
+                            app.releaseEvaluator(thisEvaluator);
+                        }
+                    }
+                }
+            }
+            removeStoredSession(sessionId);
+        }
+    }
+
+    /**
+     * Remove a session from the session store.
+     */
+    private void removeStoredSession(String sessionId) {
+        SessionStore store = this.store;
+        if (store != null) {
+            try {
+                store.remove(sessionId);
+            } catch (IOException iox) {
+                app.logError("Error removing session " + sessionId + " from session store", iox);
+            }
+        }
+    }
+
+    /**
+     * Get the session timeout in milliseconds from the sessionTimeout app property.
+     */
+    protected long getSessionTimeout() {
+        int sessionTimeout = 30;
+
+        try {
+            sessionTimeout = Math.max(0,
+                    Integer.parseInt(app.getProperty("sessionTimeout", "30")));
+        } catch (NumberFormatException nfe) {
+            // use default
+        }
+        return sessionTimeout * 60000L;
     }
 
     public void registerSession(Session session) {
-        sessions.put(session.getSessionId(), session);        
+        sessions.put(session.getSessionId(), session);
+        scheduleExpiry(session);
     }
 
     /**
@@ -66,6 +316,7 @@ public class SessionManager {
      * It is safe and allowed to manipulate the session objects contained in the table, though.
      */
     public Map getSessions() {
+        loadStoredSessions(null, false);
         return (Map) sessions.clone();
     }
 
@@ -73,7 +324,18 @@ public class SessionManager {
      * Returns the number of currenty active sessions.
      */
     public int countSessions() {
-        return sessions.size();
+        int count = sessions.size();
+        SessionStore store = this.store;
+        if (store != null) {
+            // count stored sessions not accessed since startup
+            String[] ids = store.getSessionIds();
+            for (int i = 0; i < ids.length; i++) {
+                if (!sessions.containsKey(ids[i])) {
+                    count += 1;
+                }
+            }
+        }
+        return count;
     }
 
     /**
@@ -82,6 +344,8 @@ public class SessionManager {
     public void discardSession(Session session) {
         session.logout();
         sessions.remove(session.getSessionId());
+        expiry.remove(session);
+        removeStoredSession(session.getSessionId());
     }
 
 
@@ -96,6 +360,7 @@ public class SessionManager {
             return list;
         }
 
+        loadStoredSessions(username, true);
         Enumeration e = sessions.elements();
         while (e.hasMoreElements()) {
             Session s = (Session) e.nextElement();
@@ -116,6 +381,7 @@ public class SessionManager {
     public List getActiveUsers() {
         ArrayList list = new ArrayList();
 
+        loadStoredSessions(null, true);
         for (Enumeration e = sessions.elements(); e.hasMoreElements();) {
             Session s = (Session) e.nextElement();
 
@@ -141,6 +407,11 @@ public class SessionManager {
      * @param f the file to write session into, or null to use the default sesssion store.
      */
     public void storeSessionData(File f, ScriptingEngine engine) {
+        if (f == null && store != null) {
+            int count = persistSessions(engine);
+            app.logEvent("stored " + count + " changed sessions in session store");
+            return;
+        }
         if (f == null) {
             f = new File(app.dbDir, "sessions");
         }
@@ -175,6 +446,16 @@ public class SessionManager {
      * loads the serialized session table from a given file or from dbdir/sessions
      */
     public void loadSessionData(File f, ScriptingEngine engine) {
+        // with a session store, sessions are loaded on demand. we only
+        // import a session file written by a previous version, if any.
+        boolean importing = false;
+        if (f == null && store != null) {
+            f = new File(app.dbDir, "sessions");
+            if (!f.exists()) {
+                return;
+            }
+            importing = true;
+        }
         if (f == null) {
             f = new File(app.dbDir, "sessions");
         }
@@ -216,8 +497,15 @@ public class SessionManager {
             p.close();
             istream.close();
             sessions = newSessions;
+            for (Enumeration e = newSessions.elements(); e.hasMoreElements();) {
+                scheduleExpiry((Session) e.nextElement());
+            }
             app.logEvent("loaded " + newSessions.size() + " sessions from file");
             tx.commit();
+
+            if (importing && persistSessions(engine) >= 0) {
+                f.delete();
+            }
         } catch (FileNotFoundException fnf) {
             // suppress error message if session file doesn't exist
             tx.abort();
@@ -231,71 +519,160 @@ public class SessionManager {
     }
 
     /**
-     * Purge sessions that have not been used for a certain amount of time.
-     * This is called by run().
+     * Write sessions that changed since they were last stored to the session
+     * store, then remove expired sessions from the store and compact it.
+     *
+     * @param engine the scripting engine to serialize sessions with
+     * @return the number of sessions written, or -1 if writing to the store failed
+     */
+    protected int persistSessions(ScriptingEngine engine) {
+        SessionStore store = this.store;
+        if (store == null) {
+            return -1;
+        }
+
+        // work on a copy so request threads aren't blocked while we write
+        Session[] sessionArray = (Session[]) sessions.values().toArray(new Session[0]);
+        int count = 0;
+
+        try {
+            for (int i = 0; i < sessionArray.length; i++) {
+                try {
+                    if (store.store(sessionArray[i], engine)) {
+                        count += 1;
+                    }
+                } catch (NotSerializableException nsx) {
+                    // not serializable, skip this session
+                    app.logError("Error serializing session.", nsx);
+                } catch (RuntimeException rx) {
+                    // the session was probably modified by a request while
+                    // being serialized. it is written again on the next run.
+                    app.logError("Error serializing session " +
+                            sessionArray[i].getSessionId(), rx);
+                }
+            }
+            store.flush();
+            store.compact(System.currentTimeMillis() - getSessionTimeout());
+        } catch (IOException iox) {
+            app.logError("Error writing session store", iox);
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Purge sessions that have not been used for a certain amount of time, and
+     * write changed sessions to the session store. This is called by the session
+     * expiry thread once per tick of the expiry wheel.
      *
-     * @param lastSessionCleanup the last time sessions were purged
+     * @param lastSessionCleanup the last time sessions were written to the store
      * @return the updated lastSessionCleanup value
      */
     protected long cleanupSessions(long lastSessionCleanup) {
 
         long now = System.currentTimeMillis();
-        long sessionCleanupInterval = 60000;
-
-        // check if we should clean up user sessions
-        if ((now - lastSessionCleanup) > sessionCleanupInterval) {
+        long sessionStoreInterval = 60000;
+        long timeout = getSessionTimeout();
+
+        if (timeout != scheduledTimeout) {
+            // timeout has changed, reschedule all sessions
+            scheduledTimeout = timeout;
+            Session[] sessionArray = (Session[]) sessions.values().toArray(new Session[0]);
+            for (int i = 0; i < sessionArray.length; i++) {
+                expiry.schedule(sessionArray[i], sessionArray[i].lastTouched() + timeout);
+            }
+        }
 
-            // get session timeout
-            int sessionTimeout = 30;
+        List expired = expiry.expire(now, timeout);
+        boolean persist = store != null && (now - lastSessionCleanup) > sessionStoreInterval;
 
-            try {
-                sessionTimeout = Math.max(0,
-                        Integer.parseInt(app.getProperty("sessionTimeout", "30")));
-            } catch (NumberFormatException nfe) {
-                app.logEvent("Invalid sessionTimeout setting: " + app.getProperty("sessionTimeout"));
-            }
+        // only take an evaluator if we have to call onLogout() or serialize sessions
+        boolean needEvaluator = persist;
+        for (int i = 0; i < expired.size() && !needEvaluator; i++) {
+            needEvaluator = ((Session) expired.get(i)).userHandle != null;
+        }
 
-            RequestEvaluator thisEvaluator = null;
+        RequestEvaluator thisEvaluator = null;
 
-            try {
+        try {
 
+            if (needEvaluator) {
                 thisEvaluator = app.getEvaluator();
+            }
 
-                Session[] sessionArray = (Session[]) sessions.values().toArray(new Session[0]);
-
-                for (int i = 0; i < sessionArray.length; i++) {
-                    Session session = sessionArray[i];
+            for (int i = 0; i < expired.size(); i++) {
+                Session session = (Session) expired.get(i);
 
-                    session.pruneUploads();
-                    if ((now - session.lastTouched()) > (sessionTimeout * 60000)) {
-                        NodeHandle userhandle = session.userHandle;
+                // the session may have been used again since it was found expired
+                if ((now - session.lastTouched()) <= timeout) {
+                    expiry.schedule(session, session.lastTouched() + timeout);
+                    continue;
+                }
 
-                        if (userhandle != null) {
-                            try {
-                                Object[] param = {session.getSessionId()};
+                NodeHandle userhandle = session.userHandle;
 
-                                thisEvaluator.invokeInternal(userhandle, "onLogout", param);
-                            } catch (Exception x) {
-                                // errors should already be logged by requestevaluator, but you never know
-                                app.logError("Error in onLogout", x);
-                            }
-                        }
+                if (userhandle != null) {
+                    try {
+                        Object[] param = {session.getSessionId()};
 
-                        discardSession(session);
+                        thisEvaluator.invokeInternal(userhandle, "onLogout", param);
+                    } catch (Exception x) {
+                        // errors should already be logged by requestevaluator, but you never know
+                        app.logError("Error in onLogout", x);
                     }
                 }
-            } catch (Exception cx) {
-                app.logError("Error cleaning up sessions", cx);
-            } finally {
-                if (thisEvaluator != null) {
-                    app.releaseEvaluator(thisEvaluator);
-                }
+
+                discardSession(session);
+            }
+
+            // write sessions changed since the last run to the session store
+            if (persist) {
+                // stored sessions nobody asked for since startup aren't in the
+                // expiry wheel. expire them before the store drops them.
+                expireStoredSessions(now - timeout, thisEvaluator);
+                thisEvaluator.initScriptingEngine();
+                persistSessions(thisEvaluator.scriptingEngine);
+                lastSessionCleanup = now;
+            }
+        } catch (Exception cx) {
+            app.logError("Error cleaning up sessions", cx);
+        } finally {
+            if (thisEvaluator != null) {
+                app.releaseEvaluator(thisEvaluator);
             }
-            return now;
-        } else {
-            return lastSessionCleanup;
         }
+        return lastSessionCleanup;
     }
 
+    /**
+     * Put a session into the expiry wheel, based on its last request.
+     */
+    protected void scheduleExpiry(Session session) {
+        expiry.schedule(session, session.lastTouched() + scheduledTimeout);
+    }
+
+    /**
+     * The session expiry thread, which runs cleanupSessions() once per tick.
+     */
+    class ExpiryRunner implements Runnable {
+        public void run() {
+            long lastSessionCleanup = System.currentTimeMillis();
+
+            while (expiryThread == Thread.currentThread()) {
+                try {
+                    Thread.sleep(expiry.getTickMillis());
+                } catch (InterruptedException ir) {
+                    break;
+                }
 
+                try {
+                    lastSessionCleanup = cleanupSessions(lastSessionCleanup);
+                } catch (Exception x) {
+                    app.logError("Error in session cleanup: " + x, x);
+                } catch (LinkageError x) {
+                    app.logError("Error in session cleanup: " + x, x);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import helma.scripting.ScriptingEngine;
+
+import java.io.IOException;
+
+/**
+ * Persistent storage for sessions, used by the {@link SessionManager} if the
+ * <code>persistentSessions</code> app property is set to true. Sessions are
+ * written as they change and read back individually on first access, so the
+ * session table doesn't need to be dumped and read in one piece.
+ *
+ * The implementation class is set through the <code>sessionStoreImpl</code>
+ * app property and defaults to {@link FileSessionStore}.
+ */
+public interface SessionStore {
+
+    /**
+     * Open the store.
+     *
+     * @param app the application
+     * @throws IOException if the store couldn't be opened
+     */
+    public void init(Application app) throws IOException;
+
+    /**
+     * Check whether a session is contained in the store.
+     *
+     * @param sessionId the session id
+     * @return true if the session is stored
+     */
+    public boolean contains(String sessionId);
+
+    /**
+     * Get the ids of all stored sessions.
+     *
+     * @return the session ids
+     */
+    public String[] getSessionIds();
+
+    /**
+     * Get the user name a stored session was logged in with.
+     *
+     * @param sessionId the session id
+     * @return the user name, or null if the session is not logged in or not stored
+     */
+    public String getUID(String sessionId);
+
+    /**
+     * Get the time a stored session was last used.
+     *
+     * @param sessionId the session id
+     * @return the time of the last request, or 0 if the session is not stored
+     */
+    public long lastTouched(String sessionId);
+
+    /**
+     * Read a session from the store.
+     *
+     * @param sessionId the session id
+     * @param engine the scripting engine to deserialize the session with
+     * @return the session, or null if the session is not stored
+     * @throws IOException if the session couldn't be read
+     * @throws ClassNotFoundException if a class of the serialized session is missing
+     */
+    public Session load(String sessionId, ScriptingEngine engine)
+            throws IOException, ClassNotFoundException;
+
+    /**
+     * Write a session to the store if it has changed since it was last written.
+     *
+     * @param session the session
+     * @param engine the scripting engine to serialize the session with
+     * @return true if anything was written
+     * @throws IOException if the session couldn't be written
+     */
+    public boolean store(Session session, ScriptingEngine engine) throws IOException;
+
+    /**
+     * Remove a session from the store.
+     *
+     * @param sessionId the session id
+     * @throws IOException if the removal couldn't be recorded
+     */
+    public void remove(String sessionId) throws IOException;
+
+    /**
+     * Make sure all written sessions are on disk.
+     *
+     * @throws IOException if the store couldn't be flushed
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Remove sessions that have not been used since the given time and
+     * reclaim the space used by outdated session data.
+     *
+     * @param oldest sessions last used before this time are removed
+     * @throws IOException if the store couldn't be compacted
+     */
+    public void compact(long oldest) throws IOException;
+
+    /**
+     * Close the store.
+     */
+    public void shutdown();
+}
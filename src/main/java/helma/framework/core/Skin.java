@@ -118,6 +118,25 @@ public final class Skin {
         parse();
     }
 
+    /**
+     *  Copy constructor. The copy shares the parsed content of the original
+     *  skin but has its own sandbox.
+     */
+    private Skin(Skin skin) {
+        this.app = skin.app;
+        this.sandbox = skin.sandbox == null ? null : new HashSet(skin.sandbox);
+        this.source = skin.source;
+        this.offset = skin.offset;
+        this.length = skin.length;
+        this.macros = skin.macros;
+        this.subskins = skin.subskins;
+        this.extendz = skin.extendz;
+        this.hasContent = skin.hasContent;
+        if (skin.parentSkin != skin) {
+            this.parentSkin = skin.parentSkin;
+        }
+    }
+
     public static Skin getSkin(Resource res, Application app) throws IOException {
         String encoding = app.getProperty("skinCharset");
         Reader reader;
@@ -246,7 +265,7 @@ public final class Skin {
                 throws RedirectException, UnsupportedEncodingException {
         String result = "";
         ResponseTrans res = reval.getResponse();
-        res.pushBuffer(null);
+        res.push();
         try {
             render(reval, thisObject, paramObject);
         } finally {
@@ -286,7 +305,7 @@ public final class Skin {
             if (macros.length > 3) {
                 handlerCache = new HashMap();
             }
-            RenderContext cx = new RenderContext(reval, thisObject, handlerCache);
+            RenderContext cx = new RenderContext(reval, thisObject, handlerCache, sandbox);
 
             for (int i = 0; i < macros.length; i++) {
                 if (macros[i].start > written) {
@@ -328,6 +347,15 @@ public final class Skin {
         return false;
     }
 
+    /**
+     *  Return a copy of this skin that can be modified through allowMacro()
+     *  without affecting this skin. Skins are shared through the skin cache,
+     *  so skins handed out to scripts are copies.
+     */
+    public Skin copy() {
+        return new Skin(this);
+    }
+
     /**
      *  Adds a macro to the list of allowed macros. The macro is in handler.name notation.
      */
@@ -663,7 +691,7 @@ public final class Skin {
                 return null;
             }
 
-            if ((sandbox != null) && !sandbox.contains(name)) {
+            if ((cx.sandbox != null) && !cx.sandbox.contains(name)) {
                 throw new MacroException("Macro not allowed in sandbox: " + name);
             }
 
@@ -752,7 +780,7 @@ public final class Skin {
             Object value = invokeAsMacro(cx, stdParams, true);
             if (stdParams.prefix != null || stdParams.suffix != null) {
                 ResponseTrans res = cx.reval.getResponse();
-                res.pushBuffer(null);
+                res.push();
                 writeResponse(value, cx.reval, stdParams, true);
                 return res.popString();
             } else if (stdParams.defaultValue != null &&
@@ -768,9 +796,13 @@ public final class Skin {
          */
         void render(RenderContext cx)
                 throws RedirectException, UnsupportedEncodingException {
-            StringBuffer buffer = cx.reval.getResponse().getBuffer();
+            ResponseTrans res = cx.reval.getResponse();
+            StringBuffer buffer = res.getBuffer();
             // remember length of response buffer before calling macro
             int bufLength = buffer.length();
+            // keep streamed responses from writing out the buffer while we
+            // may still need to insert into or truncate it
+            res.lockBuffer();
             try {
                 StandardParams stdParams = standardParams.render(cx);
                 boolean asObject = filterChain != null;
@@ -824,6 +856,8 @@ public final class Skin {
                         .append(": ").append(msg).toString();
                 cx.reval.getResponse().write(" [" + msg + "] ");
                 app.logError(msg, x);
+            } finally {
+                res.unlockBuffer();
             }
         }
 
@@ -842,7 +876,7 @@ public final class Skin {
 
             if (name == null) {
                 throw new MacroException("Empty macro filter");
-            } else if (sandbox != null && !sandbox.contains(name)) {
+            } else if (cx.sandbox != null && !cx.sandbox.contains(name)) {
                 throw new MacroException("Macro not allowed in sandbox: " + name);
             }
             Object handlerObject = null;
@@ -1115,11 +1149,14 @@ public final class Skin {
         final RequestEvaluator reval;
         final Object thisObject;
         final Map handlerCache;
+        final HashSet sandbox;
 
-        RenderContext(RequestEvaluator reval, Object thisObject, Map handlerCache) {
+        RenderContext(RequestEvaluator reval, Object thisObject, Map handlerCache,
+                      HashSet sandbox) {
             this.reval = reval;
             this.thisObject = thisObject;
             this.handlerCache = handlerCache;
+            this.sandbox = sandbox;
         }
 
         private Object resolveHandler(String handlerName, int handlerType) {
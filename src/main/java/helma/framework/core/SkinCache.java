@@ -0,0 +1,146 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An application-wide, least-recently-used cache of parsed skins. Entries are
+ * validated against a version stamp on lookup, which is the last modification
+ * time of a skin resource, or the skin source of a database skin. Parsed skins
+ * are never modified after construction, so they can be shared by concurrent
+ * requests. Skins handed out to scripts are copies made with Skin.copy(), so
+ * changes to their sandbox don't leak into the cached skin.
+ *
+ * The cache size is set through the <code>skinCacheSize</code> app property
+ * (default 1000). A size of 0 disables the cache.
+ */
+final class SkinCache {
+
+    private final LinkedHashMap<Object, Entry> entries;
+    private int capacity;
+
+    // statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a new skin cache.
+     *
+     * @param capacity the maximum number of skins to keep
+     */
+    SkinCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3530521342350384307L;
+
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                if (size() > SkinCache.this.capacity) {
+                    evictions += 1;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a cached skin.
+     *
+     * @param key the skin key
+     * @param version the current version of the skin, compared using equals()
+     * @return the cached skin, or null if it isn't cached or is outdated
+     */
+    synchronized Skin get(Object key, Object version) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version.equals(version)) {
+            hits += 1;
+            return entry.skin;
+        }
+        misses += 1;
+        return null;
+    }
+
+    /**
+     * Add a parsed skin to the cache.
+     *
+     * @param key the skin key
+     * @param version the version of the skin
+     * @param skin the parsed skin
+     */
+    synchronized void put(Object key, Object version, Skin skin) {
+        if (capacity > 0) {
+            entries.put(key, new Entry(version, skin));
+        }
+    }
+
+    /**
+     * Set the maximum number of cached skins, evicting the least recently used
+     * skins if necessary.
+     *
+     * @param capacity the new capacity
+     */
+    synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        if (entries.size() > capacity) {
+            // walk from least to most recently used
+            int surplus = entries.size() - capacity;
+            Iterator it = entries.keySet().iterator();
+            while (surplus-- > 0 && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions += 1;
+            }
+        }
+    }
+
+    /**
+     * Remove all cached skins.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns a map of cache statistics.
+     */
+    synchronized Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        long lookups = hits + misses;
+        stats.put("size", entries.size());
+        stats.put("capacity", capacity);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups);
+        return stats;
+    }
+
+    static final class Entry {
+        final Object version;
+        final Skin skin;
+
+        Entry(Object version, Skin skin) {
+            this.version = version;
+            this.skin = skin;
+        }
+    }
+}
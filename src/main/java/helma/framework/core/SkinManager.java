@@ -17,9 +17,13 @@
 package helma.framework.core;
 
 import helma.objectmodel.INode;
+import helma.objectmodel.db.Node;
 import helma.framework.repository.FileResource;
+import helma.framework.repository.Resource;
+import helma.util.ResourceProperties;
 
 import java.io.*;
+import java.util.Map;
 
 /**
  * Manages skins for a Helma application
@@ -30,6 +34,8 @@ public final class SkinManager implements FilenameFilter {
     final String skinProperty;
     // the file name extension for skin files
     final String skinExtension;
+    // parsed skins shared by all requests
+    final SkinCache cache;
 
     /**
      * Creates a new SkinManager object.
@@ -40,6 +46,81 @@ public final class SkinManager implements FilenameFilter {
         this.app = app;
         skinProperty = app.getProperty("skinProperty", "skin");
         skinExtension = ".skin";
+        cache = new SkinCache(getCacheSize(app.getProperties()));
+    }
+
+    /**
+     * The app properties have been modified, update the skin cache size.
+     * Cached skins are dropped since they may have been parsed with a
+     * different skinCharset.
+     */
+    void updateProperties(ResourceProperties props) {
+        cache.clear();
+        cache.setCapacity(getCacheSize(props));
+    }
+
+    private int getCacheSize(ResourceProperties props) {
+        String size = props.getProperty("skinCacheSize", "1000");
+        try {
+            return Math.max(0, Integer.parseInt(size));
+        } catch (NumberFormatException x) {
+            app.logEvent("Couldn't parse skinCacheSize property: " + size);
+            return 1000;
+        }
+    }
+
+    /**
+     * Get the parsed skin for a skin resource, reading and parsing the resource
+     * only if it isn't cached yet or has been modified since it was cached.
+     *
+     * @param res the skin resource
+     * @return the parsed skin
+     */
+    public Skin getSkin(Resource res) throws IOException {
+        Long lastModified = Long.valueOf(res.lastModified());
+        Skin skin = cache.get(res, lastModified);
+        if (skin == null) {
+            skin = Skin.getSkin(res, app);
+            cache.put(res, lastModified, skin);
+        }
+        return skin;
+    }
+
+    /**
+     * Get the parsed skin for the source of a database skin. Skins of persistent
+     * nodes are cached by node key and reused as long as the source is unchanged.
+     *
+     * @param node the node containing the skin
+     * @param source the skin source
+     * @return the parsed skin
+     */
+    private Skin getSkin(INode node, String source) {
+        if (!(node instanceof Node)) {
+            return new Skin(source, app);
+        }
+        Object key = ((Node) node).getKey();
+        // comparing the source itself is cheap as long as the property is
+        // unchanged, and catches updates within the node's timestamp resolution
+        Skin skin = cache.get(key, source);
+        if (skin == null) {
+            skin = new Skin(source, app);
+            cache.put(key, source, skin);
+        }
+        return skin;
+    }
+
+    /**
+     * Remove all cached skins.
+     */
+    public void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Returns a map of skin cache statistics.
+     */
+    public Map getCacheStatistics() {
+        return cache.getStatistics();
     }
 
     public Skin getSkin(Prototype prototype, String skinname, Object[] skinpath)
@@ -116,7 +197,7 @@ public final class SkinManager implements FilenameFilter {
                     String skin = n.getString(skinProperty);
 
                     if (skin != null) {
-                        return new Skin(skin, app);
+                        return getSkin(n, skin);
                     }
                 }
             }
@@ -132,7 +213,7 @@ public final class SkinManager implements FilenameFilter {
             File f = new File(b.toString());
 
             if (f.exists() && f.canRead()) {
-                return Skin.getSkin(new FileResource(f), app);
+                return getSkin(new FileResource(f));
             }
         }
 
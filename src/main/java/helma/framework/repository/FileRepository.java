@@ -33,6 +33,13 @@ public class FileRepository extends AbstractRepository {
     protected long lastChecksum = 0;
     protected long lastChecksumTime = 0;
 
+    // the watcher reporting changes to this repository, or null if polling
+    protected volatile RepositoryWatcher watcher = null;
+    // set by the watcher if the directory needs to be listed again
+    protected volatile boolean dirty = true;
+    // changed by the watcher whenever anything in the directory changes
+    protected volatile long stamp = System.nanoTime();
+
     /**
      * Defines how long the checksum of the repository will be cached
      */
@@ -106,16 +113,56 @@ public class FileRepository extends AbstractRepository {
         return parent == null || parent instanceof MultiFileRepository;
     }
 
+    /**
+     * Returns the last modification time of the directory, or a stamp that
+     * changes with every reported change if the repository is watched.
+     */
     public long lastModified() {
+        if (watcher != null) {
+            update();
+            return stamp;
+        }
         return directory.lastModified();
     }
 
+    /**
+     * Returns true if changes to this repository are reported by a
+     * {@link RepositoryWatcher} rather than polled for.
+     */
+    public boolean isWatched() {
+        return watcher != null;
+    }
+
+    /**
+     * Set the watcher reporting changes to this repository. The directory
+     * is listed again on the next update, as changes may have been missed.
+     *
+     * @param watcher the watcher, or null to poll for changes
+     */
+    void setWatcher(RepositoryWatcher watcher) {
+        this.watcher = watcher;
+        changed(true);
+    }
+
+    /**
+     * Called by the watcher to report a change in the directory.
+     *
+     * @param structural true if entries were created or deleted
+     */
+    void changed(boolean structural) {
+        if (structural) {
+            dirty = true;
+        }
+        stamp = System.nanoTime();
+    }
+
     public synchronized long getChecksum() throws IOException {
-        // delay checksum check if already checked recently
-        if (System.currentTimeMillis() > lastChecksumTime + cacheTime) {
+        // delay checksum check if already checked recently,
+        // unless changes are reported by a watcher
+        if (watcher != null || System.currentTimeMillis() > lastChecksumTime + cacheTime) {
 
             update();
-            long checksum = lastModified;
+            long checksum = watcher != null ? stamp : lastModified;
 
             for (int i = 0; i < repositories.length; i++) {
                 checksum += repositories[i].getChecksum();
@@ -134,6 +181,12 @@ public class FileRepository extends AbstractRepository {
      * resources
      */
     public synchronized void update() {
+        if (watcher != null && !dirty) {
+            // nothing reported by the watcher
+            return;
+        }
+        dirty = false;
+
         if (!directory.exists()) {
             repositories = emptyRepositories;
             if (resources == null) {
@@ -145,18 +198,21 @@ public class FileRepository extends AbstractRepository {
             return;
         }
 
-        if (directory.lastModified() != lastModified) {
+        // if watched, list the directory even if its modification time hasn't
+        // changed, as the time's resolution may be too coarse to tell
+        if (directory.lastModified() != lastModified || watcher != null) {
             lastModified = directory.lastModified();
 
             File[] list = directory.listFiles();
 
             ArrayList newRepositories = new ArrayList(list.length);
             HashMap newResources = new HashMap(list.length);
+            HashMap children = getChildRepositories();
 
             for (int i = 0; i < list.length; i++) {
                 if (list[i].isDirectory()) {
                     // a nested directory aka child file repository
-                    newRepositories.add(new FileRepository(list[i], this));
+                    newRepositories.add(createChildRepository(list[i], children));
                 } else if (list[i].getName().endsWith(".zip")) {
                     // a nested zip repository
                     newRepositories.add(new ZipRepository(list[i], this));
@@ -173,6 +229,48 @@ public class FileRepository extends AbstractRepository {
         }
     }
 
+    /**
+     * Get the current file repositories contained in this repository by
+     * directory, if the repository is watched. Watched child repositories
+     * are kept when the directory is listed again, so they don't lose
+     * track of changes reported to them.
+     *
+     * @return the child repositories by directory, or null
+     */
+    HashMap getChildRepositories() {
+        if (watcher == null || repositories == null) {
+            return null;
+        }
+        HashMap children = new HashMap(repositories.length * 2);
+        for (int i = 0; i < repositories.length; i++) {
+            if (repositories[i] instanceof FileRepository) {
+                FileRepository child = (FileRepository) repositories[i];
+                children.put(child.directory, child);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Get or create the file repository for a nested directory. New
+     * child repositories are registered with this repository's watcher.
+     *
+     * @param dir the directory
+     * @param children the current child repositories by directory, or null
+     * @return the child repository
+     */
+    FileRepository createChildRepository(File dir, HashMap children) {
+        FileRepository child = children == null ? null : (FileRepository) children.get(dir);
+        if (child == null) {
+            child = new FileRepository(dir, this);
+            RepositoryWatcher w = watcher;
+            if (w != null) {
+                w.watch(child);
+            }
+        }
+        return child;
+    }
+
     /**
      * Called to create a child resource for this repository
      */
@@ -52,6 +52,12 @@ public class MultiFileRepository extends FileRepository {
      * script repositories like in FileRepository, while resources are ignored.
      */
     public synchronized void update() {
+        if (watcher != null && !dirty) {
+            // nothing reported by the watcher
+            return;
+        }
+        dirty = false;
+
         if (!directory.exists()) {
             repositories = emptyRepositories;
             if (resources != null)
@@ -60,20 +66,21 @@ public class MultiFileRepository extends FileRepository {
             return;
         }
 
-        if (directory.lastModified() != lastModified) {
+        if (directory.lastModified() != lastModified || watcher != null) {
             lastModified = directory.lastModified();
 
             File[] list = directory.listFiles();
 
             ArrayList newRepositories = new ArrayList(list.length);
             HashMap newResources = new HashMap(list.length);
+            HashMap children = getChildRepositories();
 
             for (int i = 0; i < list.length; i++) {
                 // create both directories and zip files as top-level repositories,
                 // while resources (files) are ignored.
                 if (list[i].isDirectory()) {
                     // a nested directory aka child file repository
-                    newRepositories.add(new FileRepository(list[i], this));
+                    newRepositories.add(createChildRepository(list[i], children));
                 } else if (list[i].getName().endsWith(".zip")) {
                     // a nested zip repository
                     newRepositories.add(new ZipRepository(list[i], this));
@@ -0,0 +1,186 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.repository;
+
+import org.apache.commons.logging.Log;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of FileRepositories for changes using the file
+ * system's WatchService, so repositories don't have to poll their directories
+ * on the request path. Change events are collected until no new event has
+ * arrived for the debounce interval, and are then applied to the affected
+ * repositories in one go, so a burst of changes like a checkout is seen as
+ * a single update.
+ *
+ * Repositories whose directory can't be registered, and prototypes with
+ * resources in other kinds of repositories, keep polling for changes.
+ */
+public final class RepositoryWatcher implements Runnable {
+
+    private final WatchService service;
+    private final Log log;
+    private final long debounce;
+    private final Thread thread;
+
+    // watched repositories by watch key
+    private final HashMap repositories = new HashMap();
+
+    private volatile boolean running = true;
+
+    /**
+     * Create a repository watcher and start its watcher thread.
+     *
+     * @param name the name used for the watcher thread
+     * @param debounce the time in milliseconds to wait for more changes
+     * @param log the log to report problems to
+     * @throws IOException if the file system doesn't support watching
+     */
+    public RepositoryWatcher(String name, long debounce, Log log) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.debounce = Math.max(0, debounce);
+        this.log = log;
+        thread = new Thread(this, name + "-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start watching the directory of a file repository. Sub-repositories
+     * are registered by the repository as they are discovered.
+     *
+     * @param repository the repository
+     * @return true if the repository is watched, false if it keeps polling
+     */
+    public boolean watch(FileRepository repository) {
+        if (!running || !repository.directory.isDirectory()) {
+            return false;
+        }
+        try {
+            WatchKey key = repository.directory.toPath().register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            synchronized (repositories) {
+                repositories.put(key, repository);
+            }
+            repository.setWatcher(this);
+            return true;
+        } catch (IOException x) {
+            log.warn("Can't watch " + repository.directory + ", falling back to polling: " + x);
+            return false;
+        } catch (ClosedWatchServiceException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop the watcher thread. Watched repositories fall back to polling.
+     */
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            service.close();
+        } catch (IOException ignore) {
+            // ignore
+        }
+        ArrayList list;
+        synchronized (repositories) {
+            list = new ArrayList(repositories.values());
+            repositories.clear();
+        }
+        for (int i = 0; i < list.size(); i++) {
+            ((FileRepository) list.get(i)).setWatcher(null);
+        }
+    }
+
+    /**
+     * The watcher thread's main loop.
+     */
+    public void run() {
+        LinkedHashSet keys = new LinkedHashSet();
+        while (running) {
+            try {
+                WatchKey key = service.take();
+                // wait for the burst of changes to settle
+                while (key != null) {
+                    keys.add(key);
+                    key = service.poll(debounce, TimeUnit.MILLISECONDS);
+                }
+                for (Iterator i = keys.iterator(); i.hasNext();) {
+                    process((WatchKey) i.next());
+                }
+                keys.clear();
+            } catch (InterruptedException x) {
+                // shutdown
+            } catch (ClosedWatchServiceException x) {
+                running = false;
+            } catch (RuntimeException x) {
+                log.error("Error processing repository changes", x);
+                keys.clear();
+            }
+        }
+    }
+
+    private void process(WatchKey key) {
+        FileRepository repository;
+        synchronized (repositories) {
+            repository = (FileRepository) repositories.get(key);
+        }
+        List events = key.pollEvents();
+        if (repository == null) {
+            key.cancel();
+            return;
+        }
+
+        boolean structural = false;
+        for (int i = 0; i < events.size(); i++) {
+            WatchEvent event = (WatchEvent) events.get(i);
+            WatchEvent.Kind kind = event.kind();
+            // entries created or deleted require the directory to be listed
+            // again, modified entries only a new checksum
+            if (kind == StandardWatchEventKinds.OVERFLOW ||
+                    kind == StandardWatchEventKinds.ENTRY_CREATE ||
+                    kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                structural = true;
+            }
+        }
+
+        if (!key.reset()) {
+            // directory has gone, parent repository gets notified separately
+            synchronized (repositories) {
+                repositories.remove(key);
+            }
+            structural = true;
+        }
+        repository.changed(structural);
+    }
+}
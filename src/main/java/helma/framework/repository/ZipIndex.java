@@ -0,0 +1,442 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.framework.repository;
+
+import helma.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An index over the entries of a zip file, shared by the ZipRepositories and
+ * ZipResources of the file. The index is built once from the zip file's central
+ * directory and kept until the file's modification time or length changes.
+ * Entries are read without opening the file again: zip files up to
+ * helma.zipmapsize bytes (default 16 MB) are read into memory, larger files
+ * are memory-mapped. A mapping is released when its index has been replaced
+ * and garbage collected. If a mapped file is truncated or overwritten in place,
+ * reading it fails with an InternalError, in which case the index is dropped
+ * and built again from the current file.
+ *
+ * Decompressed entries up to helma.zipcacheentrysize bytes (default 64 KB) are
+ * kept in a cache shared by all zip files, holding up to helma.zipcachesize bytes
+ * (default 4 MB). The least recently used entries are dropped first.
+ *
+ * ZIP64 archives and archives larger than 2 GB are not supported, in which case
+ * {@link #getIndex(File)} throws an IOException and the zip file is read
+ * using java.util.zip.ZipFile.
+ */
+final class ZipIndex {
+
+    static final int LOC_SIG = 0x04034b50;
+    static final int CEN_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    static final long CACHE_SIZE =
+            Long.parseLong(System.getProperty("helma.zipcachesize", "4194304"));
+    static final long CACHE_ENTRY_SIZE =
+            Long.parseLong(System.getProperty("helma.zipcacheentrysize", "65536"));
+    static final long MAP_SIZE =
+            Long.parseLong(System.getProperty("helma.zipmapsize", "16777216"));
+
+    // indexes by file
+    private static final HashMap indexes = new HashMap();
+
+    // versions of files that couldn't be indexed, by file
+    private static final HashMap failed = new HashMap();
+
+    // decompressed entries by Entry, in access order
+    private static final LinkedHashMap cache = new LinkedHashMap(64, 0.75f, true);
+    private static long cacheBytes = 0;
+
+    final File file;
+    final long lastModified;
+    final long length;
+
+    // the content of the zip file, either on the heap or mapped
+    private final ByteBuffer buffer;
+
+    // entries by name
+    private final HashMap entries = new HashMap();
+
+    // directory listings by path
+    private final HashMap directories = new HashMap();
+
+    /**
+     * Get the index for a zip file, building it if the file is not indexed
+     * yet or has changed since.
+     *
+     * @param file the zip file
+     * @return the index
+     * @throws IOException if the file can't be read or indexed
+     */
+    static ZipIndex getIndex(File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (indexes) {
+            ZipIndex index = (ZipIndex) indexes.get(file);
+            if (index != null && index.lastModified == lastModified &&
+                    index.length == length) {
+                return index;
+            }
+            if (index != null) {
+                indexes.remove(file);
+                index.evict();
+            }
+            // don't try again to index a file that failed before
+            String version = lastModified + ":" + length;
+            if (version.equals(failed.get(file))) {
+                throw new IOException("Can't index zip file " + file);
+            }
+            try {
+                index = new ZipIndex(file, lastModified, length);
+            } catch (IOException iox) {
+                failed.put(file, version);
+                throw iox;
+            }
+            failed.remove(file);
+            indexes.put(file, index);
+            return index;
+        }
+    }
+
+    private ZipIndex(File file, long lastModified, long length) throws IOException {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.length = length;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Zip file too large to be mapped: " + file);
+            }
+            if (size <= MAP_SIZE) {
+                // a copy on the heap isn't affected by changes to the file
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+            } else {
+                // the mapping stays valid after the file is closed
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            readCentralDirectory();
+        } catch (InternalError x) {
+            // the mapped file has been truncated
+            throw new IOException("Zip file changed while indexing: " + file);
+        }
+    }
+
+    /**
+     * Read the entries from the central directory.
+     */
+    private void readCentralDirectory() throws IOException {
+        int end = findEnd();
+        int count = u16(end + 10);
+        long dirOffset = u32(end + 16);
+        if (count == 0xffff || dirOffset == 0xffffffffL) {
+            throw new IOException("ZIP64 archives not supported: " + file);
+        }
+
+        directories.put("", new Directory());
+        int pos = (int) dirOffset;
+        for (int i = 0; i < count; i++) {
+            if (pos + 46 > buffer.limit() || buffer.getInt(pos) != CEN_SIG) {
+                throw new IOException("Invalid central directory in " + file);
+            }
+            int nameLength = u16(pos + 28);
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer buf = buffer.duplicate();
+            buf.position(pos + 46);
+            buf.get(nameBytes);
+
+            Entry entry = new Entry(new String(nameBytes, StandardCharsets.UTF_8),
+                    u16(pos + 8), u16(pos + 10), u32(pos + 16),
+                    u32(pos + 20), u32(pos + 24), u32(pos + 42));
+            entries.put(entry.name, entry);
+            addToDirectories(entry);
+
+            pos += 46 + nameLength + u16(pos + 30) + u16(pos + 32);
+        }
+    }
+
+    /**
+     * Find the end of central directory record, which is followed
+     * by a comment of up to 64 KB.
+     */
+    private int findEnd() throws IOException {
+        int limit = buffer.limit();
+        for (int pos = limit - 22; pos >= 0 && pos >= limit - 22 - 0xffff; pos--) {
+            if (buffer.getInt(pos) == END_SIG) {
+                return pos;
+            }
+        }
+        throw new IOException("Not a zip file: " + file);
+    }
+
+    /**
+     * Register an entry with the directory listings of all its
+     * parent directories.
+     */
+    private void addToDirectories(Entry entry) {
+        String[] path = StringUtils.split(entry.name, "/");
+        boolean isDirectory = entry.name.endsWith("/");
+        StringBuffer dir = new StringBuffer();
+        for (int i = 0; i < path.length; i++) {
+            String dirName = dir.toString();
+            Directory listing = (Directory) directories.get(dirName);
+            if (listing == null) {
+                listing = new Directory();
+                directories.put(dirName, listing);
+            }
+            if (i == path.length - 1 && !isDirectory) {
+                listing.resources.add(entry.name);
+            } else {
+                listing.repositories.add(path[i]);
+            }
+            if (i > 0) {
+                dir.append('/');
+            }
+            dir.append(path[i]);
+        }
+    }
+
+    /**
+     * Get an entry by name.
+     *
+     * @param name the entry name
+     * @return the entry, or null
+     */
+    Entry getEntry(String name) {
+        return (Entry) entries.get(name);
+    }
+
+    /**
+     * Get the listing of a directory within the zip file.
+     *
+     * @param path the directory path, empty for the top level
+     * @return the directory listing, or null if the directory doesn't exist
+     */
+    Directory getDirectory(String path) {
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return (Directory) directories.get(path);
+    }
+
+    /**
+     * Get the decompressed content of an entry. If the mapped zip file has
+     * been changed in a way that makes reading it fail, the entry is read
+     * from a new index of the file.
+     *
+     * @param entry the entry
+     * @return the content. The returned array is shared and must not be modified.
+     * @throws IOException if the entry can't be read
+     */
+    byte[] getBytes(Entry entry) throws IOException {
+        try {
+            return readBytes(entry);
+        } catch (InternalError x) {
+            // the mapped file has been truncated or overwritten in place
+            synchronized (indexes) {
+                if (indexes.get(file) == this) {
+                    indexes.remove(file);
+                }
+            }
+            evict();
+        }
+        ZipIndex index = getIndex(file);
+        Entry current = index.getEntry(entry.name);
+        if (index == this || current == null) {
+            throw new IOException("Zip file changed while reading " + entry.name + ": " + file);
+        }
+        try {
+            return index.readBytes(current);
+        } catch (InternalError x) {
+            throw new IOException("Zip file changed while reading " + entry.name + ": " + file);
+        }
+    }
+
+    private byte[] readBytes(Entry entry) throws IOException {
+        synchronized (cache) {
+            byte[] bytes = (byte[]) cache.get(entry);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+
+        if ((entry.flags & 1) != 0) {
+            throw new IOException("Encrypted zip entries not supported: " + entry.name);
+        }
+        if (entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE) {
+            throw new IOException("Zip entry too large: " + entry.name);
+        }
+        int loc = (int) entry.offset;
+        if (loc + 30 > buffer.limit() || buffer.getInt(loc) != LOC_SIG) {
+            throw new IOException("Invalid local header for " + entry.name + " in " + file);
+        }
+        long data = loc + 30 + u16(loc + 26) + u16(loc + 28);
+        if (data + entry.compressedSize > buffer.limit()) {
+            throw new IOException("Truncated zip entry " + entry.name + " in " + file);
+        }
+        ByteBuffer buf = buffer.duplicate();
+        buf.position((int) data);
+
+        byte[] bytes = new byte[(int) entry.size];
+        if (entry.method == STORED) {
+            buf.get(bytes);
+        } else if (entry.method == DEFLATED) {
+            // inflating without zlib header requires an extra dummy byte
+            byte[] input = new byte[(int) entry.compressedSize + 1];
+            buf.get(input, 0, input.length - 1);
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int read = 0;
+                while (read < bytes.length) {
+                    int r = inflater.inflate(bytes, read, bytes.length - read);
+                    if (r == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Unexpected end of zip entry " + entry.name);
+                    }
+                    read += r;
+                }
+            } catch (DataFormatException dfx) {
+                throw new IOException("Invalid zip entry " + entry.name + ": " + dfx.getMessage());
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new IOException("Unsupported compression method " + entry.method +
+                    " for " + entry.name);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (crc.getValue() != entry.crc) {
+            throw new IOException("CRC mismatch for zip entry " + entry.name);
+        }
+
+        if (bytes.length <= CACHE_ENTRY_SIZE) {
+            cache(entry, bytes);
+        }
+        return bytes;
+    }
+
+    private static void cache(Entry entry, byte[] bytes) {
+        synchronized (cache) {
+            byte[] previous = (byte[]) cache.put(entry, bytes);
+            if (previous != null) {
+                cacheBytes -= previous.length;
+            }
+            cacheBytes += bytes.length;
+            for (Iterator i = cache.entrySet().iterator();
+                 cacheBytes > CACHE_SIZE && i.hasNext();) {
+                Map.Entry eldest = (Map.Entry) i.next();
+                cacheBytes -= ((byte[]) eldest.getValue()).length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop this index's entries from the cache.
+     */
+    private void evict() {
+        synchronized (cache) {
+            for (Iterator i = cache.entrySet().iterator(); i.hasNext();) {
+                Map.Entry e = (Map.Entry) i.next();
+                if (((Entry) e.getKey()).index() == this) {
+                    cacheBytes -= ((byte[]) e.getValue()).length;
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private int u16(int pos) {
+        return buffer.getShort(pos) & 0xffff;
+    }
+
+    private long u32(int pos) {
+        return buffer.getInt(pos) & 0xffffffffL;
+    }
+
+    /**
+     * A zip file entry as described in the central directory.
+     */
+    final class Entry {
+        final String name;
+        final int flags;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        Entry(String name, int flags, int method, long crc,
+              long compressedSize, long size, long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        ZipIndex index() {
+            return ZipIndex.this;
+        }
+    }
+
+    /**
+     * The child directories and file entries of a directory.
+     */
+    static final class Directory {
+        // names of child directories
+        final LinkedHashSet repositories = new LinkedHashSet();
+        // full names of file entries
+        final ArrayList resources = new ArrayList();
+    }
+}
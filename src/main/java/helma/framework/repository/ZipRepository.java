@@ -103,11 +103,31 @@ public final class ZipRepository extends AbstractRepository {
         return new ZipFile(file);
     }
 
+    /**
+     * Returns the shared index of this repository's zip file, or null if
+     * the file can't be indexed and has to be read using a ZipFile.
+     * @return the zip index, or null
+     */
+    ZipIndex getIndex() {
+        try {
+            return ZipIndex.getIndex(file);
+        } catch (IOException iox) {
+            return null;
+        }
+    }
+
     public synchronized void update() {
         if (file.lastModified() != lastModified ||
                 repositories == null ||
                 resources == null) {
             lastModified = file.lastModified();
+
+            ZipIndex index = getIndex();
+            if (index != null) {
+                update(index);
+                return;
+            }
+
             ZipFile zipfile = null;
 
             try {
@@ -168,6 +188,34 @@ public final class ZipRepository extends AbstractRepository {
         }
     }
 
+    /**
+     * Updates the content cache of the repository from the zip file's index.
+     */
+    private void update(ZipIndex index) {
+        ZipIndex.Directory dir = index.getDirectory(entryPath);
+        if (dir == null) {
+            repositories = emptyRepositories;
+            resources = new HashMap();
+            return;
+        }
+
+        ArrayList newRepositories = new ArrayList(dir.repositories.size());
+        HashMap newResources = new HashMap(dir.resources.size() * 2);
+
+        for (Iterator i = dir.repositories.iterator(); i.hasNext();) {
+            ZipEntry child = composeChildEntry((String) i.next());
+            newRepositories.add(new ZipRepository(file, this, child));
+        }
+        for (int i = 0; i < dir.resources.size(); i++) {
+            ZipResource resource = new ZipResource((String) dir.resources.get(i), this);
+            newResources.put(resource.getShortName(), resource);
+        }
+
+        repositories = (Repository[]) newRepositories
+                .toArray(new Repository[newRepositories.size()]);
+        resources = newResources;
+    }
+
     private ZipEntry composeChildEntry(String name) {
         if (entryPath == null || entryPath.length() == 0) {
             return new ZipEntry(name);
@@ -190,6 +238,9 @@ public final class ZipRepository extends AbstractRepository {
     }
 
     public boolean exists() {
+        if (getIndex() != null) {
+            return true;
+        }
         ZipFile zipfile = null;
         try {
             /* a ZipFile needs to be created to see if the zip file actually
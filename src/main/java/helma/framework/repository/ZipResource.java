@@ -49,6 +49,10 @@ public final class ZipResource extends AbstractResource {
     }
 
     public InputStream getInputStream() throws IOException {
+        ZipIndex index = repository.getIndex();
+        if (index != null) {
+            return new ByteArrayInputStream(index.getBytes(getEntry(index)));
+        }
         ZipFile zipfile = null;
         try {
             zipfile = repository.getZipFile();
@@ -73,7 +77,22 @@ public final class ZipResource extends AbstractResource {
         }
     }
 
+    /**
+     * Get this resource's entry from the zip file's index.
+     */
+    private ZipIndex.Entry getEntry(ZipIndex index) throws IOException {
+        ZipIndex.Entry entry = index.getEntry(entryName);
+        if (entry == null) {
+            throw new IOException("Zip resource " + this + " does not exist");
+        }
+        return entry;
+    }
+
     public boolean exists() {
+        ZipIndex index = repository.getIndex();
+        if (index != null) {
+            return index.getEntry(entryName) != null;
+        }
         ZipFile zipfile = null;
         try {
             zipfile = repository.getZipFile();
@@ -88,6 +107,13 @@ public final class ZipResource extends AbstractResource {
     }
 
     public String getContent(String encoding) throws IOException {
+        ZipIndex index = repository.getIndex();
+        if (index != null) {
+            byte[] buf = index.getBytes(getEntry(index));
+            return encoding == null ?
+                    new String(buf) :
+                    new String(buf, encoding);
+        }
         ZipFile zipfile = null;
         try {
             zipfile = repository.getZipFile();
@@ -139,6 +165,11 @@ public final class ZipResource extends AbstractResource {
     }
 
     public long getLength() {
+        ZipIndex index = repository.getIndex();
+        if (index != null) {
+            ZipIndex.Entry entry = index.getEntry(entryName);
+            return entry == null ? 0 : entry.size;
+        }
         ZipFile zipfile = null;
         try {
             zipfile = repository.getZipFile();
@@ -0,0 +1,465 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.framework.core.Prototype;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the node caches of several Helma instances running the same application
+ * against a shared relational database consistent. Committed changes to relational
+ * nodes are collected as a {@link NodeChangeListener}, coalesced for a short time,
+ * and sent to the other instances in compact messages through an
+ * {@link InvalidationChannel}. On receipt, changed nodes are evicted from the node
+ * cache and the data change counters of the affected db mappings are bumped, so
+ * cached collections are reloaded.
+ *
+ * Messages carry a per-sender sequence number, and senders send a heartbeat
+ * with their last sequence number when idle. A receiver that detects a gap in
+ * the sequence, i.e. a lost message, clears its whole node cache, since it
+ * can't tell which nodes the lost message referred to.
+ *
+ * Cluster invalidation is enabled by setting the <code>clusterInvalidation</code>
+ * app property to true. Further settings:
+ * <ul>
+ * <li><code>clusterChannelImpl</code> - the channel class
+ *     (default helma.objectmodel.db.MulticastInvalidationChannel)</li>
+ * <li><code>clusterBatchDelay</code> - milliseconds to wait for further changes
+ *     before sending a message (default 10)</li>
+ * <li><code>clusterPacketSize</code> - the maximum message size in bytes (default 8192)</li>
+ * <li><code>clusterHeartbeat</code> - milliseconds between heartbeats of an idle
+ *     sender (default 5000)</li>
+ * </ul>
+ */
+public final class ClusterInvalidator implements NodeChangeListener, Runnable {
+
+    static final int MAGIC = 0x484c4d43;
+    static final byte VERSION = 2;
+
+    // record types
+    static final byte END = 0;
+    static final byte MAPPING = 1;
+    static final byte EVICT = 2;
+    static final byte SUBNODES = 3;
+
+    private final NodeManager nmgr;
+    private final Application app;
+    private final InvalidationChannel channel;
+
+    // random id used to recognize our own messages
+    private final long instanceId;
+
+    private final long batchDelay;
+    private final int packetSize;
+    private final long heartbeat;
+
+    // sequence number of the last message sent, only used by the sender thread
+    private long sequence = 0;
+
+    // sender instance id to the sequence number of its last message received,
+    // guarded by itself
+    private final HashMap received = new HashMap();
+
+    // pending changes, guarded by this
+    private LinkedHashSet mappings = new LinkedHashSet();
+    private LinkedHashSet evicted = new LinkedHashSet();
+    private LinkedHashSet parents = new LinkedHashSet();
+
+    private Thread sender;
+    private volatile boolean running;
+
+    // statistics
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder keysEvicted = new LongAdder();
+    private final LongAdder messagesLost = new LongAdder();
+
+    /**
+     * Create a cluster invalidator for a node manager.
+     *
+     * @param nmgr the node manager
+     * @param props the application properties
+     */
+    ClusterInvalidator(NodeManager nmgr, Properties props)
+            throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        this.nmgr = nmgr;
+        this.app = nmgr.app;
+        this.instanceId = new SecureRandom().nextLong();
+        this.batchDelay = Long.parseLong(props.getProperty("clusterBatchDelay", "10"));
+        this.packetSize = Math.min(MulticastInvalidationChannel.MAX_DATAGRAM_SIZE,
+                Math.max(512, Integer.parseInt(props.getProperty("clusterPacketSize", "8192"))));
+        this.heartbeat = Math.max(100, Long.parseLong(props.getProperty("clusterHeartbeat", "5000")));
+        String channelImpl = props.getProperty("clusterChannelImpl",
+                "helma.objectmodel.db.MulticastInvalidationChannel");
+        channel = (InvalidationChannel) Class.forName(channelImpl).newInstance();
+    }
+
+    /**
+     * Open the channel and start the sender thread.
+     *
+     * @param props the application properties
+     * @throws IOException if the channel couldn't be opened
+     */
+    void start(Properties props) throws IOException {
+        channel.init(app, props, this);
+        running = true;
+        sender = new Thread(this, "ClusterSender-" + app.getName());
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Send pending changes and close the channel.
+     */
+    void shutdown() {
+        running = false;
+        Thread t = sender;
+        if (t != null) {
+            synchronized (this) {
+                notifyAll();
+            }
+            try {
+                t.join(1000);
+            } catch (InterruptedException ir) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.shutdown();
+    }
+
+    /**
+     * Collect changed relational nodes and db mappings of a committed transaction.
+     */
+    public void nodesChanged(List inserted, List updated, List deleted, List parentNodes) {
+        synchronized (this) {
+            int size = mappings.size() + evicted.size() + parents.size();
+            addNodes(inserted, false);
+            addNodes(updated, true);
+            addNodes(deleted, true);
+            for (int i = 0; i < parentNodes.size(); i++) {
+                Key key = getClusterKey((Node) parentNodes.get(i));
+                if (key != null) {
+                    parents.add(key);
+                }
+            }
+            if (mappings.size() + evicted.size() + parents.size() > size) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void addNodes(List nodes, boolean evict) {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = (Node) nodes.get(i);
+            Key key = getClusterKey(node);
+            if (key != null) {
+                mappings.add(node.getDbMapping().getTypeName());
+                if (evict) {
+                    evicted.add(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the key of a node stored in a relational database, or null
+     * if the node isn't visible to other instances.
+     */
+    private Key getClusterKey(Node node) {
+        DbMapping dbm = node.getDbMapping();
+        if (dbm == null || !dbm.isRelational()) {
+            return null;
+        }
+        Key key = node.getKey();
+        return key instanceof DbKey && ((DbKey) key).getStorageName() != null ? key : null;
+    }
+
+    /**
+     * The sender thread's main loop.
+     */
+    public void run() {
+        while (true) {
+            LinkedHashSet sendMappings, sendEvicted, sendParents;
+            boolean idle = false;
+            synchronized (this) {
+                try {
+                    if (running && mappings.isEmpty() && evicted.isEmpty() && parents.isEmpty()) {
+                        wait(heartbeat);
+                        idle = mappings.isEmpty() && evicted.isEmpty() && parents.isEmpty();
+                    }
+                    if (running && batchDelay > 0 && !idle) {
+                        // give concurrent transactions a chance to join the batch
+                        wait(batchDelay);
+                    }
+                } catch (InterruptedException ir) {
+                    running = false;
+                }
+                if (mappings.isEmpty() && evicted.isEmpty() && parents.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    if (!idle) {
+                        continue;
+                    }
+                }
+            }
+
+            if (idle) {
+                sendHeartbeat();
+                continue;
+            }
+
+            synchronized (this) {
+                sendMappings = mappings;
+                sendEvicted = evicted;
+                sendParents = parents;
+                mappings = new LinkedHashSet();
+                evicted = new LinkedHashSet();
+                parents = new LinkedHashSet();
+            }
+
+            try {
+                send(sendMappings, sendEvicted, sendParents);
+            } catch (Exception x) {
+                app.logError("Error sending cluster invalidation message", x);
+            }
+        }
+    }
+
+    /**
+     * Let the other instances know the sequence number of our last message,
+     * so they notice if they missed it.
+     */
+    private void sendHeartbeat() {
+        try {
+            new MessageWriter().heartbeat();
+        } catch (Exception x) {
+            app.logError("Error sending cluster heartbeat", x);
+        }
+    }
+
+    /**
+     * Encode pending changes into as few messages as possible and send them.
+     * Mapping records go first, so a receiver that only gets the first
+     * message of a batch already reloads the affected collections.
+     */
+    private void send(LinkedHashSet sendMappings, LinkedHashSet sendEvicted,
+                      LinkedHashSet sendParents) throws IOException {
+        MessageWriter writer = new MessageWriter();
+        for (Iterator it = sendMappings.iterator(); it.hasNext();) {
+            writer.add(MAPPING, (String) it.next(), null);
+        }
+        for (Iterator it = sendEvicted.iterator(); it.hasNext();) {
+            DbKey key = (DbKey) it.next();
+            writer.add(EVICT, key.getStorageName(), key.getID());
+        }
+        for (Iterator it = sendParents.iterator(); it.hasNext();) {
+            DbKey key = (DbKey) it.next();
+            writer.add(SUBNODES, key.getStorageName(), key.getID());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Process a message received from another instance. Called by the channel.
+     *
+     * @param data the message buffer
+     * @param offset the offset of the message within the buffer
+     * @param length the length of the message
+     */
+    public void receive(byte[] data, int offset, int length) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return;
+            }
+            long senderId = in.readLong();
+            long seq = in.readLong();
+            if (senderId == instanceId || !app.getName().equals(in.readUTF())) {
+                // not a message for us, or one sent by ourselves
+                return;
+            }
+            byte type = in.readByte();
+            // a heartbeat is a message without records carrying the sequence
+            // number of the sender's last message
+            checkSequence(senderId, seq, type == END);
+            if (type == END) {
+                return;
+            }
+            messagesReceived.increment();
+            for (; type != END; type = in.readByte()) {
+                String name = in.readUTF();
+                DbMapping dbm = app.getDbMapping(name);
+                if (type == MAPPING) {
+                    if (dbm != null) {
+                        dbm.setLastDataChange();
+                    }
+                } else {
+                    String id = in.readUTF();
+                    if (dbm == null) {
+                        continue;
+                    }
+                    DbKey key = new DbKey(dbm, id);
+                    if (type == EVICT) {
+                        nmgr.evictNodeByKey(key);
+                        keysEvicted.increment();
+                    } else if (type == SUBNODES) {
+                        nmgr.markSubnodesChanged(key);
+                    }
+                }
+            }
+        } catch (IOException iox) {
+            app.logError("Received malformed cluster invalidation message", iox);
+        }
+    }
+
+    /**
+     * Check a received sequence number against the last one received from
+     * the same sender, and clear the node cache if a message was lost. Messages
+     * from a sender we haven't heard from before are expected to start at 1,
+     * so messages lost before our first contact are detected as well.
+     *
+     * @param senderId the sender's instance id
+     * @param seq the message's sequence number
+     * @param heartbeat true if the message is a heartbeat
+     */
+    private void checkSequence(Long senderId, long seq, boolean heartbeat) {
+        boolean lost;
+        synchronized (received) {
+            Long last = (Long) received.get(senderId);
+            long expected = last == null ? 0 : last.longValue();
+            if (!heartbeat) {
+                expected += 1;
+            }
+            // older messages may arrive late, they are applied but don't
+            // move the sequence back
+            lost = seq > expected;
+            if (last == null || seq > last.longValue()) {
+                received.put(senderId, Long.valueOf(seq));
+            }
+        }
+        if (lost) {
+            messagesLost.increment();
+            app.logEvent("Lost cluster invalidation message, clearing node cache");
+            nmgr.clearCache();
+            for (Iterator it = app.getPrototypes().iterator(); it.hasNext();) {
+                DbMapping dbm = ((Prototype) it.next()).getDbMapping();
+                if (dbm != null) {
+                    dbm.setLastDataChange();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a map of statistics about sent and received messages.
+     */
+    public Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("messagesSent", messagesSent.sum());
+        stats.put("messagesReceived", messagesReceived.sum());
+        stats.put("messagesLost", messagesLost.sum());
+        stats.put("keysEvicted", keysEvicted.sum());
+        return stats;
+    }
+
+    /**
+     * Writes records into messages, sending a message whenever the next
+     * record would exceed the maximum message size.
+     */
+    class MessageWriter {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(packetSize);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+        final DataOutputStream record = new DataOutputStream(recordBuffer);
+        int headerSize;
+        int records = 0;
+
+        MessageWriter() throws IOException {
+            writeHeader();
+        }
+
+        // the header of each message, with the sequence number following
+        // the instance id
+        void writeHeader() throws IOException {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(instanceId);
+            out.writeLong(sequence + 1);
+            out.writeUTF(app.getName());
+            headerSize = buffer.size();
+        }
+
+        void heartbeat() throws IOException {
+            buffer.reset();
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(instanceId);
+            out.writeLong(sequence);
+            out.writeUTF(app.getName());
+            out.writeByte(END);
+            channel.send(buffer.toByteArray(), buffer.size());
+        }
+
+        void add(byte type, String name, String id) throws IOException {
+            recordBuffer.reset();
+            record.writeByte(type);
+            record.writeUTF(name);
+            if (id != null) {
+                record.writeUTF(id);
+            }
+            // leave room for the end marker
+            if (records > 0 && buffer.size() + recordBuffer.size() + 1 > packetSize) {
+                flush();
+            }
+            recordBuffer.writeTo(buffer);
+            records += 1;
+        }
+
+        void flush() throws IOException {
+            if (records == 0) {
+                return;
+            }
+            out.writeByte(END);
+            // the sequence number is used up even if sending fails,
+            // so receivers notice the lost message
+            sequence += 1;
+            try {
+                channel.send(buffer.toByteArray(), buffer.size());
+                messagesSent.increment();
+            } finally {
+                buffer.reset();
+                records = 0;
+                writeHeader();
+            }
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.util.ResourceProperties;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of JDBC connections for a single {@link DbSource}. Connections are
+ * borrowed by transactor threads for the duration of a request and returned
+ * when the request is finished, so the number of open connections no longer
+ * depends on the number of request evaluators.
+ *
+ * The pool is configured through the following db.properties entries, where
+ * <code>name</code> is the name of the db source:
+ * <ul>
+ * <li><code>name.pool</code> - set to true to enable pooling</li>
+ * <li><code>name.pool.minSize</code> - the number of connections to keep open
+ *     even if idle (default 0)</li>
+ * <li><code>name.pool.maxSize</code> - the maximum number of connections (default 20)</li>
+ * <li><code>name.pool.maxWait</code> - the number of seconds to wait for a connection
+ *     if all connections are in use (default 30)</li>
+ * <li><code>name.pool.idleTimeout</code> - the number of seconds after which idle
+ *     connections are closed (default 600)</li>
+ * <li><code>name.pool.validationInterval</code> - the number of seconds after which
+ *     a connection is tested before it is handed out again (default 60)</li>
+ * <li><code>name.pool.validationQuery</code> - the statement used to test
+ *     connections (default <code>SELECT 1</code>)</li>
+ * <li><code>name.pool.leakTimeout</code> - the number of seconds after which
+ *     a borrowed connection is reported as leaked, or 0 to disable leak detection
+ *     (default 0)</li>
+ * </ul>
+ */
+final class ConnectionPool {
+
+    private final DbSource source;
+
+    // idle connections, used as a stack so recently used connections are reused first
+    private final LinkedList<Entry> idle = new LinkedList<Entry>();
+
+    // connections currently borrowed, keyed by connection
+    private final Map<Connection, Entry> active = new HashMap<Connection, Entry>();
+
+    // number of connections currently being opened
+    private int opening = 0;
+
+    private boolean closed = false;
+
+    // settings
+    private int minSize;
+    private int maxSize;
+    private long maxWait;
+    private long idleTimeout;
+    private long validationInterval;
+    private long leakTimeout;
+    private String validationQuery;
+
+    // statistics
+    private long borrowCount = 0;
+    private long openCount = 0;
+    private long closeCount = 0;
+    private long validationFailures = 0;
+    private long timeoutCount = 0;
+    private long leakCount = 0;
+
+    /**
+     * Create a new connection pool.
+     *
+     * @param source the db source to open connections for
+     * @param props the db source's sub-properties
+     */
+    ConnectionPool(DbSource source, ResourceProperties props) {
+        this.source = source;
+        configure(props);
+    }
+
+    /**
+     * Update the pool settings from the db source's sub-properties.
+     *
+     * @param props the db source's sub-properties
+     */
+    synchronized void configure(ResourceProperties props) {
+        minSize = getInt(props, "pool.minSize", 0);
+        maxSize = Math.max(1, getInt(props, "pool.maxSize", 20));
+        maxWait = getInt(props, "pool.maxWait", 30) * 1000L;
+        idleTimeout = getInt(props, "pool.idleTimeout", 600) * 1000L;
+        validationInterval = getInt(props, "pool.validationInterval", 60) * 1000L;
+        leakTimeout = getInt(props, "pool.leakTimeout", 0) * 1000L;
+        validationQuery = props.getProperty("pool.validationQuery");
+        if (validationQuery == null) {
+            validationQuery = source.isOracle() ? "SELECT 1 FROM DUAL" : "SELECT 1";
+        }
+        // wake up waiting threads in case maxSize was raised
+        notifyAll();
+    }
+
+    private static int getInt(ResourceProperties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException x) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if no idle connection
+     * is available and the pool has not reached its maximum size. If all connections
+     * are in use, wait for one to be returned.
+     *
+     * @return a connection
+     * @throws SQLException if no connection could be obtained in time
+     * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
+     */
+    Connection borrow() throws SQLException, ClassNotFoundException {
+        long deadline = System.currentTimeMillis() + maxWait;
+
+        while (true) {
+            Entry entry = null;
+
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && active.size() + opening >= maxSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        timeoutCount += 1;
+                        throw new SQLException("Timed out waiting for a connection to " +
+                                source.getName() + " (" + active.size() + " in use)");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException ir) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a connection to " +
+                                source.getName());
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool for " + source.getName() +
+                            " has been closed");
+                }
+                if (!idle.isEmpty()) {
+                    // count the entry as active while validating so it's not
+                    // mistaken for free capacity by other threads
+                    entry = idle.removeFirst();
+                    entry.borrowed = System.currentTimeMillis();
+                    active.put(entry.connection, entry);
+                } else {
+                    opening += 1;
+                }
+            }
+
+            boolean opened = entry == null;
+            if (opened) {
+                entry = open();
+            } else if (!validate(entry)) {
+                synchronized (this) {
+                    active.remove(entry.connection);
+                }
+                discard(entry);
+                continue;
+            }
+
+            synchronized (this) {
+                if (opened) {
+                    opening -= 1;
+                }
+                entry.borrowed = System.currentTimeMillis();
+                entry.thread = Thread.currentThread().getName();
+                entry.trace = leakTimeout > 0 ? new Exception("Connection borrowed here") : null;
+                entry.reported = false;
+                active.put(entry.connection, entry);
+                borrowCount += 1;
+            }
+            return entry.connection;
+        }
+    }
+
+    /**
+     * Return a borrowed connection to the pool. Any open transaction is rolled back
+     * and the auto-commit and read-only modes are reset to those of a newly opened
+     * connection. Connections that can't be reset, closed connections and connections
+     * not borrowed from this pool are discarded.
+     *
+     * @param con the connection
+     */
+    void release(Connection con) {
+        Entry entry;
+        synchronized (this) {
+            entry = active.remove(con);
+        }
+        if (entry == null) {
+            closeQuietly(con);
+            return;
+        }
+
+        boolean usable;
+        try {
+            usable = !con.isClosed() && reset(entry);
+        } catch (SQLException x) {
+            usable = false;
+        }
+
+        synchronized (this) {
+            if (usable && !closed) {
+                entry.lastUsed = System.currentTimeMillis();
+                entry.trace = null;
+                idle.addFirst(entry);
+                notifyAll();
+                return;
+            }
+        }
+        discard(entry);
+    }
+
+    /**
+     * Close a borrowed connection and remove it from the pool instead of
+     * returning it. Used for connections that may still be in use by a
+     * thread that has been killed, so they can't be handed out again.
+     * Connections not borrowed from this pool are closed.
+     *
+     * @param con the connection
+     */
+    void invalidate(Connection con) {
+        Entry entry;
+        synchronized (this) {
+            entry = active.remove(con);
+        }
+        if (entry == null) {
+            closeQuietly(con);
+        } else {
+            discard(entry);
+        }
+    }
+
+    /**
+     * Roll back any uncommitted work on a returned connection and restore the
+     * auto-commit and read-only modes it had when it was opened, so the next
+     * borrower gets a connection in a known state.
+     *
+     * @return true if the connection could be reset
+     */
+    private boolean reset(Entry entry) {
+        Connection con = entry.connection;
+        try {
+            if (!con.getAutoCommit()) {
+                con.rollback();
+            }
+            if (con.getAutoCommit() != entry.autoCommit) {
+                con.setAutoCommit(entry.autoCommit);
+            }
+            if (con.isReadOnly() != entry.readOnly) {
+                con.setReadOnly(entry.readOnly);
+            }
+            con.clearWarnings();
+            return true;
+        } catch (SQLException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the prepared statement cache of a borrowed connection, creating it
+     * if necessary. The cache stays with the connection while it is in the
+     * pool and is closed along with it, so statements are reused across
+     * requests. It must only be used by the thread that borrowed the connection.
+     *
+     * @param con the connection
+     * @param capacity the capacity of a newly created cache
+     * @return the statement cache, or null if the connection isn't borrowed from this pool
+     */
+    synchronized StatementCache getStatementCache(Connection con, int capacity) {
+        Entry entry = active.get(con);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.statements == null) {
+            entry.statements = new StatementCache(con, capacity);
+        }
+        return entry.statements;
+    }
+
+    /**
+     * Check whether the given connection is currently borrowed from this pool.
+     *
+     * @param con the connection
+     * @return true if the connection was borrowed from this pool
+     */
+    synchronized boolean isBorrowed(Connection con) {
+        return active.containsKey(con);
+    }
+
+    /**
+     * Close connections that have been idle for too long, open connections
+     * up to the minimum pool size, and report connections that have been
+     * borrowed for longer than the leak timeout. Called periodically by the
+     * application's scheduler thread.
+     *
+     * @param app the application to log to
+     */
+    void check(Application app) {
+        long now = System.currentTimeMillis();
+        List<Entry> expired = new ArrayList<Entry>();
+        int missing;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            // idle list is ordered by last use, so the oldest entries are at the end
+            while (idle.size() + active.size() > minSize && !idle.isEmpty() &&
+                    now - idle.getLast().lastUsed > idleTimeout) {
+                expired.add(idle.removeLast());
+            }
+            missing = minSize - (idle.size() + active.size() + opening);
+            opening += Math.max(0, missing);
+
+            if (leakTimeout > 0) {
+                for (Iterator<Entry> it = active.values().iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (!entry.reported && now - entry.borrowed > leakTimeout) {
+                        entry.reported = true;
+                        leakCount += 1;
+                        app.logError("Possible connection leak: connection to " +
+                                source.getName() + " borrowed by " + entry.thread + " " +
+                                ((now - entry.borrowed) / 1000) + " seconds ago", entry.trace);
+                    }
+                }
+            }
+        }
+
+        for (Iterator<Entry> it = expired.iterator(); it.hasNext();) {
+            discard(it.next());
+        }
+
+        for (int i = 0; i < missing; i++) {
+            try {
+                Entry entry = open();
+                boolean added = false;
+                synchronized (this) {
+                    opening -= 1;
+                    if (!closed) {
+                        entry.lastUsed = now;
+                        idle.addLast(entry);
+                        added = true;
+                        notifyAll();
+                    }
+                }
+                if (!added) {
+                    discard(entry);
+                }
+            } catch (Exception x) {
+                app.logError("Error opening connection to " + source.getName(), x);
+                synchronized (this) {
+                    // give back the remaining reservations
+                    opening -= missing - i - 1;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Close all idle connections and mark the pool as closed. Borrowed connections
+     * are closed when they are returned.
+     */
+    void close() {
+        List<Entry> entries;
+        synchronized (this) {
+            closed = true;
+            entries = new ArrayList<Entry>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+            discard(it.next());
+        }
+    }
+
+    /**
+     * Returns a map of statistics about the pool.
+     */
+    synchronized Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("size", idle.size() + active.size());
+        stats.put("active", active.size());
+        stats.put("idle", idle.size());
+        stats.put("minSize", minSize);
+        stats.put("maxSize", maxSize);
+        stats.put("borrowCount", borrowCount);
+        stats.put("openCount", openCount);
+        stats.put("closeCount", closeCount);
+        stats.put("validationFailures", validationFailures);
+        stats.put("timeoutCount", timeoutCount);
+        stats.put("leakCount", leakCount);
+        return stats;
+    }
+
+    /**
+     * Open a new connection. The caller must have incremented the opening counter,
+     * and must decrement it once the new connection has been added to the pool.
+     * If opening the connection fails, the counter is decremented here.
+     */
+    private Entry open() throws SQLException, ClassNotFoundException {
+        Connection con = null;
+        try {
+            con = source.createConnection();
+        } finally {
+            synchronized (this) {
+                if (con != null) {
+                    openCount += 1;
+                } else {
+                    // let another waiting thread try
+                    opening -= 1;
+                    notifyAll();
+                }
+            }
+        }
+        Entry entry = new Entry(con);
+        entry.validated = System.currentTimeMillis();
+        try {
+            // remember the initial state to reset returned connections to
+            entry.autoCommit = con.getAutoCommit();
+            entry.readOnly = con.isReadOnly();
+        } catch (SQLException x) {
+            synchronized (this) {
+                opening -= 1;
+            }
+            discard(entry);
+            throw x;
+        }
+        return entry;
+    }
+
+    /**
+     * Test an idle connection before handing it out again.
+     */
+    private boolean validate(Entry entry) {
+        long now = System.currentTimeMillis();
+        try {
+            if (entry.connection.isClosed()) {
+                return false;
+            }
+            if (now - entry.validated > validationInterval) {
+                Statement stmt = entry.connection.createStatement();
+                try {
+                    stmt.execute(validationQuery);
+                } finally {
+                    stmt.close();
+                }
+                entry.validated = now;
+            }
+            return true;
+        } catch (SQLException sx) {
+            synchronized (this) {
+                validationFailures += 1;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Close a connection that is no longer part of the pool.
+     */
+    private void discard(Entry entry) {
+        if (entry.statements != null) {
+            entry.statements.close();
+        }
+        closeQuietly(entry.connection);
+        synchronized (this) {
+            closeCount += 1;
+            notifyAll();
+        }
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (Exception ignore) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * A pooled connection along with its bookkeeping data.
+     */
+    static final class Entry {
+        final Connection connection;
+        long lastUsed;
+        long validated;
+        long borrowed;
+        String thread;
+        Exception trace;
+        boolean reported;
+        // connection state when opened
+        boolean autoCommit;
+        boolean readOnly;
+        // prepared statements, kept while the connection is in the pool
+        StatementCache statements;
+
+        Entry(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -72,6 +72,9 @@ public final class DbMapping {
     // list of columns to fetch from db
     private DbColumn[] columns = null;
 
+    // property slot layout shared by nodes fetched with the above columns
+    private PropertyMap.Layout propertyLayout = null;
+
     // Map of db columns by name
     private HashMap columnMap;
 
@@ -80,6 +83,7 @@ public final class DbMapping {
 
     // pre-rendered select statement
     private String selectString = null;
+    private String selectByIdString = null;
     private String insertString = null;
     private String updateString = null;
 
@@ -299,8 +303,9 @@ public final class DbMapping {
 
         // null the cached columns and select string
         columns = null;
+        propertyLayout = null;
         columnMap.clear();
-        selectString = insertString = updateString = null;
+        selectString = selectByIdString = insertString = updateString = null;
 
         HashMap p2d = new HashMap();
         HashMap d2p = new HashMap();
@@ -968,11 +973,20 @@ public final class DbMapping {
                 list.add(col);
             }
             columns = (DbColumn[]) list.toArray(new DbColumn[list.size()]);
+            propertyLayout = new PropertyMap.Layout(columns);
         }
 
         return columns;
     }
 
+    /**
+     * Get the property slot layout for nodes fetched with the current columns,
+     * or null if the columns haven't been read yet.
+     */
+    synchronized PropertyMap.Layout getPropertyLayout() {
+        return propertyLayout;
+    }
+
     /**
      *  Return the array of relations that are fetched with objects of this type.
      */
@@ -1092,6 +1106,29 @@ public final class DbMapping {
         return s;
     }
 
+    /**
+     * Get the parameterized statement to select an object by its primary key,
+     * including joined objects. The primary key value is the only parameter.
+     *
+     * @return the select statement
+     */
+    public String getSelectById() throws ClassNotFoundException, SQLException {
+        String sel = selectByIdString;
+
+        if (sel != null) {
+            return sel;
+        }
+
+        StringBuffer b = getSelect(null).append("WHERE ");
+        appendParameterCondition(b, getIDField(), 1);
+        addJoinConstraints(b, " AND ");
+
+        // cache rendered string for later calls.
+        sel = selectByIdString = b.toString();
+
+        return sel;
+    }
+
     /**
      *
      *
@@ -1557,10 +1594,24 @@ public final class DbMapping {
      */
     protected void appendCondition(StringBuffer q, String column, String val)
             throws SQLException, ClassNotFoundException {
+        appendCondition(q, column, " = ", val);
+    }
+
+    /**
+     * Append a sql-condition comparing the given column to the given value
+     * using the given operator to the given StringBuffer.
+     * @param q the StringBuffer to append to
+     * @param column the column to compare
+     * @param operator the comparison operator, e.g. " = " or " > "
+     * @param val the value
+     * @throws SQLException
+     */
+    protected void appendCondition(StringBuffer q, String column, String operator, String val)
+            throws SQLException, ClassNotFoundException {
         if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
             q.append(getTableName()).append(".");
         }
-        q.append(column).append(" = ");
+        q.append(column).append(operator);
         
         if (needsQuotes(column)) {
             q.append("'").append(escapeString(val)).append("'");
@@ -1569,6 +1620,84 @@ public final class DbMapping {
         }
     }
 
+    /**
+     * Append a sql-condition comparing the given column to the given value.
+     * If params is not null, a placeholder is rendered instead of the value,
+     * and the value is added to params. Null values are always rendered
+     * inline, as they are by appendCondition().
+     * @param q the StringBuffer to append to
+     * @param column the column to compare
+     * @param operator the comparison operator, e.g. " = " or " > "
+     * @param val the value
+     * @param params the placeholder values, or null to render the value inline
+     * @throws SQLException
+     */
+    protected void appendCondition(StringBuffer q, String column, String operator,
+                                   String val, QueryParameters params)
+            throws SQLException, ClassNotFoundException {
+        if (params == null || val == null) {
+            appendCondition(q, column, operator, val);
+            return;
+        }
+        if (!needsQuotes(column)) {
+            // fail early on invalid numbers, just like the inline variant
+            checkNumber(val);
+        }
+        if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
+            q.append(getTableName()).append(".");
+        }
+        q.append(column).append(operator).append("?");
+        params.add(this, column, val);
+    }
+
+    /**
+     * Append a parameterized sql-condition for the given column to the given
+     * StringBuffer, using a placeholder for each value. The values must be set
+     * using {@link #setConditionValue(PreparedStatement, int, String, String)}.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match one of the values
+     * @param count the number of values
+     */
+    protected void appendParameterCondition(StringBuffer q, String column, int count) {
+        if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
+            q.append(getTableName()).append(".");
+        }
+        if (count == 1) {
+            q.append(column).append(" = ?");
+            return;
+        }
+        q.append(column).append(" in (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                q.append(", ");
+            q.append("?");
+        }
+        q.append(")");
+    }
+
+    /**
+     * Set the value of a placeholder rendered by appendParameterCondition(),
+     * converting it according to the column type.
+     * @param stmt the prepared statement
+     * @param index the parameter index
+     * @param column the column the value is matched against
+     * @param val the value
+     * @throws SQLException
+     */
+    protected void setConditionValue(PreparedStatement stmt, int index, String column, String val)
+            throws SQLException, ClassNotFoundException {
+        if (needsQuotes(column)) {
+            stmt.setString(index, val);
+        } else {
+            String num = checkNumber(val);
+            if (num.indexOf('.') == -1) {
+                stmt.setLong(index, Long.parseLong(num));
+            } else {
+                stmt.setBigDecimal(index, new java.math.BigDecimal(num));
+            }
+        }
+    }
+
     /**
      * a utility method to escape single quotes used for inserting
      * string-values into relational databases.
@@ -16,6 +16,7 @@
 
 package helma.objectmodel.db;
 
+import helma.framework.core.Application;
 import helma.util.ResourceProperties;
 
 import java.sql.Connection;
@@ -25,6 +26,7 @@ import java.sql.Statement;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Hashtable;
+import java.util.Map;
 
 /**
  *  This class describes a releational data source (URL, driver, user and password).
@@ -43,6 +45,8 @@ public class DbSource {
     private int hashcode;
     // thread local connection holder for non-transactor threads
     private ThreadLocal connection;
+    // connection pool for transactor threads, null if pooling is disabled
+    private volatile ConnectionPool pool;
 
     /**
      * Creates a new DbSource object.
@@ -66,22 +70,63 @@ public class DbSource {
      * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
      * @throws SQLException if the connection couldn't be created
      */
-    public synchronized Connection getConnection()
+    public Connection getConnection()
             throws ClassNotFoundException, SQLException {
-        Connection con;
         Transactor tx = Transactor.getInstance();
+        if (tx != null && pool != null) {
+            return getPooledConnection(tx);
+        }
+        return getUnpooledConnection(tx);
+    }
+
+    /**
+     * Get a connection for a transactor thread from the connection pool. The
+     * connection is registered with the transactor, which returns it to the pool
+     * when the request is finished.
+     */
+    private Connection getPooledConnection(Transactor tx)
+            throws ClassNotFoundException, SQLException {
+        Connection con = tx.getConnection(this);
+
+        if (isFileUpdated()) {
+            init();
+            // don't keep using a connection opened with the old settings
+            if (con != null && !isPooled(con)) {
+                con = null;
+            }
+        }
+
+        ConnectionPool p = pool;
+        if (p == null) {
+            // pooling was disabled by the update
+            return getUnpooledConnection(tx);
+        }
+
+        if (con == null || con.isClosed()) {
+            con = p.borrow();
+            tx.registerConnection(this, con);
+        }
+
+        return con;
+    }
+
+    /**
+     * Get a connection that is kept open for the lifetime of the calling thread.
+     */
+    private synchronized Connection getUnpooledConnection(Transactor tx)
+            throws ClassNotFoundException, SQLException {
+        Connection con;
         if (tx != null) {
             con = tx.getConnection(this);
         } else {
             con = getThreadLocalConnection();
         }
 
-        boolean fileUpdated = props.lastModified() > lastRead ||
-                (defaultProps != null && defaultProps.lastModified() > lastRead);
+        boolean fileUpdated = isFileUpdated();
 
         if (con == null || con.isClosed() || fileUpdated) {
             init();
-            con = DriverManager.getConnection(url, conProps);
+            con = createConnection();
 
             // If we wanted to use SQL transactions, we'd set autoCommit to
             // false here and make commit/rollback invocations in Transactor methods;
@@ -96,6 +141,131 @@ public class DbSource {
         return con;
     }
 
+    /**
+     * Open a new JDBC connection to the db source.
+     *
+     * @return a new JDBC connection
+     * @throws SQLException if the connection couldn't be created
+     */
+    Connection createConnection() throws SQLException {
+        String url;
+        Properties conProps;
+        synchronized (this) {
+            url = this.url;
+            conProps = this.conProps;
+        }
+        return DriverManager.getConnection(url, conProps);
+    }
+
+    /**
+     * Check whether db.properties have been modified since the db source was initialized.
+     */
+    private boolean isFileUpdated() {
+        return props.lastModified() > lastRead ||
+                (defaultProps != null && defaultProps.lastModified() > lastRead);
+    }
+
+    /**
+     * Check whether this db source uses a connection pool.
+     *
+     * @return true if connections are borrowed from a pool
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Check whether the given connection was borrowed from this db source's pool.
+     *
+     * @param con the connection
+     * @return true if the connection is currently borrowed from the pool
+     */
+    boolean isPooled(Connection con) {
+        ConnectionPool p = pool;
+        return p != null && p.isBorrowed(con);
+    }
+
+    /**
+     * Get the prepared statement cache of a connection borrowed from the pool.
+     *
+     * @param con the connection
+     * @param capacity the capacity of a newly created cache
+     * @return the statement cache, or null if the connection isn't borrowed from the pool
+     */
+    StatementCache getStatementCache(Connection con, int capacity) {
+        ConnectionPool p = pool;
+        return p == null ? null : p.getStatementCache(con, capacity);
+    }
+
+    /**
+     * Return a connection borrowed from the pool. Connections not borrowed
+     * from the pool are closed.
+     *
+     * @param con the connection
+     */
+    void releaseConnection(Connection con) {
+        ConnectionPool p = pool;
+        if (p != null) {
+            p.release(con);
+        } else {
+            try {
+                con.close();
+            } catch (SQLException ignore) {/* nothing to do */}
+        }
+    }
+
+    /**
+     * Close a connection borrowed from the pool and remove it from the pool,
+     * so it is not handed out again. Connections not borrowed from the pool
+     * are closed as well.
+     *
+     * @param con the connection
+     */
+    void discardConnection(Connection con) {
+        ConnectionPool p = pool;
+        if (p != null) {
+            p.invalidate(con);
+        } else {
+            try {
+                con.close();
+            } catch (SQLException ignore) {/* nothing to do */}
+        }
+    }
+
+    /**
+     * Close idle connections, open connections up to the pool's minimum size
+     * and report leaked connections. Does nothing if pooling is disabled.
+     *
+     * @param app the application to log to
+     */
+    public void checkPool(Application app) {
+        ConnectionPool p = pool;
+        if (p != null) {
+            p.check(app);
+        }
+    }
+
+    /**
+     * Close the connection pool, if any. Called when the application is stopped.
+     */
+    public synchronized void shutdown() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * Get statistics about the connection pool, such as the number of active
+     * and idle connections.
+     *
+     * @return a map of pool statistics, or null if pooling is disabled
+     */
+    public Map<String,Object> getPoolStatistics() {
+        ConnectionPool p = pool;
+        return p == null ? null : p.getStatistics();
+    }
+
     /**
      * Used for connections not managed by a Helma transactor
      * @return a thread local tested connection, or null
@@ -142,6 +312,8 @@ public class DbSource {
      * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
      */
     private synchronized void init() throws ClassNotFoundException {
+        String oldUrl = url;
+        Properties oldConProps = conProps;
         lastRead = (defaultProps == null) ? props.lastModified()
                                           : Math.max(props.lastModified(),
                                                      defaultProps.lastModified());
@@ -187,11 +359,29 @@ public class DbSource {
             if ("url".equalsIgnoreCase(key) ||
                 "driver".equalsIgnoreCase(key) ||
                 "user".equalsIgnoreCase(key) ||
-                "password".equalsIgnoreCase(key)) {
+                "password".equalsIgnoreCase(key) ||
+                "pool".equalsIgnoreCase(key) ||
+                key.toLowerCase().startsWith("pool.")) {
                 continue;
             }
             conProps.setProperty(key, subProps.getProperty(key));
         }
+
+        // set up or reconfigure the connection pool
+        if ("true".equalsIgnoreCase(subProps.getProperty("pool"))) {
+            if (pool != null && url.equals(oldUrl) && conProps.equals(oldConProps)) {
+                pool.configure(subProps);
+            } else {
+                // connections borrowed from the old pool are closed when returned
+                if (pool != null) {
+                    pool.close();
+                }
+                pool = new ConnectionPool(this, subProps);
+            }
+        } else if (pool != null) {
+            pool.close();
+            pool = null;
+        }
     }
 
     /**
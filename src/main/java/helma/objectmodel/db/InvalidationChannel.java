@@ -0,0 +1,59 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * The transport used by {@link ClusterInvalidator} to exchange cache invalidation
+ * messages with the other Helma instances of a cluster. Implementations must
+ * deliver received messages to {@link ClusterInvalidator#receive(byte[], int, int)},
+ * and may deliver the messages sent by this instance back to it, which are ignored.
+ *
+ * The implementation class is set through the <code>clusterChannelImpl</code>
+ * app property.
+ */
+public interface InvalidationChannel {
+
+    /**
+     * Open the channel and start receiving messages.
+     *
+     * @param app the application
+     * @param props the application properties
+     * @param receiver the invalidator to pass received messages to
+     * @throws IOException if the channel couldn't be opened
+     */
+    public void init(Application app, Properties props, ClusterInvalidator receiver)
+            throws IOException;
+
+    /**
+     * Send a message to all other instances in the cluster.
+     *
+     * @param data the message buffer
+     * @param length the length of the message
+     * @throws IOException if the message couldn't be sent
+     */
+    public void send(byte[] data, int length) throws IOException;
+
+    /**
+     * Close the channel.
+     */
+    public void shutdown();
+}
@@ -0,0 +1,134 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Properties;
+
+/**
+ * An invalidation channel that sends messages as UDP multicast datagrams.
+ * Multicast loopback is enabled, so several instances running on the same
+ * host receive each other's messages. The channel is configured through
+ * the following app properties:
+ * <ul>
+ * <li><code>clusterGroup</code> - the multicast group address (default 239.255.76.76)</li>
+ * <li><code>clusterPort</code> - the UDP port (default 7676)</li>
+ * <li><code>clusterInterface</code> - the name of the network interface to use,
+ *     e.g. eth0 (default: the system default)</li>
+ * <li><code>clusterTtl</code> - the multicast time to live (default 1)</li>
+ * </ul>
+ */
+public class MulticastInvalidationChannel implements InvalidationChannel, Runnable {
+
+    // maximum size of a UDP datagram payload
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private Application app;
+    private ClusterInvalidator receiver;
+    private MulticastSocket socket;
+    private InetSocketAddress group;
+    private NetworkInterface netIf;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Join the multicast group and start the receiver thread.
+     */
+    public void init(Application app, Properties props, ClusterInvalidator receiver)
+            throws IOException {
+        this.app = app;
+        this.receiver = receiver;
+
+        InetAddress address = InetAddress.getByName(props.getProperty("clusterGroup",
+                "239.255.76.76"));
+        int port = Integer.parseInt(props.getProperty("clusterPort", "7676"));
+        int ttl = Integer.parseInt(props.getProperty("clusterTtl", "1"));
+        String ifName = props.getProperty("clusterInterface");
+
+        group = new InetSocketAddress(address, port);
+        if (ifName != null) {
+            netIf = NetworkInterface.getByName(ifName);
+            if (netIf == null) {
+                throw new SocketException("Unknown network interface: " + ifName);
+            }
+        }
+
+        socket = new MulticastSocket(port);
+        socket.setTimeToLive(ttl);
+        if (netIf != null) {
+            socket.setNetworkInterface(netIf);
+        }
+        socket.joinGroup(group, netIf);
+
+        running = true;
+        thread = new Thread(this, "ClusterReceiver-" + app.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Send a message to the multicast group.
+     */
+    public void send(byte[] data, int length) throws IOException {
+        socket.send(new DatagramPacket(data, length, group));
+    }
+
+    /**
+     * Leave the multicast group and stop the receiver thread.
+     */
+    public void shutdown() {
+        running = false;
+        if (socket != null) {
+            try {
+                socket.leaveGroup(group, netIf);
+            } catch (IOException ignore) {
+                // socket is closed anyway
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * The receiver thread's main loop.
+     */
+    public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                receiver.receive(packet.getData(), packet.getOffset(), packet.getLength());
+            } catch (IOException iox) {
+                if (running) {
+                    app.logError("Error receiving cluster invalidation message", iox);
+                }
+            } catch (RuntimeException x) {
+                app.logError("Error processing cluster invalidation message", x);
+            }
+        }
+    }
+}
@@ -40,7 +40,7 @@ public final class Node implements INode {
     private SubnodeList subnodes;
 
     // Named subnodes (properties) of this node
-    private Hashtable propMap;
+    private PropertyMap propMap;
 
     protected long created;
     protected long lastmodified;
@@ -101,7 +101,7 @@ public final class Node implements INode {
         if (prototype == null) {
             prototype = "HopObject";
         }
-        init(nmgr.getDbMapping(prototype), id, name, prototype, null);
+        init(nmgr.getDbMapping(prototype), id, name, prototype, (PropertyMap) null);
     }
 
     /**
@@ -169,6 +169,14 @@ public final class Node implements INode {
      */
     public synchronized void init(DbMapping dbm, String id, String name,
                                   String prototype, Hashtable propMap) {
+        init(dbm, id, name, prototype, toPropertyMap(propMap));
+    }
+
+    /**
+     * Initializer used for nodes being instanced from an embedded or relational database.
+     */
+    public synchronized void init(DbMapping dbm, String id, String name,
+                                  String prototype, PropertyMap propMap) {
         this.dbmap = dbm;
         this.prototype = prototype;
         this.id = id;
@@ -192,9 +200,28 @@ public final class Node implements INode {
      * used by Xml deserialization
      */
     public synchronized void setPropMap(Hashtable propMap) {
+        this.propMap = toPropertyMap(propMap);
+    }
+
+    /**
+     * Set the property table of this node.
+     */
+    public synchronized void setPropertyMap(PropertyMap propMap) {
         this.propMap = propMap;
     }
 
+    private static PropertyMap toPropertyMap(Hashtable table) {
+        if (table == null) {
+            return null;
+        }
+        PropertyMap map = new PropertyMap();
+        for (Iterator it = table.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            map.put((String) entry.getKey(), (Property) entry.getValue());
+        }
+        return map;
+    }
+
     /**
      * Get the write lock on this node, throwing a ConcurrencyException if the
      * lock is already held by another thread.
@@ -589,6 +616,14 @@ public final class Node implements INode {
         parentHandle = parent;
     }
 
+    /**
+     *  Get the handle of this node's parent node without retrieving or
+     *  computing the parent.
+     */
+    public NodeHandle getParentHandle() {
+        return parentHandle;
+    }
+
     /**
      * Get parent, retrieving it if necessary.
      */
@@ -1513,6 +1548,18 @@ public final class Node implements INode {
         };
     }
 
+    /**
+     * Get a cursor returning this node's child nodes in batches. For relational
+     * collections, the child nodes are loaded batch by batch instead of loading
+     * the full list of child ids.
+     *
+     * @param batchSize the number of nodes per batch
+     * @return the cursor
+     */
+    public NodeCursor getChildCursor(int batchSize) {
+        return new NodeCursor(this, batchSize);
+    }
+
     /**
      * Return this Node's subnode list
      *
@@ -1557,11 +1604,34 @@ public final class Node implements INode {
     }
 
     /**
+     * Get a copy of the explicitly stored properties of this node as a table
+     * mapping property names to Property objects. Changes to the table are not
+     * reflected by the node.
      *
-     *
-     * @return ...
+     * @return the properties, or null
      */
     public Hashtable getPropMap() {
+        PropertyMap map = propMap;
+        if (map == null) {
+            return null;
+        }
+        Hashtable table = new Hashtable();
+        for (Enumeration en = map.keys(); en.hasMoreElements();) {
+            String key = (String) en.nextElement();
+            Property prop = map.get(key);
+            if (prop != null) {
+                table.put(key, prop);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Get the property table of this node.
+     *
+     * @return the property table, or null
+     */
+    public PropertyMap getPropertyMap() {
         return propMap;
     }
 
@@ -1795,7 +1865,7 @@ public final class Node implements INode {
         }
 
         if (propMap == null) {
-            propMap = new Hashtable();
+            propMap = new PropertyMap();
         }
 
         propname = propname.trim();
@@ -1831,7 +1901,7 @@ public final class Node implements INode {
         }
 
         if (propMap == null) {
-            propMap = new Hashtable();
+            propMap = new PropertyMap();
         }
 
         propname = propname.trim();
@@ -1943,7 +2013,7 @@ public final class Node implements INode {
         }
 
         if (propMap == null) {
-            propMap = new Hashtable();
+            propMap = new PropertyMap();
         }
 
         propname = propname.trim();
@@ -1981,7 +2051,7 @@ public final class Node implements INode {
         }
 
         if (propMap == null) {
-            propMap = new Hashtable();
+            propMap = new PropertyMap();
         }
 
         propname = propname.trim();
@@ -2019,7 +2089,7 @@ public final class Node implements INode {
         }
 
         if (propMap == null) {
-            propMap = new Hashtable();
+            propMap = new PropertyMap();
         }
 
         propname = propname.trim();
@@ -2057,7 +2127,7 @@ public final class Node implements INode {
         }
 
         if (propMap == null) {
-            propMap = new Hashtable();
+            propMap = new PropertyMap();
         }
 
         propname = propname.trim();
@@ -2095,7 +2165,7 @@ public final class Node implements INode {
         }
 
         if (propMap == null) {
-            propMap = new Hashtable();
+            propMap = new PropertyMap();
         }
 
         propname = propname.trim();
@@ -2229,7 +2299,7 @@ public final class Node implements INode {
                 !rel.otherType.isRelational()) {
             // the node must be stored as explicit property
             if (propMap == null) {
-                propMap = new Hashtable();
+                propMap = new PropertyMap();
             }
 
             propMap.put(p2, prop);
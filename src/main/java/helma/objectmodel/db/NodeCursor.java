@@ -0,0 +1,182 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A forward-only cursor over the child nodes of a node, returning them in
+ * batches. For collections stored in a relational database each batch is
+ * loaded with its own query, so the collection is never held in memory as a
+ * whole and no result set is kept open between batches. If the collection is
+ * ordered by primary key or not ordered at all, batches are selected by seeking
+ * past the last key of the previous batch, otherwise by offset.
+ *
+ * Nodes are registered with the node cache as their batch is loaded. Relational
+ * cursors reflect the state of the database, so child nodes added or removed in
+ * the current transaction are not seen. Other collections are read from the
+ * node's subnode list.
+ */
+public final class NodeCursor {
+
+    private final Node home;
+    private final int batchSize;
+
+    // the subnode relation, or null if reading from the subnode list
+    private final Relation rel;
+    private final int seekDirection;
+
+    // the maximum number of nodes to return, or -1
+    private final int limit;
+
+    // the number of nodes returned so far
+    private int position = 0;
+    private String lastKey = null;
+    private boolean exhausted = false;
+
+    /**
+     * Create a cursor over the child nodes of a node.
+     *
+     * @param home the parent node
+     * @param batchSize the number of nodes per batch
+     */
+    NodeCursor(Node home, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.home = home;
+        this.batchSize = batchSize;
+
+        DbMapping dbmap = home.getDbMapping();
+        Relation subrel = dbmap == null ? null : dbmap.getSubnodeRelation();
+        int state = home.getState();
+        if (subrel != null && subrel.otherType != null && subrel.otherType.isRelational() &&
+                subrel.groupby == null && home.getSubnodeRelation() == null &&
+                state != Node.TRANSIENT && state != Node.NEW) {
+            rel = subrel;
+            seekDirection = subrel.getSeekDirection();
+            limit = subrel.maxSize > 0 ? subrel.maxSize : -1;
+        } else {
+            rel = null;
+            seekDirection = 0;
+            limit = -1;
+        }
+    }
+
+    /**
+     * Returns the number of nodes per batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns true if the last batch has been returned.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Get the next batch of child nodes.
+     *
+     * @return a list of nodes, empty if there are no more nodes
+     */
+    public List nextBatch() {
+        if (exhausted) {
+            return Collections.EMPTY_LIST;
+        }
+        int size = limit < 0 ? batchSize : Math.min(batchSize, limit - position);
+        if (size <= 0) {
+            exhausted = true;
+            return Collections.EMPTY_LIST;
+        }
+        List batch = rel == null ? nextListBatch(size) : nextQueryBatch(size);
+        if (limit > -1 && position >= limit) {
+            exhausted = true;
+        }
+        return batch;
+    }
+
+    private List nextQueryBatch(int size) {
+        Relation batchRel = rel.getClone();
+        batchRel.maxSize = size;
+        if (seekDirection != 0) {
+            if (batchRel.order == null) {
+                String idfield = rel.otherType.getIDField();
+                batchRel.order = idfield.indexOf('(') == -1 && idfield.indexOf('.') == -1 ?
+                        rel.otherType.getTableName() + "." + idfield : idfield;
+            }
+            if (lastKey != null) {
+                batchRel.seekKey = lastKey;
+                batchRel.seekDescending = seekDirection < 0;
+                batchRel.offset = 0;
+            }
+        } else {
+            batchRel.offset = rel.offset + position;
+        }
+
+        List batch;
+        try {
+            batch = home.nmgr.nmgr.getNodes(home, batchRel, true);
+        } catch (Exception x) {
+            throw new RuntimeException("Error retrieving Nodes", x);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Node node = (Node) batch.get(i);
+            // Legacy alarm!
+            if (node.parentHandle == null && !home.nmgr.isRootNode(node)) {
+                node.setParent(home);
+                node.anonymous = true;
+            }
+        }
+        if (batch.size() > 0) {
+            lastKey = ((Node) batch.get(batch.size() - 1)).getID();
+        }
+        position += batch.size();
+        if (batch.size() < size) {
+            exhausted = true;
+        }
+        return batch;
+    }
+
+    private List nextListBatch(int size) {
+        home.loadNodes();
+        SubnodeList list = home.getSubnodeList();
+        int end = list == null ? 0 : Math.min(position + size, list.size());
+        if (end <= position) {
+            exhausted = true;
+            return Collections.EMPTY_LIST;
+        }
+        list.prefetch(position, end - position);
+        List batch = new ArrayList(end - position);
+        for (int i = position; i < end; i++) {
+            Node node = list.getNode(i);
+            if (node != null) {
+                batch.add(node);
+            }
+        }
+        position = end;
+        if (end == list.size()) {
+            exhausted = true;
+        }
+        return batch;
+    }
+}
@@ -20,11 +20,18 @@ import helma.framework.core.Application;
 import helma.framework.core.RequestEvaluator;
 import helma.objectmodel.*;
 import helma.objectmodel.dom.XmlDatabase;
+import helma.objectmodel.logdb.LogDatabase;
 
 import java.io.*;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,7 +49,13 @@ public final class NodeManager {
     protected IDGenerator idgen;
     private boolean logSql;
     private Log sqlLog = null;
+    private volatile int statementCacheSize = 32;
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
     private ArrayList listeners = new ArrayList();
+    private ClusterInvalidator invalidator;
+    private volatile int prefetchBatchSize = 256;
+    private volatile ThreadPoolExecutor readAheadExecutor;
 
     // a wrapper that catches some Exceptions while accessing this NM
     public final WrappedNodeManager safe;
@@ -76,9 +89,49 @@ public final class NodeManager {
         }
 
         logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));
+        updateStatementCacheSize(props);
+        updatePrefetchBatchSize(props);
 
-        db = new XmlDatabase();
+        int readAheadThreads = 2;
+        try {
+            readAheadThreads = Integer.parseInt(props.getProperty("readAheadThreads", "2"));
+        } catch (NumberFormatException x) {
+            app.logError("Invalid readAheadThreads setting: " + props.getProperty("readAheadThreads"));
+        }
+        if (readAheadThreads > 0) {
+            readAheadExecutor = new ThreadPoolExecutor(readAheadThreads, readAheadThreads,
+                    60L, TimeUnit.SECONDS, new ArrayBlockingQueue(readAheadThreads * 16),
+                    new ThreadFactory() {
+                        int count = 0;
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ReadAhead-" + app.getName() + "-" + (++count));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            readAheadExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        // the embedded database, either xml, log or an IDatabase class name
+        String dbImpl = props.getProperty("embeddedDb", "xml");
+        if ("xml".equalsIgnoreCase(dbImpl)) {
+            db = new XmlDatabase();
+        } else if ("log".equalsIgnoreCase(dbImpl)) {
+            db = new LogDatabase();
+        } else {
+            db = (IDatabase) Class.forName(dbImpl).newInstance();
+        }
         db.init(dbHome, app);
+
+        if ("true".equalsIgnoreCase(props.getProperty("clusterInvalidation"))) {
+            invalidator = new ClusterInvalidator(this, props);
+            try {
+                invalidator.start(props);
+            } catch (IOException iox) {
+                throw new DatabaseException("Error starting cluster invalidation: " + iox);
+            }
+            addNodeChangeListener(invalidator);
+        }
     }
 
     /**
@@ -109,6 +162,62 @@ public final class NodeManager {
         // notify the cache about the properties update
         cache.updateProperties(props);
         logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));
+        updateStatementCacheSize(props);
+        updatePrefetchBatchSize(props);
+    }
+
+    /**
+     * Read the maximum number of prepared statements cached per connection
+     * from the statementCacheSize property. A value of 0 disables caching.
+     */
+    private void updateStatementCacheSize(Properties props) {
+        String size = props.getProperty("statementCacheSize", "32");
+        try {
+            statementCacheSize = Integer.parseInt(size);
+        } catch (NumberFormatException x) {
+            app.logError("Invalid statementCacheSize setting: " + size);
+            statementCacheSize = 32;
+        }
+    }
+
+    /**
+     * Read the maximum number of nodes fetched by a single prefetch query
+     * from the prefetchBatchSize property.
+     */
+    private void updatePrefetchBatchSize(Properties props) {
+        String size = props.getProperty("prefetchBatchSize", "256");
+        try {
+            prefetchBatchSize = Math.max(1, Integer.parseInt(size));
+        } catch (NumberFormatException x) {
+            app.logError("Invalid prefetchBatchSize setting: " + size);
+            prefetchBatchSize = 256;
+        }
+    }
+
+    /**
+     * Run a task on the read-ahead thread pool.
+     *
+     * @param task the task
+     * @return false if read-ahead is disabled or the pool is busy
+     */
+    boolean submitReadAhead(Runnable task) {
+        ThreadPoolExecutor executor = readAheadExecutor;
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException rx) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the maximum number of prepared statements cached per connection.
+     */
+    int getStatementCacheSize() {
+        return statementCacheSize;
     }
 
     /**
@@ -116,6 +225,17 @@ public final class NodeManager {
      *  using this node manager is stopped.
      */
     public void shutdown() throws DatabaseException {
+        if (invalidator != null) {
+            removeNodeChangeListener(invalidator);
+            invalidator.shutdown();
+            invalidator = null;
+        }
+
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdownNow();
+            readAheadExecutor = null;
+        }
+
         db.shutdown();
 
         if (cache != null) {
@@ -290,8 +410,12 @@ public final class NodeManager {
             // the nullNode caches a null value, i.e. an object that doesn't exist
             return null;
         } else {
-            // update primary key in cache to keep it from being flushed, see above
-            if (!rel.usesPrimaryKey() && node.getState() != Node.TRANSIENT) {
+            // update primary key in cache to keep it from being flushed, see above.
+            // the unsynchronized get() refreshes the entry and lets us skip the
+            // synchronized block in the common case where the node is already
+            // registered under its primary key.
+            if (!rel.usesPrimaryKey() && node.getState() != Node.TRANSIENT &&
+                    cache.get(node.getKey()) != node) {
                 synchronized (cache) {
                     Node old = (Node) cache.put(node.getKey(), node);
 
@@ -409,6 +533,27 @@ public final class NodeManager {
         }
     }
 
+    /**
+     * Mark the child collection of a cached node as changed, so it is reloaded
+     * when accessed next. Nodes not in the cache are not affected.
+     */
+    void markSubnodesChanged(Key key) {
+        Node n = (Node) cache.get(key);
+
+        if (n != null) {
+            n.markSubnodesChanged();
+        }
+    }
+
+    /**
+     * Get statistics about cluster invalidation messages, or null if
+     * cluster invalidation is not enabled.
+     */
+    public Map getClusterStatistics() {
+        ClusterInvalidator inv = invalidator;
+        return inv == null ? null : inv.getStatistics();
+    }
+
     ////////////////////////////////////////////////////////////////////////
     // methods to do the actual db work
     ////////////////////////////////////////////////////////////////////////
@@ -419,13 +564,25 @@ public final class NodeManager {
      */
     public void insertNode(IDatabase db, ITransaction txn, Node node)
                     throws IOException, SQLException, ClassNotFoundException {
-        invokeOnPersist(node);
+        insertNode(db, txn, node, null);
+    }
+
+    /**
+     *  Insert a new node in the embedded database or a relational database table,
+     *  depending on its db mapping. If a write batch is passed, relational inserts
+     *  are added to it and executed when the batch is flushed. Pending writes are
+     *  flushed before calling the node's onPersist(), so it sees the rows written
+     *  so far.
+     */
+    public void insertNode(IDatabase db, ITransaction txn, Node node, WriteBatch batch)
+                    throws IOException, SQLException, ClassNotFoundException {
+        invokeOnPersist(node, batch);
         DbMapping dbm = node.getDbMapping();
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.insertNode(txn, node.getID(), node);
         } else {
-            insertRelationalNode(node, dbm, dbm.getConnection());
+            insertRelationalNode(node, dbm, dbm.getConnection(), batch);
         }
     }
 
@@ -472,6 +629,16 @@ public final class NodeManager {
      */
     protected void insertRelationalNode(Node node, DbMapping dbm, Connection con)
                 throws ClassNotFoundException, SQLException {
+        insertRelationalNode(node, dbm, con, null);
+    }
+
+    /**
+     * Insert a node into a relational database, adding the insert to the
+     * write batch if one is passed.
+     */
+    protected void insertRelationalNode(Node node, DbMapping dbm, Connection con,
+                                        WriteBatch batch)
+                throws ClassNotFoundException, SQLException {
 
         if (con == null) {
             throw new NullPointerException("Error inserting relational node: Connection is null");
@@ -481,38 +648,22 @@ public final class NodeManager {
         if (con.isReadOnly()) con.setReadOnly(false);
 
         String insertString = dbm.getInsert();
+
+        if (batch != null) {
+            PreparedStatement stmt = batch.prepare(con, insertString, "SQL INSERT",
+                                                   dbm.getTableName());
+            bindInsertValues(stmt, node, dbm);
+            batch.add();
+            return;
+        }
+
         PreparedStatement stmt = con.prepareStatement(insertString);
 
         // app.logEvent ("inserting relational node: " + node.getID ());
-        DbColumn[] columns = dbm.getColumns();
-
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
         try {
-            int columnNumber = 1;
-
-            for (int i = 0; i < columns.length; i++) {
-                DbColumn col = columns[i];
-                if (!col.isMapped())
-                    continue;
-                if (col.isIdField()) {
-                    setStatementValue(stmt, columnNumber, node.getID(), col);
-                } else if (col.isPrototypeField()) {
-                    setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
-                } else {
-                    Relation rel = col.getRelation();
-                    Property p = rel == null ? null : node.getProperty(rel.getPropName());
-
-                    if (p != null) {
-                        setStatementValue(stmt, columnNumber, p, col.getType());
-                    } else if (col.isNameField()) {
-                        stmt.setString(columnNumber, node.getName());
-                    } else {
-                        stmt.setNull(columnNumber, col.getType());
-                    }
-                }
-                columnNumber += 1;
-            }
+            bindInsertValues(stmt, node, dbm);
             stmt.executeUpdate();
 
         } finally {
@@ -530,16 +681,54 @@ public final class NodeManager {
     }
 
     /**
-     *  calls onPersist function for the HopObject
+     * Set the values of a node's mapped columns on an insert statement.
      */
-    private void invokeOnPersist(Node node) {
-        try {
-            // We need to reach deap into helma.framework.core to invoke onPersist(),
-            // but the functionality is really worth it.
-            RequestEvaluator reval = app.getCurrentRequestEvaluator();
-            if (reval != null) {
-                reval.invokeDirectFunction(node, "onPersist", RequestEvaluator.EMPTY_ARGS);
+    private void bindInsertValues(PreparedStatement stmt, Node node, DbMapping dbm)
+                throws ClassNotFoundException, SQLException {
+        DbColumn[] columns = dbm.getColumns();
+        int columnNumber = 1;
+
+        for (int i = 0; i < columns.length; i++) {
+            DbColumn col = columns[i];
+            if (!col.isMapped())
+                continue;
+            if (col.isIdField()) {
+                setStatementValue(stmt, columnNumber, node.getID(), col);
+            } else if (col.isPrototypeField()) {
+                setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
+            } else {
+                Relation rel = col.getRelation();
+                Property p = rel == null ? null : node.getProperty(rel.getPropName());
+
+                if (p != null) {
+                    setStatementValue(stmt, columnNumber, p, col.getType());
+                } else if (col.isNameField()) {
+                    stmt.setString(columnNumber, node.getName());
+                } else {
+                    stmt.setNull(columnNumber, col.getType());
+                }
             }
+            columnNumber += 1;
+        }
+    }
+
+    /**
+     *  calls onPersist function for the HopObject. If the HopObject defines onPersist,
+     *  the pending writes of the batch are flushed first so it may query the database.
+     */
+    private void invokeOnPersist(Node node, WriteBatch batch) throws SQLException {
+        // We need to reach deap into helma.framework.core to invoke onPersist(),
+        // but the functionality is really worth it.
+        RequestEvaluator reval = app.getCurrentRequestEvaluator();
+        if (reval == null ||
+                !reval.getScriptingEngine().hasFunction(node, "onPersist", false)) {
+            return;
+        }
+        if (batch != null) {
+            batch.flush();
+        }
+        try {
+            reval.invokeDirectFunction(node, "onPersist", RequestEvaluator.EMPTY_ARGS);
         } catch (Exception x) {
             app.logError("Error invoking onPersist()", x);
         }
@@ -554,23 +743,31 @@ public final class NodeManager {
      */
     public boolean updateNode(IDatabase db, ITransaction txn, Node node)
                     throws IOException, SQLException, ClassNotFoundException {
+        return updateNode(db, txn, node, null);
+    }
+
+    /**
+     *  Updates a modified node in the embedded db or an external relational database, depending
+     * on its database mapping. If a write batch is passed, relational updates are added
+     * to it and executed when the batch is flushed. Pending writes are flushed before
+     * calling the node's onPersist(), so it sees the rows written so far.
+     *
+     * @return true if the DbMapping of the updated Node is to be marked as updated via
+     *              DbMapping.setLastDataChange
+     */
+    public boolean updateNode(IDatabase db, ITransaction txn, Node node, WriteBatch batch)
+                    throws IOException, SQLException, ClassNotFoundException {
 
-        invokeOnPersist(node);
+        invokeOnPersist(node, batch);
         DbMapping dbm = node.getDbMapping();
         boolean markMappingAsUpdated = false;
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.updateNode(txn, node.getID(), node);
         } else {
-            Hashtable propMap = node.getPropMap();
-            Property[] props;
-
-            if (propMap == null) {
-                props = new Property[0];
-            } else {
-                props = new Property[propMap.size()];
-                propMap.values().toArray(props);
-            }
+            PropertyMap propMap = node.getPropertyMap();
+            Property[] props = (propMap == null) ?
+                    new Property[0] : propMap.getDirtyProperties();
 
             // make sure table meta info is loaded by dbmapping
             dbm.getColumns();
@@ -615,48 +812,41 @@ public final class NodeManager {
             }
 
             b.append(" WHERE ");
-            dbm.appendCondition(b, dbm.getIDField(), node.getID());
 
             Connection con = dbm.getConnection();
             // set connection to write mode
             if (con.isReadOnly()) con.setReadOnly(false);
-            PreparedStatement stmt = con.prepareStatement(b.toString());
 
-            int stmtNumber = 0;
-            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
-
-            try {
-                for (int i = 0; i < props.length; i++) {
-                    Property p = props[i];
-
-                    if (p == null) {
-                        continue;
-                    }
-
-                    Relation rel = dbm.propertyToRelation(p.getName());
-
-                    stmtNumber++;
-                    setStatementValue(stmt, stmtNumber, p, rel.getColumnType());
-
-                    p.dirty = false;
+            if (batch != null) {
+                // use a placeholder for the id so consecutive updates of the
+                // same columns share one statement
+                dbm.appendParameterCondition(b, dbm.getIDField(), 1);
+                PreparedStatement stmt = batch.prepare(con, b.toString(), "SQL UPDATE",
+                                                       dbm.getTableName());
+                int stmtNumber = bindUpdateValues(stmt, props, dbm);
+                dbm.setConditionValue(stmt, stmtNumber + 1, dbm.getIDField(), node.getID());
+                batch.add();
+                markMappingAsUpdated = isPublicUpdate(props, dbm);
+            } else {
+                dbm.appendCondition(b, dbm.getIDField(), node.getID());
+                PreparedStatement stmt = con.prepareStatement(b.toString());
+                long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
-                    if (!rel.isPrivate()) {
-                        markMappingAsUpdated = true;
+                try {
+                    bindUpdateValues(stmt, props, dbm);
+                    markMappingAsUpdated = isPublicUpdate(props, dbm);
+                    stmt.executeUpdate();
+                } finally {
+                    if (logSql) {
+                        long logTimeStop = System.currentTimeMillis();
+                        logSqlStatement("SQL UPDATE", dbm.getTableName(),
+                                        logTimeStart, logTimeStop, b.toString());
                     }
-                }
-
-                stmt.executeUpdate();
-
-            } finally {
-                if (logSql) {
-                    long logTimeStop = System.currentTimeMillis();
-                    logSqlStatement("SQL UPDATE", dbm.getTableName(),
-                                    logTimeStart, logTimeStop, b.toString());
-                }
-                if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
+                    if (stmt != null) {
+                        try {
+                            stmt.close();
+                        } catch (Exception ignore) {
+                        }
                     }
                 }
             }
@@ -675,16 +865,80 @@ public final class NodeManager {
         return markMappingAsUpdated;
     }
 
+    /**
+     * Set the values of the dirty properties collected by updateNode() on an
+     * update statement and mark them as clean.
+     *
+     * @return the number of values set
+     */
+    private int bindUpdateValues(PreparedStatement stmt, Property[] props, DbMapping dbm)
+            throws SQLException {
+        int stmtNumber = 0;
+
+        for (int i = 0; i < props.length; i++) {
+            Property p = props[i];
+
+            if (p == null) {
+                continue;
+            }
+
+            Relation rel = dbm.propertyToRelation(p.getName());
+
+            stmtNumber++;
+            setStatementValue(stmt, stmtNumber, p, rel.getColumnType());
+
+            p.dirty = false;
+        }
+
+        return stmtNumber;
+    }
+
+    /**
+     * Check whether any of the properties collected by updateNode() is mapped
+     * to a non-private relation.
+     */
+    private boolean isPublicUpdate(Property[] props, DbMapping dbm) {
+        for (int i = 0; i < props.length; i++) {
+            if (props[i] != null && !dbm.propertyToRelation(props[i].getName()).isPrivate()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      *  Performs the actual deletion of a node from either the embedded or an external
      *  SQL database.
      */
     public void deleteNode(IDatabase db, ITransaction txn, Node node)
                     throws Exception {
+        deleteNode(db, txn, node, null);
+    }
+
+    /**
+     *  Performs the actual deletion of a node from either the embedded or an external
+     *  SQL database. If a write batch is passed, relational deletes are added to it
+     *  and executed when the batch is flushed.
+     */
+    public void deleteNode(IDatabase db, ITransaction txn, Node node, WriteBatch batch)
+                    throws Exception {
         DbMapping dbm = node.getDbMapping();
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.deleteNode(txn, node.getID());
+        } else if (batch != null) {
+            StringBuffer b = new StringBuffer("DELETE FROM ").append(dbm.getTableName())
+                                                             .append(" WHERE ");
+            dbm.appendParameterCondition(b, dbm.getIDField(), 1);
+
+            Connection con = dbm.getConnection();
+            // set connection to write mode
+            if (con.isReadOnly()) con.setReadOnly(false);
+
+            PreparedStatement stmt = batch.prepare(con, b.toString(), "SQL DELETE",
+                                                   dbm.getTableName());
+            dbm.setConditionValue(stmt, 1, dbm.getIDField(), node.getID());
+            batch.add();
         } else {
             Statement st = null;
             long logTimeStart = logSql ? System.currentTimeMillis() : 0;
@@ -865,45 +1119,75 @@ public final class NodeManager {
      *  loaded later on demand.
      */
     public List getNodeIDs(Node home, Relation rel) throws Exception {
+        QueryParameters params = new QueryParameters();
+        String query = getNodeIDsQuery(home, rel, params);
+        // problem: how do we derive a SyntheticKey from a not-yet-persistent Node?
+        Key k = (rel.groupby != null) ? home.getKey() : null;
+        return getNodeIDs(rel, k, query, params);
+    }
+
+    /**
+     *  Build the query used to load the subnode IDs of a node via subnode relation.
+     *  The values of the relation's constraints are added to params.
+     */
+    String getNodeIDsQuery(Node home, Relation rel, QueryParameters params) throws Exception {
         DbMapping type = rel == null ? null : rel.otherType;
         if (type == null || !type.isRelational()) {
             // this should never be called for embedded nodes
             throw new RuntimeException("getNodeIDs called for non-relational node " + home);
         }
-        List retval = new ArrayList();
 
         // if we do a groupby query (creating an intermediate layer of groupby nodes),
         // retrieve the value of that field instead of the primary key
+        StringBuffer b = rel.getIdSelect();
+
+        if (home.getSubnodeRelation() != null) {
+            // subnode relation was explicitly set
+            return b.append(" ").append(home.getSubnodeRelation()).toString();
+        } else {
+            // let relation object build the query
+            rel.buildQuery(b, home, true, false, params);
+            return b.toString();
+        }
+    }
+
+    /**
+     *  Loades subnode IDs using a query built by getNodeIDsQuery(). This doesn't
+     *  touch the home node, so it can be called from threads other than the one
+     *  that built the query.
+     *
+     *  @param rel the subnode relation
+     *  @param home the key of the home node, needed for groupby relations only
+     *  @param query the query
+     *  @param params the values of the query's placeholders
+     */
+    List getNodeIDs(Relation rel, Key home, String query, QueryParameters params)
+            throws Exception {
+        DbMapping type = rel.otherType;
+        List retval = new ArrayList();
+
         Connection con = type.getConnection();
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
+        ResultSet result = null;
+        boolean cached = false;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
-        String query = null;
 
         try {
-            StringBuffer b = rel.getIdSelect();
-
-            if (home.getSubnodeRelation() != null) {
-                // subnode relation was explicitly set
-                query = b.append(" ").append(home.getSubnodeRelation()).toString();
-            } else {
-                // let relation object build the query
-                rel.buildQuery(b, home, true, false);
-                query = b.toString();
+            stmt = checkoutStatement(con, query);
+            cached = stmt != null;
+            if (stmt == null) {
+                stmt = con.prepareStatement(query);
             }
 
-            stmt = con.createStatement();
-
             if (rel.maxSize > 0) {
                 stmt.setMaxRows(rel.maxSize);
             }
 
-            ResultSet result = stmt.executeQuery(query);
-
-            // problem: how do we derive a SyntheticKey from a not-yet-persistent Node?
-            Key k = (rel.groupby != null) ? home.getKey() : null;
+            params.setValues(stmt);
+            result = stmt.executeQuery();
 
             while (result.next()) {
                 String kstr = result.getString(1);
@@ -917,7 +1201,7 @@ public final class NodeManager {
                 // make the proper key for the object, either a generic DB key or a groupby key
                 Key key = (rel.groupby == null)
                         ? (Key) new DbKey(rel.otherType, kstr)
-                        : (Key) new SyntheticKey(k, kstr);
+                        : (Key) new SyntheticKey(home, kstr);
                 retval.add(new NodeHandle(key));
 
                 // if these are groupby nodes, evict nullNode keys
@@ -933,14 +1217,9 @@ public final class NodeManager {
             if (logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_IDS", type.getTableName(),
-                        logTimeStart, logTimeStop, query);
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, query, cached);
             }
+            checkinStatement(con, query, stmt, result);
         }
 
         return retval;
@@ -952,6 +1231,18 @@ public final class NodeManager {
      *  This method is used when xxx.loadmode=aggressive is specified.
      */
     public List getNodes(Node home, Relation rel) throws Exception {
+        return getNodes(home, rel, false);
+    }
+
+    /**
+     *  Loades subnodes via subnode relation and registers them with the node cache.
+     *  Used by NodeCursor to load collections in batches.
+     *
+     *  @param home the home node
+     *  @param rel the relation, with maxSize set to the batch size
+     *  @param returnNodes if true return the nodes, otherwise their handles
+     */
+    List getNodes(Node home, Relation rel, boolean returnNodes) throws Exception {
         // This does not apply for groupby nodes - use getNodeIDs instead
         assert rel.groupby == null;
 
@@ -968,29 +1259,41 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = con.createStatement();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
         DbColumn[] columns = dbm.getColumns();
         Relation[] joins = dbm.getJoins();
         String query = null;
+        boolean cached = false;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
         try {
             StringBuffer b = dbm.getSelect(rel);
+            QueryParameters params = new QueryParameters();
 
             if (home.getSubnodeRelation() != null) {
                 b.append(home.getSubnodeRelation());
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
             }
 
             query = b.toString();
 
+            stmt = checkoutStatement(con, query);
+            cached = stmt != null;
+            if (stmt == null) {
+                stmt = con.prepareStatement(query);
+            }
+
             if (rel.maxSize > 0) {
                 stmt.setMaxRows(rel.maxSize);
+                // fetch the whole batch in one round trip
+                stmt.setFetchSize(rel.maxSize);
             }
 
-            ResultSet rs = stmt.executeQuery(query);
+            params.setValues(stmt);
+            rs = stmt.executeQuery();
 
             while (rs.next()) {
                 // create new Nodes.
@@ -1000,9 +1303,8 @@ public final class NodeManager {
                 }
                 Key primKey = node.getKey();
 
-                retval.add(new NodeHandle(primKey));
-
-                registerNewNode(node, null);
+                node = registerNewNode(node, null);
+                retval.add(returnNodes ? (Object) node : new NodeHandle(primKey));
 
                 fetchJoinedNodes(rs, joins, columns.length);
             }
@@ -1011,14 +1313,9 @@ public final class NodeManager {
             if (logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_ALL", dbm.getTableName(),
-                        logTimeStart, logTimeStop, query);
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, query, cached);
             }
+            checkinStatement(con, query, stmt, rs);
         }
 
         return retval;
@@ -1039,7 +1336,9 @@ public final class NodeManager {
     }
 
     /**
-     *
+     *  Load the nodes of a subnode list that are not in the node cache yet.
+     *  Missing nodes are fetched in chunks of at most prefetchBatchSize
+     *  nodes, so large ranges don't result in a single huge query.
      */
     public void prefetchNodes(Node home, Relation rel, SubnodeList list, int start, int length)
                        throws Exception {
@@ -1051,119 +1350,151 @@ public final class NodeManager {
             List missing = collectMissingKeys(list, start, length);
 
             if (missing != null) {
-                Connection con = dbm.getConnection();
-                // set connection to read-only mode
-                if (!con.isReadOnly()) con.setReadOnly(true);
+                int batchSize = prefetchBatchSize;
+                for (int i = 0; i < missing.size(); i += batchSize) {
+                    List chunk = missing.subList(i, Math.min(i + batchSize, missing.size()));
+                    prefetchNodes(home, rel, dbm,
+                            (String[]) chunk.toArray(new String[chunk.size()]));
+                }
+            }
+        }
+    }
 
-                Statement stmt = con.createStatement();
-                DbColumn[] columns = dbm.getColumns();
-                Relation[] joins = dbm.getJoins();
-                String query = null;
-                long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+    private void prefetchNodes(Node home, Relation rel, DbMapping dbm, String[] ids)
+                       throws Exception {
+        Connection con = dbm.getConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly()) con.setReadOnly(true);
 
-                try {
-                    StringBuffer b = dbm.getSelect(null).append(" WHERE ");
-                    String idfield = (rel.groupby != null) ? rel.groupby : dbm.getIDField();
-                    String[] ids = (String[]) missing.toArray(new String[missing.size()]);
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        DbColumn[] columns = dbm.getColumns();
+        Relation[] joins = dbm.getJoins();
+        String query = null;
+        boolean cached = false;
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
-                    dbm.appendCondition(b, idfield, ids);
-                    dbm.addJoinConstraints(b, " AND ");
+        try {
+            StringBuffer b = dbm.getSelect(null).append(" WHERE ");
+            String idfield = (rel.groupby != null) ? rel.groupby : dbm.getIDField();
+
+            // round the number of placeholders up to the next power of two
+            // to keep the number of distinct statements low. Superfluous
+            // placeholders are filled with the last id.
+            int params = Integer.highestOneBit(ids.length);
+            if (params < ids.length) {
+                params <<= 1;
+            }
 
-                    if (rel.groupby != null) {
-                        rel.renderConstraints(b, home, " AND ");
+            dbm.appendParameterCondition(b, idfield, params);
+            dbm.addJoinConstraints(b, " AND ");
 
-                        if (rel.order != null) {
-                            b.append(" ORDER BY ");
-                            b.append(rel.order);
-                        }
-                    }
+            if (rel.groupby != null) {
+                rel.renderConstraints(b, home, " AND ");
 
-                    query = b.toString();
+                if (rel.order != null) {
+                    b.append(" ORDER BY ");
+                    b.append(rel.order);
+                }
+            }
+
+            query = b.toString();
 
-                    ResultSet rs = stmt.executeQuery(query);
+            // group by constraints contain values of the home node,
+            // so only cache plain primary key queries
+            if (rel.groupby == null) {
+                stmt = checkoutStatement(con, query);
+                cached = stmt != null;
+            }
+            if (stmt == null) {
+                stmt = con.prepareStatement(query);
+            }
+            for (int i = 0; i < params; i++) {
+                String id = ids[Math.min(i, ids.length - 1)];
+                dbm.setConditionValue(stmt, i + 1, idfield, id);
+            }
 
-                    String groupbyProp = null;
-                    HashMap groupbySubnodes = null;
+            rs = stmt.executeQuery();
 
-                    if (rel.groupby != null) {
-                        groupbyProp = dbm.columnNameToProperty(rel.groupby);
-                        groupbySubnodes = new HashMap();
-                    }
+            String groupbyProp = null;
+            HashMap groupbySubnodes = null;
 
-                    String accessProp = null;
+            if (rel.groupby != null) {
+                groupbyProp = dbm.columnNameToProperty(rel.groupby);
+                groupbySubnodes = new HashMap();
+            }
 
-                    if ((rel.accessName != null) && !rel.usesPrimaryKey()) {
-                        accessProp = dbm.columnNameToProperty(rel.accessName);
-                    }
+            String accessProp = null;
 
-                    while (rs.next()) {
-                        // create new Nodes.
-                        Node node = createNode(dbm, rs, columns, 0);
-                        if (node == null) {
-                            continue;
-                        }
-                        Key key = node.getKey();
-                        Key secondaryKey = null;
-
-                        // for grouped nodes, collect subnode lists for the intermediary
-                        // group nodes.
-                        String groupName = null;
-
-                        if (groupbyProp != null) {
-                            groupName = node.getString(groupbyProp);
-                            if (groupName != null) {
-                                Node groupNode = (Node) groupbySubnodes.get(groupName);
-
-                                if (groupNode == null) {
-                                    groupNode = home.getGroupbySubnode(groupName, true);
-                                    groupbySubnodes.put(groupName, groupNode);
-                                }
-
-                                SubnodeList subnodes = groupNode.getSubnodeList();
-                                if (subnodes == null) {
-                                    subnodes = groupNode.createSubnodeList();
-                                    // mark subnodes as up-to-date
-                                    subnodes.lastSubnodeFetch = subnodes.getLastSubnodeChange();
-                                }
-                                subnodes.add(new NodeHandle(key));
-                            }
-                        }
+            if ((rel.accessName != null) && !rel.usesPrimaryKey()) {
+                accessProp = dbm.columnNameToProperty(rel.accessName);
+            }
 
-                        // if relation doesn't use primary key as accessName, get secondary key
-                        if (accessProp != null) {
-                            String accessName = node.getString(accessProp);
-                            if (accessName != null) {
-                                if (groupName == null) {
-                                    secondaryKey = new SyntheticKey(home.getKey(), accessName);
-                                } else {
-                                    Key groupKey = new SyntheticKey(home.getKey(), groupName);
-                                    secondaryKey = new SyntheticKey(groupKey, accessName);
-                                }
-                            }
+            while (rs.next()) {
+                // create new Nodes.
+                Node node = createNode(dbm, rs, columns, 0);
+                if (node == null) {
+                    continue;
+                }
+                Key key = node.getKey();
+                Key secondaryKey = null;
 
+                // for grouped nodes, collect subnode lists for the intermediary
+                // group nodes.
+                String groupName = null;
+
+                if (groupbyProp != null) {
+                    groupName = node.getString(groupbyProp);
+                    if (groupName != null) {
+                        Node groupNode = (Node) groupbySubnodes.get(groupName);
+
+                        if (groupNode == null) {
+                            groupNode = home.getGroupbySubnode(groupName, true);
+                            groupbySubnodes.put(groupName, groupNode);
                         }
 
-                        // register new nodes with the cache. If an up-to-date copy
-                        // existed in the cache, use that.
-                        registerNewNode(node, secondaryKey);
-                        fetchJoinedNodes(rs, joins, columns.length);
+                        SubnodeList subnodes = groupNode.getSubnodeList();
+                        if (subnodes == null) {
+                            subnodes = groupNode.createSubnodeList();
+                            // mark subnodes as up-to-date
+                            subnodes.lastSubnodeFetch = subnodes.getLastSubnodeChange();
+                        }
+                        subnodes.add(new NodeHandle(key));
                     }
+                }
 
-                } catch (Exception x) {
-                    app.logError("Error in prefetchNodes()", x);
-                } finally {
-                    if (logSql) {
-                        long logTimeStop = System.currentTimeMillis();
-                        logSqlStatement("SQL SELECT_PREFETCH", dbm.getTableName(),
-                                        logTimeStart, logTimeStop, query);
-                    }
-                    if (stmt != null) {
-                        try {
-                            stmt.close();
-                        } catch (Exception ignore) {
+                // if relation doesn't use primary key as accessName, get secondary key
+                if (accessProp != null) {
+                    String accessName = node.getString(accessProp);
+                    if (accessName != null) {
+                        if (groupName == null) {
+                            secondaryKey = new SyntheticKey(home.getKey(), accessName);
+                        } else {
+                            Key groupKey = new SyntheticKey(home.getKey(), groupName);
+                            secondaryKey = new SyntheticKey(groupKey, accessName);
                         }
                     }
+
                 }
+
+                // register new nodes with the cache. If an up-to-date copy
+                // existed in the cache, use that.
+                registerNewNode(node, secondaryKey);
+                fetchJoinedNodes(rs, joins, columns.length);
+            }
+
+        } catch (Exception x) {
+            app.logError("Error in prefetchNodes()", x);
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_PREFETCH", dbm.getTableName(),
+                                logTimeStart, logTimeStop, query, cached);
+            }
+            if (rel.groupby == null) {
+                checkinStatement(con, query, stmt, rs);
+            } else {
+                checkinStatement(null, query, stmt, rs);
             }
         }
     }
@@ -1183,24 +1514,32 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        boolean cached = false;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
         String query = null;
 
         try {
             StringBuffer b = rel.getCountSelect();
+            QueryParameters params = new QueryParameters();
 
             if (home.getSubnodeRelation() != null) {
                 // use the manually set subnoderelation of the home node
                 query = b.append(" ").append(home.getSubnodeRelation()).toString();
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, false, true);
+                rel.buildQuery(b, home, false, true, params);
                 query = b.toString();
             }
 
-            stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(query);
+            stmt = checkoutStatement(con, query);
+            cached = stmt != null;
+            if (stmt == null) {
+                stmt = con.prepareStatement(query);
+            }
+            params.setValues(stmt);
+            rs = stmt.executeQuery();
 
             if (!rs.next()) {
                 retval = 0;
@@ -1211,14 +1550,9 @@ public final class NodeManager {
             if (logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_COUNT", type.getTableName(),
-                        logTimeStart, logTimeStop, query);
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, query, cached);
             }
+            checkinStatement(con, query, stmt, rs);
         }
 
         return (rel.maxSize > 0) ? Math.min(rel.maxSize, retval) : retval;
@@ -1240,7 +1574,9 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        boolean cached = false;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
         String query = null;
 
@@ -1248,19 +1584,24 @@ public final class NodeManager {
             // NOTE: we explicitly convert tables StringBuffer to a String
             // before appending to be compatible with JDK 1.3
             StringBuffer b = rel.getNamesSelect();
+            QueryParameters params = new QueryParameters();
 
             if (home.getSubnodeRelation() != null) {
                 b.append(" ").append(home.getSubnodeRelation());
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
             }
 
-            stmt = con.createStatement();
-
             query = b.toString();
 
-            ResultSet rs = stmt.executeQuery(query);
+            stmt = checkoutStatement(con, query);
+            cached = stmt != null;
+            if (stmt == null) {
+                stmt = con.prepareStatement(query);
+            }
+            params.setValues(stmt);
+            rs = stmt.executeQuery();
 
             while (rs.next()) {
                 String n = rs.getString(1);
@@ -1273,15 +1614,9 @@ public final class NodeManager {
             if (logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_ACCESSNAMES", type.getTableName(),
-                        logTimeStart, logTimeStop, query);
-            }
-
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, query, cached);
             }
+            checkinStatement(con, query, stmt, rs);
         }
 
         return retval;
@@ -1305,26 +1640,30 @@ public final class NodeManager {
         } else {
             String idfield = dbm.getIDField();
 
-            Statement stmt = null;
+            PreparedStatement stmt = null;
+            ResultSet rs = null;
+            Connection con = null;
             String query = null;
+            boolean cached = false;
             long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
             try {
-                Connection con = dbm.getConnection();
+                con = dbm.getConnection();
                 // set connection to read-only mode
                 if (!con.isReadOnly()) con.setReadOnly(true);
 
-                stmt = con.createStatement();
-
                 DbColumn[] columns = dbm.getColumns();
                 Relation[] joins = dbm.getJoins();
 
-                StringBuffer b = dbm.getSelect(null).append("WHERE ");
-                dbm.appendCondition(b, idfield, kstr);
-                dbm.addJoinConstraints(b, " AND ");
-                query = b.toString();
+                query = dbm.getSelectById();
+                stmt = checkoutStatement(con, query);
+                cached = stmt != null;
+                if (stmt == null) {
+                    stmt = con.prepareStatement(query);
+                }
+                dbm.setConditionValue(stmt, 1, idfield, kstr);
 
-                ResultSet rs = stmt.executeQuery(query);
+                rs = stmt.executeQuery();
 
                 if (!rs.next()) {
                     return null;
@@ -1334,21 +1673,16 @@ public final class NodeManager {
                 fetchJoinedNodes(rs, joins, columns.length);
 
                 if (rs.next()) {
-                    app.logError("Warning: More than one value returned for query " + query);
+                    app.logError("Warning: More than one value returned for query " + query +
+                                 " [" + kstr + "]");
                 }
             } finally {
                 if (logSql) {
                     long logTimeStop = System.currentTimeMillis();
                     logSqlStatement("SQL SELECT_BYKEY", dbm.getTableName(),
-                                    logTimeStart, logTimeStop, query);
-                }
-                if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
-                        // ignore
-                    }
+                                    logTimeStart, logTimeStop, query, cached);
                 }
+                checkinStatement(con, query, stmt, rs);
             }
         }
 
@@ -1643,8 +1977,8 @@ public final class NodeManager {
             }
         }
 
-        Hashtable propMap = new Hashtable();
         DbColumn[] columns2 = dbmap.getColumns();
+        PropertyMap propMap = new PropertyMap(dbmap.getPropertyLayout(), node);
         for (int i=0; i<columns2.length; i++) {
             Relation rel = columns2[i].getRelation();
             if (rel != null && rel.isPrimitiveOrReference()) {
@@ -1661,7 +1995,8 @@ public final class NodeManager {
                     // FIXME: References to anything other than the primary key are not supported
                     prop.convertToNodeReference(rel);
                 }
-                propMap.put(rel.propName, prop);
+                // only keep the value, the property is created when it is accessed
+                propMap.putValue(rel.propName, prop.getValue(), prop.getType());
             }
         }
 
@@ -1870,6 +2205,57 @@ public final class NodeManager {
         }
     }
 
+    /**
+     * Get a cached prepared statement for the given connection and SQL,
+     * if there is one. Updates the statement cache statistics.
+     *
+     * @return the statement, or null if it needs to be prepared
+     */
+    private PreparedStatement checkoutStatement(Connection con, String sql) {
+        Transactor tx = Transactor.getInstance();
+        StatementCache cache = tx == null ? null : tx.getStatementCache(con);
+        PreparedStatement stmt = cache == null ? null : cache.checkout(sql);
+        if (stmt != null) {
+            statementCacheHits.increment();
+        } else {
+            statementCacheMisses.increment();
+        }
+        return stmt;
+    }
+
+    /**
+     * Close the result set and hand back the statement to the statement cache
+     * for the given connection. If the connection is null or has no statement
+     * cache, the statement is closed.
+     */
+    private void checkinStatement(Connection con, String sql, PreparedStatement stmt, ResultSet rs) {
+        if (rs != null) {
+            try {
+                rs.close();
+            } catch (Exception ignore) {
+                // ignore
+            }
+        }
+        if (stmt == null) {
+            return;
+        }
+        Transactor tx = con == null ? null : Transactor.getInstance();
+        StatementCache cache = tx == null ? null : tx.getStatementCache(con);
+        if (cache != null) {
+            cache.checkin(sql, stmt);
+        } else {
+            StatementCache.closeQuietly(stmt);
+        }
+    }
+
+    private void logSqlStatement(String type, String table, long logTimeStart,
+                                 long logTimeStop, String statement, boolean cached) {
+        logSqlStatement(type, table, logTimeStart, logTimeStop, new StringBuffer(statement)
+                .append(" [statement cache ").append(cached ? "hit" : "miss")
+                .append(", ").append(statementCacheHits.sum()).append(" hits/")
+                .append(statementCacheMisses.sum()).append(" misses]").toString());
+    }
+
     private void logSqlStatement(String type, String table,
                                  long logTimeStart, long logTimeStop, String statement) {
         // init sql-log if necessary
@@ -1887,4 +2273,122 @@ public final class NodeManager {
                                       .append(statement)
                                       .toString());
     }
+
+    /**
+     * Create a new write batch for the insert, update and delete statements
+     * issued while committing a transaction.
+     */
+    WriteBatch createWriteBatch() {
+        return new WriteBatch();
+    }
+
+    /**
+     * Collects consecutive writes that share the same connection and SQL string
+     * into one JDBC batch. The batch is executed as soon as a write with a different
+     * statement is added, when the maximum batch size is reached, or when
+     * {@link #flush()} is called. Drivers that don't support batch updates execute
+     * each write right away, but still reuse the prepared statement.
+     *
+     * A write batch is confined to the thread of the transactor that created it.
+     */
+    public final class WriteBatch {
+
+        // maximum number of rows executed in a single batch
+        private static final int MAX_BATCH_SIZE = 1000;
+
+        private Connection connection;
+        private String sql;
+        private String type;
+        private String table;
+        private PreparedStatement stmt;
+        private boolean batchUpdates;
+        private int count;
+        private long logTimeStart;
+
+        WriteBatch() {}
+
+        /**
+         * Get the prepared statement for the next write, executing pending writes
+         * if they use a different connection or statement. The caller must set
+         * the statement's parameters and then call {@link #add()}.
+         *
+         * @param con the connection to write to
+         * @param sql the SQL string
+         * @param type the statement type used for SQL logging
+         * @param table the table name used for SQL logging
+         * @return the prepared statement
+         */
+        PreparedStatement prepare(Connection con, String sql, String type, String table)
+                throws SQLException {
+            if (stmt != null && (con != connection || count >= MAX_BATCH_SIZE ||
+                    !sql.equals(this.sql))) {
+                flush();
+            }
+            if (stmt == null) {
+                stmt = con.prepareStatement(sql);
+                connection = con;
+                this.sql = sql;
+                this.type = type;
+                this.table = table;
+                batchUpdates = supportsBatchUpdates(con);
+                logTimeStart = logSql ? System.currentTimeMillis() : 0;
+            }
+            return stmt;
+        }
+
+        /**
+         * Add the current parameters of the prepared statement to the batch.
+         */
+        void add() throws SQLException {
+            if (batchUpdates) {
+                stmt.addBatch();
+            } else {
+                stmt.executeUpdate();
+            }
+            count += 1;
+        }
+
+        /**
+         * Execute all pending writes.
+         */
+        public void flush() throws SQLException {
+            if (stmt == null) {
+                return;
+            }
+            try {
+                if (batchUpdates && count > 0) {
+                    stmt.executeBatch();
+                }
+            } finally {
+                if (logSql) {
+                    long logTimeStop = System.currentTimeMillis();
+                    logSqlStatement(batchUpdates ? type + "_BATCH" : type, table,
+                                    logTimeStart, logTimeStop,
+                                    sql + " [" + count + " rows]");
+                }
+                close();
+            }
+        }
+
+        /**
+         * Discard pending writes and release the prepared statement.
+         */
+        public void close() {
+            if (stmt != null) {
+                StatementCache.closeQuietly(stmt);
+                stmt = null;
+            }
+            connection = null;
+            sql = null;
+            count = 0;
+        }
+
+        private boolean supportsBatchUpdates(Connection con) {
+            try {
+                return con.getMetaData().supportsBatchUpdates();
+            } catch (SQLException x) {
+                return false;
+            }
+        }
+    }
 }
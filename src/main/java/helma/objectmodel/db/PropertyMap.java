@@ -0,0 +1,338 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The property table of a {@link Node}. Nodes fetched from a relational database
+ * share a column layout per {@link DbMapping}, which maps property names to slots
+ * in flat arrays, so the mapped properties of a node take up two arrays instead
+ * of a hash table with an entry object per property. Values read from the
+ * database are stored as they are together with their type, and the Property
+ * object for a slot is only created when the property is accessed. Properties
+ * not covered by the layout, and all properties of nodes without a layout, are
+ * kept in a map that is only created when needed.
+ *
+ * Like the Hashtable this replaces, all methods are synchronized, as nodes are
+ * shared between request threads.
+ */
+public final class PropertyMap {
+
+    // the shared layout of mapped properties, or null
+    private final Layout layout;
+
+    // the node the properties belong to
+    private final Node node;
+
+    // mapped properties by slot: either a Property, or a raw value whose
+    // type is stored in types. A slot is empty if both are null/0.
+    private final Object[] values;
+    private final byte[] types;
+
+    // number of non-empty slots
+    private int mapped;
+
+    // properties not covered by the layout
+    private HashMap extra;
+
+    /**
+     * Create an empty property map without column layout.
+     */
+    public PropertyMap() {
+        this(null, null);
+    }
+
+    /**
+     * Create an empty property map with the given column layout.
+     *
+     * @param layout the column layout, or null
+     * @param node the node the properties belong to
+     */
+    PropertyMap(Layout layout, Node node) {
+        this.layout = layout;
+        this.node = node;
+        this.values = layout == null ? null : new Object[layout.size()];
+        this.types = layout == null ? null : new byte[layout.size()];
+    }
+
+    /**
+     * Get a property by name.
+     *
+     * @param name the property name
+     * @return the property, or null
+     */
+    public synchronized Property get(String name) {
+        int slot = layout == null ? -1 : layout.slot(name);
+        if (slot > -1) {
+            return property(slot);
+        }
+        return extra == null ? null : (Property) extra.get(name);
+    }
+
+    /**
+     * Add or replace a property.
+     *
+     * @param name the property name
+     * @param prop the property
+     * @return the property previously stored under the name, or null
+     */
+    public synchronized Property put(String name, Property prop) {
+        if (prop == null) {
+            throw new NullPointerException("property is null");
+        }
+        int slot = layout == null ? -1 : layout.slot(name);
+        if (slot > -1) {
+            Property old = property(slot);
+            if (old == null) {
+                mapped += 1;
+            }
+            values[slot] = prop;
+            types[slot] = 0;
+            return old;
+        }
+        if (extra == null) {
+            extra = new HashMap(8);
+        }
+        return (Property) extra.put(name, prop);
+    }
+
+    /**
+     * Add or replace a clean property value as read from the database. Within
+     * the layout only the value and its type are stored.
+     *
+     * @param name the property name
+     * @param value the property value
+     * @param type the property type as defined in IProperty
+     */
+    synchronized void putValue(String name, Object value, int type) {
+        int slot = layout == null ? -1 : layout.slot(name);
+        if (slot > -1 && type > 0) {
+            if (values[slot] == null && types[slot] == 0) {
+                mapped += 1;
+            }
+            values[slot] = value;
+            types[slot] = (byte) type;
+        } else {
+            Property prop = new Property(name, node);
+            prop.setValue(value, type);
+            prop.dirty = false;
+            put(name, prop);
+        }
+    }
+
+    /**
+     * Remove a property.
+     *
+     * @param name the property name
+     * @return the removed property, or null
+     */
+    public synchronized Property remove(String name) {
+        int slot = layout == null ? -1 : layout.slot(name);
+        if (slot > -1) {
+            Property old = property(slot);
+            if (old != null) {
+                mapped -= 1;
+            }
+            values[slot] = null;
+            types[slot] = 0;
+            return old;
+        }
+        return extra == null ? null : (Property) extra.remove(name);
+    }
+
+    /**
+     * Returns the number of properties.
+     */
+    public synchronized int size() {
+        return mapped + (extra == null ? 0 : extra.size());
+    }
+
+    /**
+     * Returns true if there are no properties.
+     */
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Get the names of all properties. The enumeration works on a copy,
+     * so the map may be modified while it is used.
+     *
+     * @return an enumeration of property names
+     */
+    public synchronized Enumeration keys() {
+        ArrayList list = new ArrayList(size());
+        for (int i = 0; values != null && i < values.length; i++) {
+            if (values[i] != null || types[i] != 0) {
+                list.add(layout.name(i));
+            }
+        }
+        if (extra != null) {
+            list.addAll(extra.keySet());
+        }
+        return Collections.enumeration(list);
+    }
+
+    /**
+     * Get all properties. The enumeration works on a copy,
+     * so the map may be modified while it is used.
+     *
+     * @return an enumeration of properties
+     */
+    public synchronized Enumeration elements() {
+        ArrayList list = new ArrayList(size());
+        addValues(list);
+        return Collections.enumeration(list);
+    }
+
+    /**
+     * Get all properties as an array.
+     *
+     * @return the properties
+     */
+    public synchronized Property[] toArray() {
+        ArrayList list = new ArrayList(size());
+        addValues(list);
+        return (Property[]) list.toArray(new Property[list.size()]);
+    }
+
+    /**
+     * Get the properties that have been modified since they were last
+     * written to the database. Values that have never been accessed are
+     * clean by definition and are skipped without creating a Property.
+     *
+     * @return the modified properties
+     */
+    synchronized Property[] getDirtyProperties() {
+        ArrayList list = new ArrayList();
+        for (int i = 0; values != null && i < values.length; i++) {
+            if (types[i] == 0 && values[i] != null && ((Property) values[i]).dirty) {
+                list.add(values[i]);
+            }
+        }
+        if (extra != null) {
+            for (Iterator it = extra.values().iterator(); it.hasNext();) {
+                Property prop = (Property) it.next();
+                if (prop.dirty) {
+                    list.add(prop);
+                }
+            }
+        }
+        return (Property[]) list.toArray(new Property[list.size()]);
+    }
+
+    /**
+     * Get the property of a slot, creating it from the raw value if needed.
+     * The property replaces the value in the slot, as callers may modify it.
+     */
+    private Property property(int slot) {
+        int type = types[slot];
+        if (type == 0) {
+            return (Property) values[slot];
+        }
+        Property prop = new Property(layout.name(slot), node);
+        prop.setValue(values[slot], type);
+        prop.dirty = false;
+        values[slot] = prop;
+        types[slot] = 0;
+        return prop;
+    }
+
+    private void addValues(ArrayList list) {
+        for (int i = 0; values != null && i < values.length; i++) {
+            if (values[i] != null || types[i] != 0) {
+                list.add(property(i));
+            }
+        }
+        if (extra != null) {
+            list.addAll(extra.values());
+        }
+    }
+
+    public synchronized String toString() {
+        StringBuffer buffer = new StringBuffer("{");
+        for (Enumeration en = keys(); en.hasMoreElements();) {
+            String name = (String) en.nextElement();
+            buffer.append(name).append("=").append(get(name));
+            if (en.hasMoreElements()) {
+                buffer.append(", ");
+            }
+        }
+        return buffer.append("}").toString();
+    }
+
+    /**
+     * The immutable mapping of property names to slots shared by all nodes
+     * fetched with the same column set of a DbMapping.
+     */
+    static final class Layout {
+        private final HashMap index;
+        private final String[] names;
+
+        /**
+         * Create a layout for the properties mapped to the given columns.
+         *
+         * @param columns the db mapping's columns
+         */
+        Layout(DbColumn[] columns) {
+            this(propertyNames(columns));
+        }
+
+        /**
+         * Create a layout for the given property names.
+         *
+         * @param names the distinct property names
+         */
+        Layout(String[] names) {
+            this.names = names;
+            index = new HashMap(names.length * 2);
+            for (int i = 0; i < names.length; i++) {
+                index.put(names[i], Integer.valueOf(i));
+            }
+        }
+
+        private static String[] propertyNames(DbColumn[] columns) {
+            ArrayList list = new ArrayList(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                Relation rel = columns[i].getRelation();
+                if (rel != null && rel.isPrimitiveOrReference() &&
+                        !list.contains(rel.propName)) {
+                    list.add(rel.propName);
+                }
+            }
+            return (String[]) list.toArray(new String[list.size()]);
+        }
+
+        int slot(String name) {
+            Integer slot = (Integer) index.get(name);
+            return slot == null ? -1 : slot.intValue();
+        }
+
+        String name(int slot) {
+            return names[slot];
+        }
+
+        int size() {
+            return names.length;
+        }
+    }
+}
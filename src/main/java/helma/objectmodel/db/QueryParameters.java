@@ -0,0 +1,81 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * The values of the placeholders in a query built by a {@link Relation}.
+ * Relation constraints are rendered as placeholders when a QueryParameters
+ * object is passed to the query building methods, so the SQL string of a
+ * collection query is the same for all home nodes and its prepared statement
+ * can be cached. The values are collected in the order of the placeholders.
+ *
+ * The values are plain strings, so a query and its parameters can be handed
+ * to another thread.
+ */
+final class QueryParameters {
+
+    private final ArrayList mappings = new ArrayList();
+    private final ArrayList columns = new ArrayList();
+    private final ArrayList values = new ArrayList();
+
+    /**
+     * Add the value of a placeholder.
+     *
+     * @param dbm the mapping the column belongs to
+     * @param column the column the value is compared to
+     * @param value the value
+     */
+    void add(DbMapping dbm, String column, String value) {
+        mappings.add(dbm);
+        columns.add(column);
+        values.add(value);
+    }
+
+    /**
+     * Get the number of placeholder values.
+     *
+     * @return the number of values
+     */
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Set the placeholder values on a prepared statement.
+     *
+     * @param stmt the prepared statement
+     * @throws SQLException if a value couldn't be set
+     * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
+     */
+    void setValues(PreparedStatement stmt) throws SQLException, ClassNotFoundException {
+        for (int i = 0; i < values.size(); i++) {
+            DbMapping dbm = (DbMapping) mappings.get(i);
+            dbm.setConditionValue(stmt, i + 1, (String) columns.get(i), (String) values.get(i));
+        }
+    }
+
+    /**
+     * Return the values for logging.
+     */
+    public String toString() {
+        return values.toString();
+    }
+}
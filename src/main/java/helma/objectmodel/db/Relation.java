@@ -103,6 +103,12 @@ public final class Relation {
     Vector filterPropertyRefs;
     int maxSize = 0;
     int offset = 0;
+    int segmentSize = 0;
+    int readAhead = -1;
+
+    // set on clones to select rows following this key instead of using offset
+    String seekKey;
+    boolean seekDescending;
 
     /**
      * This constructor makes a copy of an existing relation. Not all fields are copied, just those
@@ -126,6 +132,8 @@ public final class Relation {
         this.queryHints =               rel.queryHints;
         this.maxSize =                  rel.maxSize;
         this.offset =                   rel.offset;
+        this.segmentSize =              rel.segmentSize;
+        this.readAhead =                rel.readAhead;
         this.constraints =              rel.constraints;
         this.accessName =               rel.accessName;
         this.logicalOperator =          rel.logicalOperator;
@@ -398,6 +406,10 @@ public final class Relation {
         }
         offset = getIntegerProperty("offset", props, 0);
 
+        // get segment size and read-ahead threshold for lazily loaded collections
+        segmentSize = getIntegerProperty("segmentSize", props, 0);
+        readAhead = getIntegerProperty("readAhead", props, -1);
+
         // get group by property
         groupby = props.getProperty("group");
 
@@ -958,7 +970,18 @@ public final class Relation {
      */
     public void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount)
             throws SQLException, ClassNotFoundException {
-        buildQuery(q, home, otherType, null, useOrder, isCount);
+        buildQuery(q, home, otherType, null, useOrder, isCount, null);
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object, rendering the values of the relation's constraints as
+     *  placeholders if params is not null.
+     */
+    void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount,
+                    QueryParameters params)
+            throws SQLException, ClassNotFoundException {
+        buildQuery(q, home, otherType, null, useOrder, isCount, params);
     }
 
     /**
@@ -968,6 +991,17 @@ public final class Relation {
     public void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
                            boolean useOrder, boolean isCount)
             throws SQLException, ClassNotFoundException {
+        buildQuery(q, home, otherDbm, kstr, useOrder, isCount, null);
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object, rendering the values of the relation's constraints as
+     *  placeholders if params is not null.
+     */
+    void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
+                    boolean useOrder, boolean isCount, QueryParameters params)
+            throws SQLException, ClassNotFoundException {
         String prefix = " WHERE ";
         Node nonvirtual = home.getNonVirtualParent();
 
@@ -976,17 +1010,26 @@ public final class Relation {
 
             String accessColumn = (accessName == null) ?
                     otherDbm.getIDField() : accessName;
-            otherDbm.appendCondition(q, accessColumn, kstr);
+            otherDbm.appendCondition(q, accessColumn, " = ", kstr, params);
 
             prefix = " AND ";
         }
 
+        int length = q.length();
+
         // render the constraints and filter
-        renderConstraints(q, home, nonvirtual, otherDbm, prefix);
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, params);
 
         // add joined fetch constraints
         ownType.addJoinConstraints(q, prefix);
 
+        // continue after the last key of the previous segment
+        if (seekKey != null && kstr == null) {
+            q.append(q.length() > length ? " AND " : prefix);
+            otherDbm.appendCondition(q, otherDbm.getIDField(),
+                    seekDescending ? " < " : " > ", seekKey, params);
+        }
+
         // add group and order clauses
         if (groupby != null) {
             if (useOrder && (groupbyOrder != null)) {
@@ -1105,6 +1148,18 @@ public final class Relation {
     public void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
                                   DbMapping otherDbm, String prefix)
                              throws SQLException, ClassNotFoundException {
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, null);
+    }
+
+    /**
+     * Render contraints and filter conditions to an SQL query string buffer.
+     * The values of the constraints are rendered as placeholders and added to
+     * params, unless params is null. Filter values are always rendered inline
+     * because the filter may put them inside quotes.
+     */
+    void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
+                           DbMapping otherDbm, String prefix, QueryParameters params)
+                             throws SQLException, ClassNotFoundException {
 
         if (constraints.length > 1 && logicalOperator != AND) {
             q.append(prefix);
@@ -1119,7 +1174,7 @@ public final class Relation {
                 continue;
             }
             q.append(prefix);
-            constraints[i].addToQuery(q, home, nonvirtual, otherDbm);
+            constraints[i].addToQuery(q, home, nonvirtual, otherDbm, params);
             prefix = logicalOperator;
         }
 
@@ -1181,6 +1236,40 @@ public final class Relation {
 
     }
 
+    /**
+     * Check whether segments of this collection can be loaded by seeking
+     * past the last key of the previous segment rather than by offset. This
+     * is the case if the collection is ordered by primary key only, or is
+     * not ordered at all, in which case the primary key order is used.
+     *
+     * @return 1 for ascending, -1 for descending primary key order, 0 if
+     *         seeking is not possible
+     */
+    int getSeekDirection() {
+        if (groupby != null || otherType == null || otherType.getIDField() == null) {
+            return 0;
+        }
+        if (order == null) {
+            return 1;
+        }
+        String[] parts = StringUtils.split(order.trim(), " \t");
+        if (parts.length == 0 || parts.length > 2) {
+            return 0;
+        }
+        String column = parts[0];
+        String table = otherType.getTableName();
+        if (table != null && column.regionMatches(true, 0, table + ".", 0, table.length() + 1)) {
+            column = column.substring(table.length() + 1);
+        }
+        if (!column.equalsIgnoreCase(otherType.getIDField())) {
+            return 0;
+        }
+        if (parts.length == 1 || "asc".equalsIgnoreCase(parts[1])) {
+            return 1;
+        }
+        return "desc".equalsIgnoreCase(parts[1]) ? -1 : 0;
+    }
+
     /**
      * Get the order section to use for this relation
      */
@@ -1488,6 +1577,12 @@ public final class Relation {
 
         public void addToQuery(StringBuffer q, INode home, INode nonvirtual, DbMapping otherDbm)
                         throws SQLException, ClassNotFoundException {
+            addToQuery(q, home, nonvirtual, otherDbm, null);
+        }
+
+        void addToQuery(StringBuffer q, INode home, INode nonvirtual, DbMapping otherDbm,
+                        QueryParameters params)
+                        throws SQLException, ClassNotFoundException {
             String local;
             INode ref = isGroupby ? home : nonvirtual;
 
@@ -1510,7 +1605,7 @@ public final class Relation {
             } else {
                 columnName = foreignKey;
             }
-            otherDbm.appendCondition(q, columnName, local);
+            otherDbm.appendCondition(q, columnName, " = ", local, params);
         }
 
         public boolean foreignKeyIsPrimary() {
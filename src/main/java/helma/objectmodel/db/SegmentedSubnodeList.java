@@ -12,16 +12,39 @@
 package helma.objectmodel.db;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
+/**
+ * Subnode list for lazily loaded collections. The collection is split into
+ * segments which are loaded on first access. Each segment holds its own list
+ * of handles, so only the segments actually used take up memory.
+ *
+ * The segment size can be set per collection using the <code>segmentSize</code>
+ * relation property. If the collection is ordered by primary key or not ordered
+ * at all, segments following a loaded segment are selected by seeking past its
+ * last key instead of using an offset, which keeps the cost of loading a segment
+ * independent of its position. When a certain percentage of a segment has been
+ * read, as set by the <code>readAhead</code> relation property, the next segment
+ * is loaded in the background.
+ */
 public class SegmentedSubnodeList extends SubnodeList {
 
     private static final long serialVersionUID = -4947752577517584610L;
 
     transient Segment[] segments = null;
+
+    // default segment size
     static int SEGLENGTH = 1000;
 
+    // default percentage of a segment to read before loading the next one
+    static int READAHEAD = 50;
+
     transient private int subnodeCount = -1;
 
+    // 1 or -1 if segments can be selected by primary key, 0 otherwise
+    transient private int seekDirection = 0;
+
     /**
      * Creates a new subnode list
      * @param node the node we belong to
@@ -43,10 +66,22 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (subnodeCount == -1) {
             update();
         }
+        Segment last = segments[segments.length - 1];
+        if (!last.modified) {
+            // collect added nodes in a segment of their own rather than
+            // loading the last segment from the database
+            Segment[] s = new Segment[segments.length + 1];
+            System.arraycopy(segments, 0, s, 0, segments.length);
+            last = s[segments.length] = new Segment(subnodeCount, 0);
+            last.handles = new ArrayList();
+            last.modified = true;
+            segments = s;
+        }
         subnodeCount++;
-        segments[segments.length - 1].length += 1;
-        return list.add(handle);
+        last.length += 1;
+        return last.handles.add(handle);
     }
+
     /**
      * Adds the specified object to the list at the given position
      * @param index the index to insert the element at
@@ -60,11 +95,17 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (subnodeCount == -1) {
             update();
         }
+        if (index == subnodeCount) {
+            add(handle);
+            return;
+        }
+        int s = getSegment(index);
+        Segment segment = segments[s];
+        loadSegment(segment, s).add(index - segment.startIndex, handle);
         subnodeCount++;
-        list.add(index, handle);
+        segment.length += 1;
+        segment.modified = true;
         // shift segment indices by one
-        int s = getSegment(index);
-        segments[s].length += 1;
         for (int i = s + 1; i < segments.length; i++) {
             segments[i].startIndex += 1;
         }
@@ -74,22 +115,47 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (!hasRelationalNodes() || segments == null) {
             return super.get(index);
         }
-        if (index < 0 || index >= subnodeCount) {
-            return null;
+        Segment segment;
+        int s;
+        synchronized (this) {
+            if (segments == null || index < 0 || index >= subnodeCount) {
+                return null;
+            }
+            s = getSegment(index);
+            segment = segments[s];
+        }
+
+        // load outside the lock, as building the query may need to lock our node
+        List handles = loadSegment(segment, s);
+        NodeHandle handle;
+        Segment next = null;
+
+        synchronized (this) {
+            int offset = index - segment.startIndex;
+            handle = offset >= 0 && offset < handles.size() ?
+                    (NodeHandle) handles.get(offset) : null;
+            int threshold = getReadAheadThreshold();
+            if (threshold > 0 && s + 1 < segments.length && segments[s] == segment &&
+                    (offset + 1) * 100 >= segment.length * threshold) {
+                next = segments[s + 1];
+                if (next.handles != null || next.readAhead != null) {
+                    next = null;
+                }
+            }
+        }
+
+        if (next != null) {
+            readAhead(next, s + 1);
         }
-        loadSegment(getSegment(index), false);
-        return (NodeHandle) list.get(index);
+        return handle;
     }
 
     public synchronized boolean contains(Object object) {
         if (!hasRelationalNodes() || segments == null) {
             return super.contains(object);
         }
-        if (list.contains(object)) {
-            return true;
-        }
         for (int i = 0; i < segments.length; i++) {
-            if (loadSegment(i, false).contains(object)) {
+            if (loadSegment(segments[i], i).contains(object)) {
                 return true;
             }
         }
@@ -101,11 +167,8 @@ public class SegmentedSubnodeList extends SubnodeList {
             return super.indexOf(object);
         }
         int index;
-        if ((index = list.indexOf(object)) > -1) {
-            return index;
-        }
         for (int i = 0; i < segments.length; i++) {
-            if ((index = loadSegment(i, false).indexOf(object)) > -1) {
+            if ((index = loadSegment(segments[i], i).indexOf(object)) > -1) {
                 return segments[i].startIndex + index;
             }
         }
@@ -123,9 +186,11 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (subnodeCount == -1) {
             update();
         }
-        Object removed = list.remove(index);
         int s = getSegment(index);
-        segments[s].length -= 1;
+        Segment segment = segments[s];
+        Object removed = loadSegment(segment, s).remove(index - segment.startIndex);
+        segment.length -= 1;
+        segment.modified = true;
         for (int i = s + 1; i < segments.length; i++) {
             segments[i].startIndex -= 1;
         }
@@ -146,13 +211,7 @@ public class SegmentedSubnodeList extends SubnodeList {
         }
         int index = indexOf(object);
         if (index > -1) {
-            list.remove(object);
-            int s = getSegment(index);
-            segments[s].length -= 1;
-            for (int i = s + 1; i < segments.length; i++) {
-                segments[i].startIndex -= 1;
-            }
-            subnodeCount--;
+            remove(index);
             return true;
         }
         return false;
@@ -163,47 +222,173 @@ public class SegmentedSubnodeList extends SubnodeList {
             return super.toArray();
         }
         node.nmgr.logEvent("Warning: toArray() called on large segmented collection: " + node);
+        ArrayList all = new ArrayList(subnodeCount);
         for (int i = 0; i < segments.length; i++) {
-            loadSegment(i, false);
+            all.addAll(loadSegment(segments[i], i));
         }
-        return list.toArray();
+        return all.toArray();
     }
 
+    /**
+     * Find the segment containing the element at the given index.
+     */
     private int getSegment(int index) {
-        for (int i = 1; i < segments.length; i++) {
-            if (index < segments[i].startIndex) {
-                return i - 1;
+        // find the last segment starting at or before index
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments[mid].startIndex <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the handles of a segment, loading them from the database if necessary.
+     * If the segment is being read ahead, wait for the background query to finish.
+     */
+    private List loadSegment(Segment segment, int seg) {
+        FutureTask task;
+        Relation rel = null;
+        synchronized (this) {
+            if (segment.handles != null) {
+                return segment.handles;
+            }
+            task = segment.readAhead;
+            if (task != null && task.cancel(false)) {
+                // hasn't started yet, load it ourselves
+                segment.readAhead = task = null;
+            }
+            if (task == null) {
+                rel = getSegmentRelation(segment, seg);
+            }
+        }
+
+        List seglist = null;
+        if (task != null) {
+            try {
+                seglist = (List) task.get();
+            } catch (Exception x) {
+                node.nmgr.logEvent("Error reading ahead segment of " + node + ": " + x);
+            }
+        }
+        if (seglist == null) {
+            if (rel == null) {
+                synchronized (this) {
+                    rel = getSegmentRelation(segment, seg);
+                }
+            }
+            seglist = node.nmgr.getNodeIDs(node, rel);
+        }
+
+        synchronized (this) {
+            if (segment.handles == null) {
+                if (seglist.size() != segment.length) {
+                    node.nmgr.logEvent("Inconsistent segment size in " + node + ": " + segment);
+                    // FIXME how to handle inconsistencies?
+                }
+                segment.handles = seglist;
+                segment.readAhead = null;
+            }
+            return segment.handles;
+        }
+    }
+
+    /**
+     * Start loading a segment in the background.
+     */
+    private void readAhead(Segment segment, int seg) {
+        final Relation rel;
+        synchronized (this) {
+            if (segment.handles != null || segment.readAhead != null) {
+                return;
+            }
+            rel = getSegmentRelation(segment, seg);
+        }
+
+        // the query is built here, so the background thread doesn't touch our node
+        final NodeManager nmgr = node.nmgr.nmgr;
+        final Key home = rel.groupby != null ? node.getKey() : null;
+        final String query;
+        final QueryParameters params = new QueryParameters();
+        try {
+            query = nmgr.getNodeIDsQuery(node, rel, params);
+        } catch (Exception x) {
+            nmgr.app.logError("Error building read-ahead query for " + node, x);
+            return;
+        }
+
+        FutureTask task = new FutureTask(new Callable() {
+            public Object call() throws Exception {
+                Transactor tx = Transactor.getInstance(nmgr);
+                try {
+                    return nmgr.getNodeIDs(rel, home, query, params);
+                } finally {
+                    // the transactor only lives for this task: close connections
+                    // of unpooled sources too, and don't leave it on the pool thread
+                    tx.closeConnections();
+                    tx.detach();
+                }
+            }
+        });
+
+        synchronized (this) {
+            if (segment.handles != null || segment.readAhead != null) {
+                return;
+            }
+            segment.readAhead = task;
+        }
+        if (!nmgr.submitReadAhead(task)) {
+            synchronized (this) {
+                if (segment.readAhead == task) {
+                    segment.readAhead = null;
+                }
             }
         }
-        return segments.length - 1;
     }
 
-    private List loadSegment(int seg, boolean deep) {
-        Segment segment = segments[seg];
-        if (segment != null && !segment.loaded) {
-            Relation rel = getSubnodeRelation().getClone();
-            rel.offset = segment.startIndex;
-            int expectedSize = rel.maxSize = segment.length;
-            List seglist =  deep ?
-                    node.nmgr.getNodes(node, rel) :
-                    node.nmgr.getNodeIDs(node, rel);
-            int actualSize = seglist.size();
-            if (actualSize != expectedSize) {
-                node.nmgr.logEvent("Inconsistent segment size in " + node + ": " + segment);
+    /**
+     * Get a relation selecting the nodes of a segment. If the previous segment
+     * is loaded and unmodified and the collection is ordered by primary key,
+     * select the nodes following its last key, otherwise use an offset.
+     */
+    private Relation getSegmentRelation(Segment segment, int seg) {
+        Relation rel = getSubnodeRelation().getClone();
+        rel.maxSize = segment.length;
+        rel.offset = segment.startIndex;
+        if (seekDirection != 0) {
+            if (rel.order == null) {
+                // segments need a stable order
+                String idfield = rel.otherType.getIDField();
+                rel.order = idfield.indexOf('(') == -1 && idfield.indexOf('.') == -1 ?
+                        rel.otherType.getTableName() + "." + idfield : idfield;
             }
-            int listSize = list.size();
-            for (int i = 0; i < actualSize; i++) {
-                if (segment.startIndex + i < listSize) {
-                    list.set(segment.startIndex + i, seglist.get(i));
-                } else {
-                    list.add(seglist.get(i));
+            // the segments may have been reloaded in the meantime
+            Segment previous = seg > 0 && seg < segments.length && segments[seg] == segment ?
+                    segments[seg - 1] : null;
+            if (previous != null && previous.handles != null && !previous.modified &&
+                    previous.handles.size() > 0) {
+                NodeHandle last = (NodeHandle) previous.handles.get(previous.handles.size() - 1);
+                if (last.getKey() instanceof DbKey) {
+                    rel.seekKey = last.getKey().getID();
+                    rel.seekDescending = seekDirection < 0;
+                    rel.offset = 0;
                 }
-                // FIXME how to handle inconsistencies?
             }
-            segment.loaded = true;
-            return seglist;
         }
-        return Collections.EMPTY_LIST;
+        return rel;
+    }
+
+    private int getReadAheadThreshold() {
+        Relation rel = getSubnodeRelation();
+        if (rel == null) {
+            return 0;
+        }
+        return Math.min(100, rel.readAhead < 0 ? READAHEAD : rel.readAhead);
     }
 
     protected synchronized void update() {
@@ -215,22 +400,21 @@ public class SegmentedSubnodeList extends SubnodeList {
         // also reload if the type mapping has changed.
         long lastChange = getLastSubnodeChange();
         if (lastChange != lastSubnodeFetch) {
+            Relation rel = getSubnodeRelation();
+            int segLength = rel.segmentSize > 0 ? rel.segmentSize : SEGLENGTH;
             // count nodes in db without fetching anything
-            subnodeCount = node.nmgr.countNodes(node, getSubnodeRelation());
-            if (subnodeCount > SEGLENGTH) {
-                float size = subnodeCount;
-                int nsegments = (int) Math.ceil(size / SEGLENGTH);
-                int remainder = (int) size % SEGLENGTH;
+            subnodeCount = node.nmgr.countNodes(node, rel);
+            if (subnodeCount > segLength) {
+                int nsegments = (subnodeCount + segLength - 1) / segLength;
                 segments = new Segment[nsegments];
                 for (int s = 0; s < nsegments; s++) {
-                    int length = (s == nsegments - 1 && remainder > 0) ?
-                        remainder : SEGLENGTH;
-                    segments[s] = new Segment(s * SEGLENGTH, length);
-                }
-                list = new ArrayList((int) size + 5);
-                for (int i = 0; i < size; i++) {
-                    list.add(null);
+                    int start = s * segLength;
+                    segments[s] = new Segment(start, Math.min(segLength, subnodeCount - start));
                 }
+                seekDirection = node.getSubnodeRelation() == null ?
+                        rel.getSeekDirection() : 0;
+                // handles are kept by the segments
+                list = new ArrayList();
             } else {
                 segments = null;
                 super.update();
@@ -249,12 +433,19 @@ public class SegmentedSubnodeList extends SubnodeList {
     class Segment {
 
         int startIndex, length;
-        boolean loaded;
+
+        // the handles of this segment, or null if not loaded yet
+        List handles;
+
+        // true if the handles have been changed locally
+        boolean modified;
+
+        // the pending background query for this segment
+        FutureTask readAhead;
 
         Segment(int startIndex, int length) {
             this.startIndex = startIndex;
             this.length = length;
-            this.loaded = false;
         }
 
         int endIndex() {
@@ -267,4 +458,3 @@ public class SegmentedSubnodeList extends SubnodeList {
     }
 
 }
-
@@ -0,0 +1,115 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of prepared statements for a single JDBC connection,
+ * keyed by SQL string. Statements are checked out while in use, so nested queries
+ * with the same SQL (e.g. from an onInit() handler) get a statement of their own
+ * instead of closing the result set of the outer query.
+ *
+ * Instances of unpooled connections are owned by a {@link Transactor}, those of
+ * pooled connections by the {@link ConnectionPool}, which keeps them while the
+ * connection is idle. Either way a cache is only used by the thread currently
+ * holding its connection.
+ */
+final class StatementCache {
+
+    private final Connection connection;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    /**
+     * Create a statement cache for the given connection.
+     *
+     * @param connection the JDBC connection
+     * @param capacity the maximum number of idle statements to keep
+     */
+    StatementCache(Connection connection, final int capacity) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 2176540212497512376L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > capacity) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a prepared statement for the given SQL. The statement must be
+     * handed back via {@link #checkin(String, PreparedStatement)} when done.
+     *
+     * @param sql the SQL string
+     * @return a prepared statement, or null if the statement must be prepared by the caller
+     */
+    PreparedStatement checkout(String sql) {
+        return statements.remove(sql);
+    }
+
+    /**
+     * Prepare a new statement on this cache's connection.
+     *
+     * @param sql the SQL string
+     * @return the newly prepared statement
+     * @throws SQLException if the statement couldn't be prepared
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        return connection.prepareStatement(sql);
+    }
+
+    /**
+     * Hand back a statement for later reuse.
+     *
+     * @param sql the SQL string
+     * @param stmt the statement obtained via checkout() or prepare()
+     */
+    void checkin(String sql, PreparedStatement stmt) {
+        PreparedStatement old = statements.put(sql, stmt);
+        if (old != null && old != stmt) {
+            closeQuietly(old);
+        }
+    }
+
+    /**
+     * Close all cached statements.
+     */
+    void close() {
+        for (Iterator<PreparedStatement> it = statements.values().iterator(); it.hasNext();) {
+            closeQuietly(it.next());
+        }
+        statements.clear();
+    }
+
+    static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (Exception ignore) {
+            // nothing to do
+        }
+    }
+}
@@ -57,6 +57,9 @@ public class Transactor {
     // Set of SQL connections that already have been verified
     private Map<DbSource, Long> testedConnections;
 
+    // Prepared statement caches for SQL connections
+    private Map<Connection, StatementCache> statementCaches;
+
     // when did the current transaction start?
     private long tstart;
 
@@ -64,7 +67,7 @@ public class Transactor {
     private String tname;
 
     // the thread we're associated with
-    private Thread thread;
+    private volatile Thread thread;
 
     private static final ThreadLocal txtor = new ThreadLocal();
 
@@ -83,6 +86,7 @@ public class Transactor {
 
         sqlConnections = new HashMap<DbSource, Connection>();
         testedConnections = new HashMap<DbSource, Long>();
+        statementCaches = new HashMap<Connection, StatementCache>();
         active = false;
         killed = false;
     }
@@ -122,6 +126,28 @@ public class Transactor {
         return t;
     }
 
+    /**
+     * Associate this transactor with the current thread. This allows a
+     * transactor and its database connections to be kept across threads,
+     * e.g. by request evaluators that run each request on a new virtual
+     * thread. The transactor must have been detached from its previous
+     * thread, and must not be in a transaction.
+     */
+    public void attach() {
+        thread = Thread.currentThread();
+        txtor.set(this);
+    }
+
+    /**
+     * Dissociate this transactor from the current thread without closing
+     * its database connections, so it can be attached to another thread.
+     */
+    public void detach() {
+        if (txtor.get() == this) {
+            txtor.remove();
+        }
+    }
+
     /**
      * Mark a Node as modified/created/deleted during this transaction
      *
@@ -238,7 +264,16 @@ public class Transactor {
      * @param con the connection
      */
     public void registerConnection(DbSource src, Connection con) {
-        sqlConnections.put(src, con);
+        Connection old = sqlConnections.put(src, con);
+        if (old != null && old != con) {
+            // drop statements prepared on the replaced connection
+            StatementCache cache = statementCaches.remove(old);
+            if (cache != null) {
+                cache.close();
+            }
+            // return the replaced connection to the pool or close it
+            src.releaseConnection(old);
+        }
         // we assume a freshly created connection is ok.
         testedConnections.put(src, Long.valueOf(System.currentTimeMillis()));
     }
@@ -252,7 +287,9 @@ public class Transactor {
         Connection con = sqlConnections.get(src);
         Long tested = testedConnections.get(src);
         long now = System.currentTimeMillis();
-        if (con != null && (tested == null || now - tested.longValue() > 60000)) {
+        // pooled connections are validated by the pool when they are borrowed
+        if (con != null && !src.isPooled() &&
+                (tested == null || now - tested.longValue() > 60000)) {
             // Check if the connection is still alive by executing a simple statement.
             try {
                 Statement stmt = con.createStatement();
@@ -273,6 +310,43 @@ public class Transactor {
         return con;
     }
 
+    /**
+     * Get the prepared statement cache for a db connection registered with this
+     * transactor, creating it if necessary. The cache of a pooled connection is
+     * kept by the pool, so it survives returning the connection at the end of
+     * a request. Caches of other connections are kept until they are closed.
+     * @param con the connection
+     * @return the statement cache, or null if statement caching is disabled or
+     *         the connection isn't managed by this transactor
+     */
+    StatementCache getStatementCache(Connection con) {
+        int capacity = nmgr.getStatementCacheSize();
+        if (capacity <= 0) {
+            return null;
+        }
+        DbSource src = null;
+        for (Iterator<Map.Entry<DbSource, Connection>> i = sqlConnections.entrySet().iterator();
+                i.hasNext();) {
+            Map.Entry<DbSource, Connection> entry = i.next();
+            if (entry.getValue() == con) {
+                src = entry.getKey();
+                break;
+            }
+        }
+        if (src == null) {
+            return null;
+        }
+        if (src.isPooled(con)) {
+            return src.getStatementCache(con, capacity);
+        }
+        StatementCache cache = statementCaches.get(con);
+        if (cache == null) {
+            cache = new StatementCache(con, capacity);
+            statementCaches.put(con, cache);
+        }
+        return cache;
+    }
+
     /**
      * Start a new transaction with the given name.
      *
@@ -332,68 +406,77 @@ public class Transactor {
             // the set to collect DbMappings to be marked as changed
             HashSet dirtyDbMappings = new HashSet();
             Log eventLog = nmgr.app.getEventLog();
+            // consecutive relational writes with the same statement are batched
+            NodeManager.WriteBatch batch = nmgr.createWriteBatch();
 
-            for (int i = 0; i < dirty.length; i++) {
-                Node node = (Node) dirty[i];
-
-                // update nodes in db
-                int nstate = node.getState();
-
-                if (nstate == Node.NEW) {
-                    nmgr.insertNode(nmgr.db, txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
-                    node.setState(Node.CLEAN);
-
-                    // register node with nodemanager cache
-                    nmgr.registerNode(node);
+            try {
+                for (int i = 0; i < dirty.length; i++) {
+                    Node node = (Node) dirty[i];
 
-                    if (hasListeners) {
-                        insertedNodes.add(node);
-                    }
+                    // update nodes in db
+                    int nstate = node.getState();
 
-                    inserted++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("inserted node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
-                } else if (nstate == Node.MODIFIED) {
-                    // only mark DbMapping as dirty if updateNode returns true
-                    if (nmgr.updateNode(nmgr.db, txn, node)) {
+                    if (nstate == Node.NEW) {
+                        nmgr.insertNode(nmgr.db, txn, node, batch);
+                        dirtyDbMappings.add(node.getDbMapping());
+                        node.setState(Node.CLEAN);
+
+                        // register node with nodemanager cache
+                        nmgr.registerNode(node);
+
+                        if (hasListeners) {
+                            insertedNodes.add(node);
+                        }
+
+                        inserted++;
+                        if (eventLog.isDebugEnabled()) {
+                            eventLog.debug("inserted node: " + node.getPrototype() + "/" +
+                                    node.getID());
+                        }
+                    } else if (nstate == Node.MODIFIED) {
+                        // only mark DbMapping as dirty if updateNode returns true
+                        if (nmgr.updateNode(nmgr.db, txn, node, batch)) {
+                            dirtyDbMappings.add(node.getDbMapping());
+                        }
+                        node.setState(Node.CLEAN);
+
+                        // update node with nodemanager cache
+                        nmgr.registerNode(node);
+
+                        if (hasListeners) {
+                            updatedNodes.add(node);
+                        }
+
+                        updated++;
+                        if (eventLog.isDebugEnabled()) {
+                            eventLog.debug("updated node: " + node.getPrototype() + "/" +
+                                    node.getID());
+                        }
+                    } else if (nstate == Node.DELETED) {
+                        nmgr.deleteNode(nmgr.db, txn, node, batch);
                         dirtyDbMappings.add(node.getDbMapping());
-                    }
-                    node.setState(Node.CLEAN);
-
-                    // update node with nodemanager cache
-                    nmgr.registerNode(node);
-
-                    if (hasListeners) {
-                        updatedNodes.add(node);
-                    }
 
-                    updated++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("updated node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
-                } else if (nstate == Node.DELETED) {
-                    nmgr.deleteNode(nmgr.db, txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
+                        // remove node from nodemanager cache
+                        nmgr.evictNode(node);
 
-                    // remove node from nodemanager cache
-                    nmgr.evictNode(node);
+                        if (hasListeners) {
+                            deletedNodes.add(node);
+                        }
 
-                    if (hasListeners) {
-                        deletedNodes.add(node);
+                        deleted++;
+                        if (eventLog.isDebugEnabled()) {
+                            eventLog.debug("removed node: " + node.getPrototype() + "/" +
+                                    node.getID());
+                        }
                     }
 
-                    deleted++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("removed node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
+                    node.clearWriteLock();
                 }
 
-                node.clearWriteLock();
+                // execute pending writes before marking db-mappings as changed
+                batch.flush();
+            } finally {
+                batch.close();
             }
 
             // set last data change times in db-mappings
@@ -528,23 +611,67 @@ public class Transactor {
     }
 
     /**
-     * Closes all open JDBC connections
+     * Closes all open JDBC connections. Connections borrowed from a
+     * connection pool are returned to the pool.
      */
     public void closeConnections() {
-        if (sqlConnections != null) {
-            for (Iterator i = sqlConnections.values().iterator(); i.hasNext();) {
-                try {
-                    Connection con = (Connection) i.next();
+        closeConnections(false, false);
+    }
 
+    /**
+     * Closes all open JDBC connections. Connections borrowed from a
+     * connection pool are closed and removed from the pool rather than
+     * returned, as the thread of a killed request may still be using them.
+     */
+    public void discardConnections() {
+        closeConnections(false, true);
+    }
+
+    /**
+     * Returns all JDBC connections borrowed from a connection pool. Called
+     * when a request is finished so idle evaluators don't hold on to pooled
+     * connections. Connections of db sources without pool are kept open.
+     */
+    public void releaseConnections() {
+        closeConnections(true, false);
+    }
+
+    private void closeConnections(boolean pooledOnly, boolean discard) {
+        if (sqlConnections == null) {
+            return;
+        }
+        for (Iterator<Map.Entry<DbSource, Connection>> i = sqlConnections.entrySet().iterator();
+                i.hasNext();) {
+            Map.Entry<DbSource, Connection> entry = i.next();
+            DbSource src = entry.getKey();
+            Connection con = entry.getValue();
+            boolean pooled = src.isPooled(con);
+
+            if (pooledOnly && !pooled) {
+                continue;
+            }
+
+            // statements of pooled connections are kept by the pool
+            StatementCache cache = statementCaches.remove(con);
+            if (cache != null) {
+                cache.close();
+            }
+
+            try {
+                if (pooled && discard) {
+                    src.discardConnection(con);
+                } else if (pooled) {
+                    src.releaseConnection(con);
+                } else {
                     con.close();
                     nmgr.app.logEvent("Closing DB connection: " + con);
-                } catch (Exception ignore) {
-                    // exception closing db connection, ignore
                 }
+            } catch (Exception ignore) {
+                // exception closing db connection, ignore
             }
 
-            sqlConnections.clear();
-            testedConnections.clear();
+            i.remove();
+            testedConnections.remove(src);
         }
     }
 
@@ -23,12 +23,22 @@ import helma.framework.core.Application;
 
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 import org.xml.sax.SAXException;
 
 /**
  * A simple XML-database
+ *
+ * If the <code>embeddedDbSync</code> app property is set to true, committed
+ * transactions are synced to disk before commitTransaction() returns. Files
+ * are synced by their transaction's thread, while concurrently committing
+ * transactions are moved into place together, followed by a single sync of
+ * the database directory.
  */
 public final class XmlDatabase implements IDatabase {
 
@@ -41,6 +51,16 @@ public final class XmlDatabase implements IDatabase {
     // use standard encoding by default.
     protected String encoding = null;
 
+    // whether commits are synced to disk
+    protected boolean sync = false;
+
+    // whether the database directory can be synced on this platform
+    private boolean syncDirectory = true;
+
+    // transactions waiting for the current group commit
+    private final ArrayList commitQueue = new ArrayList();
+    private boolean committing = false;
+
     /**
      * Initializes the database from an application.
      * @param app
@@ -67,6 +87,8 @@ public final class XmlDatabase implements IDatabase {
 
         this.encoding = app.getCharset();
 
+        sync = "true".equalsIgnoreCase(app.getProperty("embeddedDbSync"));
+
         // get the initial id generator value
         long idBaseValue;
         try {
@@ -371,10 +393,49 @@ public final class XmlDatabase implements IDatabase {
         ArrayList writeFiles = new ArrayList();
         ArrayList deleteFiles = new ArrayList();
 
+        // set when the transaction has been persisted by a group commit
+        boolean committed = false;
+        Exception error;
+
         /**
          * Complete the transaction by making its changes persistent.
          */
         public void commit() throws DatabaseException {
+            if (!sync) {
+                persist();
+                return;
+            }
+            try {
+                syncFiles();
+            } catch (IOException x) {
+                abort();
+                throw new DatabaseException("Error syncing transaction: " + x);
+            }
+            groupCommit(this);
+        }
+
+        /**
+         * Sync the temporary files written by this transaction to disk.
+         */
+        void syncFiles() throws IOException {
+            int l = writeFiles.size();
+            for (int i=0; i<l; i++) {
+                Resource res = (Resource) writeFiles.get(i);
+                FileChannel channel = FileChannel.open(res.tmpfile.toPath(),
+                        StandardOpenOption.WRITE);
+                try {
+                    channel.force(true);
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+
+        /**
+         * Move the files written by this transaction to their permanent
+         * names and delete the files of deleted nodes.
+         */
+        void persist() {
             // move through updated/created files and persist them
             int l = writeFiles.size();
             for (int i=0; i<l; i++) {
@@ -415,6 +476,39 @@ public final class XmlDatabase implements IDatabase {
             deleteFiles.clear();
         }
 
+        /**
+         * Atomically replace the permanent files with the files written by
+         * this transaction and delete the files of deleted nodes. Unlike
+         * persist(), a failure is thrown rather than logged, so it can be
+         * reported to the committing threads.
+         *
+         * @throws IOException if a file couldn't be moved or deleted
+         */
+        void persistAtomically() throws IOException {
+            int l = writeFiles.size();
+            for (int i=0; i<l; i++) {
+                Resource res = (Resource) writeFiles.get(i);
+                try {
+                    Files.move(res.tmpfile.toPath(), res.file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException x) {
+                    app.logError("*** Error committing "+res.file);
+                    app.logError("*** Committed version is in "+res.tmpfile);
+                    throw x;
+                }
+            }
+
+            l = deleteFiles.size();
+            for (int i=0; i<l; i++) {
+                Resource res = (Resource) deleteFiles.get(i);
+                Files.deleteIfExists(res.file.toPath());
+            }
+            // clear registered resources
+            writeFiles.clear();
+            deleteFiles.clear();
+        }
+
         /**
          * Rollback the transaction, forgetting the changed items
          */
@@ -452,6 +546,124 @@ public final class XmlDatabase implements IDatabase {
 
     }
 
+    /**
+     * Persist a transaction together with the transactions committed by
+     * other threads in the meantime, and sync the database directory once
+     * for all of them. Returns when the transaction has been persisted.
+     *
+     * If a transaction of the group can't be persisted, the commit fails
+     * for it and for the transactions after it, which are rolled back. The
+     * failed transaction itself may be partially persisted, as the files
+     * moved before the failure can't be restored. The transactions persisted
+     * before it succeed as usual.
+     *
+     * If the directory can't be synced after moving the files, the commit
+     * fails for all transactions whose files were moved. This is not a
+     * rollback: their files are in place, but it is unknown whether they
+     * will survive a crash.
+     *
+     * @param txn the transaction
+     * @throws DatabaseException if the group couldn't be persisted and synced
+     */
+    void groupCommit(XmlTransaction txn) throws DatabaseException {
+        ArrayList batch;
+        synchronized (commitQueue) {
+            txn.committed = false;
+            commitQueue.add(txn);
+            // wait while another thread is committing, which may include ours
+            // the transaction can't be withdrawn once queued, so an
+            // interrupt is only passed on after it has been written
+            boolean interrupted = false;
+            while (committing && !txn.committed) {
+                try {
+                    commitQueue.wait();
+                } catch (InterruptedException x) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (txn.committed) {
+                if (txn.error != null) {
+                    throw new DatabaseException("Error committing to " + dbHomeDir + ": " + txn.error);
+                }
+                return;
+            }
+            // become the committer for all queued transactions
+            committing = true;
+            batch = new ArrayList(commitQueue);
+            commitQueue.clear();
+        }
+
+        // the error of the transaction that couldn't be persisted, which is
+        // also reported to the transactions after it
+        Exception persistError = null;
+        // the error syncing the directory, reported to the persisted transactions
+        Exception syncError = null;
+        int persisted = 0;
+        try {
+            try {
+                for (; persisted < batch.size(); persisted++) {
+                    ((XmlTransaction) batch.get(persisted)).persistAtomically();
+                }
+            } catch (Exception x) {
+                persistError = x;
+                app.logError("Error committing to " + dbHomeDir, x);
+                // remove the remaining temporary files of the failed transaction
+                // and the transactions after it
+                for (int i = persisted; i < batch.size(); i++) {
+                    ((XmlTransaction) batch.get(i)).abort();
+                }
+            }
+            if (persisted > 0) {
+                try {
+                    syncDirectory();
+                } catch (Exception x) {
+                    syncError = x;
+                    app.logError("Error syncing " + dbHomeDir, x);
+                }
+            }
+        } finally {
+            synchronized (commitQueue) {
+                for (int i = 0; i < batch.size(); i++) {
+                    XmlTransaction t = (XmlTransaction) batch.get(i);
+                    t.error = i < persisted ? syncError : persistError;
+                    t.committed = true;
+                }
+                committing = false;
+                commitQueue.notifyAll();
+            }
+        }
+
+        if (txn.error != null) {
+            throw new DatabaseException("Error committing to " + dbHomeDir + ": " + txn.error);
+        }
+    }
+
+    /**
+     * Sync the database directory, making renamed and deleted files durable.
+     */
+    private void syncDirectory() throws IOException {
+        if (!syncDirectory) {
+            return;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dbHomeDir.toPath(), StandardOpenOption.READ);
+        } catch (IOException x) {
+            // directories can't be opened on some platforms, e.g. Windows
+            app.logEvent("Can't sync database directory " + dbHomeDir + ": " + x);
+            syncDirectory = false;
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
     /**
      * A holder class for two files, the temporary file and the permanent one
      */
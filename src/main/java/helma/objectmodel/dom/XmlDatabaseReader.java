@@ -29,7 +29,6 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Hashtable;
 
 /**
  *
@@ -41,7 +40,7 @@ public final class XmlDatabaseReader extends DefaultHandler implements XmlConsta
     private String elementType = null;
     private String elementName = null;
     private StringBuffer charBuffer = null;
-    Hashtable propMap = null;
+    PropertyMap propMap = null;
     SubnodeList subnodes = null;
 
     /**
@@ -140,8 +139,8 @@ public final class XmlDatabaseReader extends DefaultHandler implements XmlConsta
                 prop.setNodeHandle(handle);
 
                 if (propMap == null) {
-                    propMap = new Hashtable();
-                    currentNode.setPropMap(propMap);
+                    propMap = new PropertyMap();
+                    currentNode.setPropertyMap(propMap);
                 }
 
                 propMap.put(correctPropertyName(propName), prop);
@@ -233,8 +232,8 @@ public final class XmlDatabaseReader extends DefaultHandler implements XmlConsta
             }
 
             if (propMap == null) {
-                propMap = new Hashtable();
-                currentNode.setPropMap(propMap);
+                propMap = new PropertyMap();
+                currentNode.setPropertyMap(propMap);
             }
 
             propMap.put(correctPropertyName(elementName), prop);
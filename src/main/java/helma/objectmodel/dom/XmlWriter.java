@@ -22,12 +22,12 @@ import helma.objectmodel.IProperty;
 import helma.objectmodel.INodeState;
 import helma.objectmodel.db.DbMapping;
 import helma.objectmodel.db.Node;
+import helma.objectmodel.db.PropertyMap;
 import helma.util.HtmlEncoder;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Vector;
 
 /**
@@ -270,7 +270,7 @@ public class XmlWriter extends OutputStreamWriter implements XmlConstants {
         if (dbmode && node instanceof Node) {
             // a newly constructed db.Node doesn't have a propMap,
             // but returns an enumeration of all it's db-mapped properties
-            Hashtable props = ((Node) node).getPropMap();
+            PropertyMap props = ((Node) node).getPropertyMap();
 
             if (props == null) {
                 return;
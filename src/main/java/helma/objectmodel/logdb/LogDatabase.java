@@ -0,0 +1,1046 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.logdb;
+
+import helma.framework.core.Application;
+import helma.objectmodel.*;
+import helma.objectmodel.db.Node;
+import helma.objectmodel.db.NodeManager;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded database that stores all nodes in a single append-only log
+ * file, nodes.log in the database directory. Each committed transaction is
+ * appended as one checksummed record, so a transaction is either stored
+ * completely or, if the process dies while writing it, discarded when the
+ * log is opened again. An in-memory index mapping node ids to their latest
+ * record is rebuilt from the log on startup, and nodes are read from the
+ * memory-mapped log file.
+ *
+ * Transactions committed concurrently are written and synced to disk
+ * together, so the cost of an fsync is shared by all of them. Space taken by
+ * updated and deleted nodes is reclaimed by rewriting the log in a
+ * background thread once it makes up a large enough part of the file.
+ *
+ * The database is used instead of the XML database by setting the
+ * <code>embeddedDb</code> app property to <code>log</code>. If the database
+ * directory contains an XML database but no log file yet, the XML database
+ * is migrated on startup. The following app properties are supported:
+ *
+ * <ul>
+ * <li>embeddedDbSync - sync the log to disk on commit, defaults to true</li>
+ * <li>embeddedDbCompactionRatio - the share of obsolete data at which the
+ *     log is compacted, defaults to 0.5</li>
+ * <li>embeddedDbCompactionMinSize - the minimal amount of obsolete data in
+ *     bytes before the log is compacted, defaults to 4 MB</li>
+ * </ul>
+ */
+public final class LogDatabase implements IDatabase {
+
+    static final String FILENAME = "nodes.log";
+
+    static final int MAGIC = 0x484c4f47;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    // record length and checksum
+    static final int RECORD_HEADER_SIZE = 8;
+
+    // operations within a record
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte IDGEN = 3;
+
+    // maximal payload of records written by compaction
+    static final int COMPACTION_RECORD_SIZE = 1024 * 1024;
+
+    protected File dbHomeDir;
+    protected Application app;
+    protected NodeManager nmgr;
+
+    File file;
+
+    // the current log file, replaced by compaction
+    private LogFile log;
+
+    // the end of the last committed record
+    private long end;
+
+    // locations of the current version of all nodes by key
+    private HashMap index = new HashMap();
+
+    // bytes in the log taken by nodes that have since been updated or deleted
+    private long obsolete = 0;
+
+    // the id generator and the last value written to the log
+    private final AtomicLong idCounter = new AtomicLong();
+    private volatile long storedId = 0;
+
+    // transactions waiting to be written by the current group commit
+    private final ArrayList queue = new ArrayList();
+    private boolean writing = false;
+
+    // held while writing to the log, and by compaction while switching files
+    private final Object writeLock = new Object();
+
+    private boolean sync = true;
+    private double compactionRatio = 0.5;
+    private long compactionMinSize = 4 * 1024 * 1024;
+
+    private Thread compactor;
+    private volatile boolean running = true;
+
+    // statistics
+    private volatile long commits = 0;
+    private volatile long syncs = 0;
+    private volatile long compactions = 0;
+
+    /**
+     * Initializes the database from an application.
+     * @param dbHome the database directory
+     * @param app the application
+     * @throws DatabaseException if the database can't be opened
+     */
+    public void init(File dbHome, Application app) throws DatabaseException {
+        this.app = app;
+        nmgr = app.getNodeManager();
+        dbHomeDir = dbHome;
+
+        if (!dbHomeDir.exists() && !dbHomeDir.mkdirs()) {
+            throw new DatabaseException("Can't create database directory "+dbHomeDir);
+        }
+
+        if (!dbHomeDir.canWrite()) {
+            throw new DatabaseException("No write permission for database directory "+dbHomeDir);
+        }
+
+        sync = !"false".equalsIgnoreCase(app.getProperty("embeddedDbSync"));
+        try {
+            compactionRatio = Double.parseDouble(app.getProperty("embeddedDbCompactionRatio", "0.5"));
+            compactionMinSize = Long.parseLong(app.getProperty("embeddedDbCompactionMinSize", "4194304"));
+        } catch (NumberFormatException x) {
+            app.logError("Invalid embedded db compaction setting: " + x.getMessage());
+        }
+
+        file = new File(dbHomeDir, FILENAME);
+
+        if (!file.exists() && XmlMigrator.hasXmlDatabase(dbHomeDir)) {
+            migrate();
+        } else {
+            try {
+                open();
+            } catch (IOException x) {
+                throw new DatabaseException("Error opening " + file + ": " + x);
+            }
+        }
+
+        // get the initial id generator value
+        long idBaseValue;
+        try {
+            idBaseValue = Long.parseLong(app.getProperty("idBaseValue", "1"));
+            // 0 and 1 are reserved for root nodes
+            idBaseValue = Math.max(1L, idBaseValue);
+        } catch (NumberFormatException ignore) {
+            idBaseValue = 1L;
+        }
+        raiseID(idBaseValue);
+
+        ITransaction txn = null;
+
+        try {
+            txn = beginTransaction();
+
+            Node node = null;
+
+            try {
+                getNode(txn, "0");
+            } catch (ObjectNotFoundException notfound) {
+                node = new Node("root", "0", "Root", nmgr.safe);
+                node.setDbMapping(app.getDbMapping("root"));
+                insertNode(txn, node.getID(), node);
+            }
+
+            try {
+                getNode(txn, "1");
+            } catch (ObjectNotFoundException notfound) {
+                node = new Node("users", "1", null, nmgr.safe);
+                node.setDbMapping(app.getDbMapping("__userroot__"));
+                insertNode(txn, node.getID(), node);
+            }
+
+            commitTransaction(txn);
+        } catch (Exception x) {
+            app.logError("Error initializing db", x);
+
+            try {
+                abortTransaction(txn);
+            } catch (Exception ignore) {
+            }
+
+            throw (new DatabaseException("Error initializing db"));
+        }
+    }
+
+    /**
+     * Migrate the XML database in the database directory. The nodes are
+     * written to a temporary log that only gets the name of the log once it
+     * is complete, so a migration that is interrupted or fails is started
+     * over on the next startup instead of leaving a partial log behind.
+     */
+    private void migrate() throws DatabaseException {
+        File target = file;
+        File tmp = new File(dbHomeDir, FILENAME + ".migrate");
+        file = tmp;
+        try {
+            // left over from an earlier attempt
+            Files.deleteIfExists(tmp.toPath());
+            open();
+            XmlMigrator.migrate(this, dbHomeDir);
+            // the records are not synced on commit if embeddedDbSync is off
+            log.channel.force(true);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception x) {
+            app.logError("Error migrating XML database in " + dbHomeDir, x);
+            shutdown();
+            tmp.delete();
+            file = target;
+            throw new DatabaseException("Error migrating XML database: " + x);
+        }
+        // the open log file now has its permanent name
+        file = target;
+        syncDirectory();
+    }
+
+    /**
+     * Sync the database directory, making a renamed log durable. This is
+     * skipped with a message on platforms that can't open directories.
+     */
+    private void syncDirectory() {
+        try {
+            FileChannel channel = FileChannel.open(dbHomeDir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException x) {
+            app.logEvent("Can't sync database directory " + dbHomeDir + ": " + x);
+        }
+    }
+
+    /**
+     * Open the log file, rebuilding the index from its records. An incomplete
+     * or corrupt record at the end of the log, left by a crash while writing
+     * it, is cut off.
+     */
+    private void open() throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.truncate(0);
+                writeFully(channel, header, 0);
+                channel.force(true);
+                size = HEADER_SIZE;
+            }
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 65536));
+            long pos;
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a Helma log database");
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported log database version " + version);
+                }
+                pos = HEADER_SIZE;
+                CRC32 crc = new CRC32();
+                while (pos + RECORD_HEADER_SIZE <= size) {
+                    int length = in.readInt();
+                    long checksum = in.readInt() & 0xffffffffL;
+                    if (length <= 0 || pos + RECORD_HEADER_SIZE + length > size) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+                    apply(payload, pos + RECORD_HEADER_SIZE);
+                    pos += RECORD_HEADER_SIZE + length;
+                }
+            } finally {
+                in.close();
+            }
+
+            if (pos < size) {
+                app.logEvent("Discarding " + (size - pos) + " bytes of incomplete data at end of " + file);
+                channel.truncate(pos);
+                channel.force(true);
+            }
+
+            end = pos;
+            storedId = idCounter.get();
+            log = new LogFile(channel);
+            app.logEvent("Opened " + file + " with " + index.size() + " nodes");
+        } catch (IOException x) {
+            channel.close();
+            throw x;
+        }
+    }
+
+    /**
+     * Apply the operations of a record read from the log to the index.
+     *
+     * @param payload the record's payload
+     * @param offset the position of the payload within the log file
+     */
+    private void apply(byte[] payload, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            byte op = buf.get();
+            if (op == IDGEN) {
+                raiseID(buf.getLong());
+                continue;
+            }
+            String key = readKey(buf);
+            Location previous;
+            if (op == PUT) {
+                int length = buf.getInt();
+                previous = (Location) index.put(key, new Location(offset + buf.position(), length));
+                buf.position(buf.position() + length);
+            } else if (op == DELETE) {
+                previous = (Location) index.remove(key);
+            } else {
+                throw new IOException("Invalid operation " + op + " in " + file);
+            }
+            if (previous != null) {
+                obsolete += previous.length;
+            }
+        }
+    }
+
+    /**
+     * Shut down the database
+     */
+    public void shutdown() {
+        running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = compactor;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignore) {
+                // ignore
+            }
+        }
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (log != null) {
+                    log.close();
+                    log = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a new transaction.
+     *
+     * @return the new tranaction object
+     * @throws DatabaseException
+     */
+    public ITransaction beginTransaction() throws DatabaseException {
+        return new LogTransaction();
+    }
+
+    /**
+     * committ the given transaction, makint its changes persistent
+     *
+     * @param txn
+     * @throws DatabaseException
+     */
+    public void commitTransaction(ITransaction txn) throws DatabaseException {
+        txn.commit();
+    }
+
+    /**
+     * Abort the given transaction
+     *
+     * @param txn
+     * @throws DatabaseException
+     */
+    public void abortTransaction(ITransaction txn) throws DatabaseException {
+        txn.abort();
+    }
+
+    /**
+     * Get the id for the next new object to be stored.
+     *
+     * @return the id for the next new object to be stored
+     */
+    public String nextID() {
+        return Long.toString(idCounter.incrementAndGet());
+    }
+
+    /**
+     * Make sure the id generator doesn't return ids up to the given value.
+     *
+     * @param value the minimal value of the id generator
+     */
+    void raiseID(long value) {
+        long current = idCounter.get();
+        while (current < value && !idCounter.compareAndSet(current, value)) {
+            current = idCounter.get();
+        }
+    }
+
+    /**
+     * Retrieves a Node from the database.
+     *
+     * @param txn the current transaction
+     * @param kstr the key
+     * @return the object associated with the given key
+     * @throws IOException if an I/O error occurred loading the object.
+     * @throws ObjectNotFoundException if no object is stored by this key.
+     */
+    public INode getNode(ITransaction txn, String kstr)
+                  throws IOException, ObjectNotFoundException {
+        byte[] data;
+        try {
+            data = read(kstr);
+        } catch (ClosedChannelException x) {
+            // the log was replaced by compaction while reading, try again
+            data = read(kstr);
+        }
+        if (data == null) {
+            throw new ObjectNotFoundException("Object not found for key " + kstr);
+        }
+        return NodeCodec.decode(data, nmgr, app);
+    }
+
+    private byte[] read(String key) throws IOException {
+        Location location;
+        LogFile current;
+        synchronized (this) {
+            location = (Location) index.get(key);
+            current = log;
+        }
+        if (location == null) {
+            return null;
+        }
+        if (current == null) {
+            throw new IOException("Database has been shut down");
+        }
+        return current.read(location);
+    }
+
+    /**
+     * Save a node with the given key. The node is written to the log
+     * when the transaction is committed.
+     *
+     * @param txn
+     * @param kstr
+     * @param node
+     * @throws java.io.IOException
+     */
+    public void insertNode(ITransaction txn, String kstr, INode node)
+                throws IOException {
+        synchronized (this) {
+            if (index.containsKey(kstr)) {
+                throw new IOException("Object already exists for key " + kstr);
+            }
+        }
+
+        // apart from the above check insertNode() is equivalent to updateNode()
+        updateNode(txn, kstr, node);
+    }
+
+    /**
+     * Update a node with the given key. The node is encoded immediately
+     * and written to the log when the transaction is committed.
+     *
+     * @param txn
+     * @param kstr
+     * @param node
+     * @throws java.io.IOException
+     */
+    public void updateNode(ITransaction txn, String kstr, INode node)
+                throws IOException {
+        byte[] data = NodeCodec.encode((Node) node, true);
+        txn.addResource(new Operation(PUT, kstr, data), ITransaction.ADDED);
+    }
+
+    /**
+     * Marks an element from the database as deleted
+     *
+     * @param txn
+     * @param kstr
+     * @throws IOException
+     */
+    public void deleteNode(ITransaction txn, String kstr)
+                    throws IOException {
+        txn.addResource(new Operation(DELETE, kstr, null), ITransaction.DELETED);
+    }
+
+    /**
+     * Write a list of operations to the log, batching them with the
+     * operations of concurrently committing transactions. Returns when
+     * the operations have been written.
+     *
+     * @param operations the operations
+     * @throws DatabaseException if the operations couldn't be written
+     */
+    void commit(ArrayList operations) throws DatabaseException {
+        long id = idCounter.get();
+        if (operations.isEmpty() && id <= storedId) {
+            return;
+        }
+
+        Batch batch;
+        try {
+            batch = new Batch(operations, id > storedId ? id : -1);
+        } catch (IOException x) {
+            throw new DatabaseException("Error encoding transaction: " + x);
+        }
+
+        ArrayList batches;
+        synchronized (queue) {
+            queue.add(batch);
+            // wait while another thread is writing, which may include our batch
+            // the transaction can't be withdrawn once queued, so an
+            // interrupt is only passed on after it has been written
+            boolean interrupted = false;
+            while (writing && !batch.done) {
+                try {
+                    queue.wait();
+                } catch (InterruptedException x) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (batch.done) {
+                if (batch.error != null) {
+                    throw new DatabaseException("Error writing " + file + ": " + batch.error);
+                }
+                return;
+            }
+            // become the writer for all queued batches
+            writing = true;
+            batches = new ArrayList(queue);
+            queue.clear();
+        }
+
+        IOException error = null;
+        try {
+            write(batches);
+        } catch (IOException x) {
+            error = x;
+            app.logError("Error writing " + file, x);
+        } finally {
+            synchronized (queue) {
+                for (int i = 0; i < batches.size(); i++) {
+                    Batch b = (Batch) batches.get(i);
+                    b.error = error;
+                    b.done = true;
+                }
+                writing = false;
+                queue.notifyAll();
+            }
+        }
+
+        if (error != null) {
+            throw new DatabaseException("Error writing " + file + ": " + error);
+        }
+        checkCompaction();
+    }
+
+    /**
+     * Append a list of batches to the log, sync it, and update the index.
+     */
+    private void write(ArrayList batches) throws IOException {
+        synchronized (writeLock) {
+            LogFile current;
+            long position;
+            synchronized (this) {
+                current = log;
+                position = end;
+            }
+            if (current == null) {
+                throw new IOException("Database has been shut down");
+            }
+
+            long[] offsets = new long[batches.size()];
+            long pos = position;
+            try {
+                for (int i = 0; i < batches.size(); i++) {
+                    Batch batch = (Batch) batches.get(i);
+                    offsets[i] = pos;
+                    writeFully(current.channel, ByteBuffer.wrap(batch.record), pos);
+                    pos += batch.record.length;
+                }
+                if (sync) {
+                    current.channel.force(false);
+                    syncs += 1;
+                }
+            } catch (IOException x) {
+                // don't leave a partial record behind
+                try {
+                    current.channel.truncate(position);
+                } catch (IOException ignore) {
+                    // incomplete records are discarded when the log is opened
+                }
+                throw x;
+            }
+
+            long id = storedId;
+            synchronized (this) {
+                for (int i = 0; i < batches.size(); i++) {
+                    Batch batch = (Batch) batches.get(i);
+                    for (int j = 0; j < batch.keys.length; j++) {
+                        Location previous;
+                        if (batch.offsets[j] < 0) {
+                            previous = (Location) index.remove(batch.keys[j]);
+                        } else {
+                            previous = (Location) index.put(batch.keys[j],
+                                    new Location(offsets[i] + batch.offsets[j], batch.lengths[j]));
+                        }
+                        if (previous != null) {
+                            obsolete += previous.length;
+                        }
+                    }
+                    id = Math.max(id, batch.id);
+                }
+                end = pos;
+            }
+            storedId = id;
+            commits += batches.size();
+        }
+    }
+
+    /**
+     * Start compaction in the background if enough of the log is taken
+     * by obsolete data.
+     */
+    private synchronized void checkCompaction() {
+        if (!running || compactor != null || obsolete < compactionMinSize ||
+                obsolete < (end - HEADER_SIZE) * compactionRatio) {
+            return;
+        }
+        compactor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    long before = file.length();
+                    long start = System.currentTimeMillis();
+                    compact();
+                    app.logEvent("Compacted " + file + " from " + before + " to " +
+                            file.length() + " bytes in " +
+                            (System.currentTimeMillis() - start) + " millis");
+                } catch (Exception x) {
+                    app.logError("Error compacting " + file, x);
+                } finally {
+                    synchronized (LogDatabase.this) {
+                        compactor = null;
+                    }
+                }
+            }
+        }, "LogDatabaseCompactor-" + app.getName());
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Rewrite the log with only the current version of each node. The bulk
+     * of the nodes is copied without blocking commits. Records committed in
+     * the meantime are then appended as they are while commits are blocked,
+     * and the new log replaces the old one.
+     */
+    void compact() throws IOException {
+        HashMap snapshot;
+        long snapshotEnd;
+        LogFile source;
+        synchronized (this) {
+            if (log == null) {
+                return;
+            }
+            snapshot = new HashMap(index);
+            snapshotEnd = end;
+            source = log;
+        }
+
+        File tmp = new File(dbHomeDir, FILENAME + ".compact");
+        FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean success = false;
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            long pos = writeFully(channel, header, 0);
+
+            // copy the current version of each node, starting with the id generator
+            HashMap moved = new HashMap();
+            ArrayList operations = new ArrayList();
+            long id = storedId;
+            int size = 0;
+            for (Iterator i = snapshot.entrySet().iterator(); i.hasNext();) {
+                if (!running) {
+                    return;
+                }
+                Map.Entry entry = (Map.Entry) i.next();
+                byte[] data = source.read((Location) entry.getValue());
+                operations.add(new Operation(PUT, (String) entry.getKey(), data));
+                size += data.length;
+                if (size >= COMPACTION_RECORD_SIZE || !i.hasNext()) {
+                    pos = writeCompacted(channel, operations, id, pos, moved);
+                    operations.clear();
+                    size = 0;
+                    id = -1;
+                }
+            }
+            if (id > -1) {
+                pos = writeCompacted(channel, operations, id, pos, moved);
+            }
+
+            synchronized (writeLock) {
+                synchronized (this) {
+                    if (log != source) {
+                        return;
+                    }
+                    // append records committed since the snapshot as they are
+                    long tailEnd = end;
+                    long tailStart = pos;
+                    channel.position(pos);
+                    for (long p = snapshotEnd; p < tailEnd;) {
+                        p += source.channel.transferTo(p, tailEnd - p, channel);
+                    }
+                    pos += tailEnd - snapshotEnd;
+                    channel.force(true);
+
+                    long shift = tailStart - snapshotEnd;
+                    HashMap newIndex = new HashMap(index.size() * 4 / 3 + 16);
+                    for (Iterator i = index.entrySet().iterator(); i.hasNext();) {
+                        Map.Entry entry = (Map.Entry) i.next();
+                        Location location = (Location) entry.getValue();
+                        if (location.offset >= snapshotEnd) {
+                            location = new Location(location.offset + shift, location.length);
+                        } else {
+                            location = (Location) moved.get(entry.getKey());
+                        }
+                        newIndex.put(entry.getKey(), location);
+                    }
+
+                    source.close();
+                    try {
+                        Files.move(tmp.toPath(), file.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException x) {
+                        // keep using the old log
+                        log = new LogFile(FileChannel.open(file.toPath(),
+                                StandardOpenOption.READ, StandardOpenOption.WRITE));
+                        throw x;
+                    }
+
+                    log = new LogFile(channel);
+                    index = newIndex;
+                    end = pos;
+                    obsolete = 0;
+                    compactions += 1;
+                    success = true;
+                }
+            }
+        } finally {
+            if (!success) {
+                channel.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Write a record of operations to a compacted log and register the
+     * new locations of its nodes.
+     */
+    private long writeCompacted(FileChannel channel, ArrayList operations, long id,
+                                long pos, HashMap moved) throws IOException {
+        Batch batch = new Batch(operations, id);
+        writeFully(channel, ByteBuffer.wrap(batch.record), pos);
+        for (int j = 0; j < batch.keys.length; j++) {
+            moved.put(batch.keys[j], new Location(pos + batch.offsets[j], batch.lengths[j]));
+        }
+        return pos + batch.record.length;
+    }
+
+    /**
+     * Write the complete buffer to the channel at the given position.
+     *
+     * @return the position after the written data
+     */
+    static long writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        return pos;
+    }
+
+    static String readKey(ByteBuffer buf) {
+        int length = buf.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a map of database statistics.
+     */
+    public synchronized Map getStatistics() {
+        HashMap stats = new HashMap();
+        stats.put("nodes", Integer.valueOf(index.size()));
+        stats.put("size", Long.valueOf(end));
+        stats.put("obsolete", Long.valueOf(obsolete));
+        stats.put("commits", Long.valueOf(commits));
+        stats.put("syncs", Long.valueOf(syncs));
+        stats.put("compactions", Long.valueOf(compactions));
+        return stats;
+    }
+
+    /**
+     * Returns a string representation of this database
+     */
+    public String toString() {
+        return "LogDatabase[" + file + "]";
+    }
+
+    class LogTransaction implements ITransaction {
+
+        ArrayList operations = new ArrayList();
+
+        /**
+         * Complete the transaction by making its changes persistent.
+         */
+        public void commit() throws DatabaseException {
+            try {
+                LogDatabase.this.commit(operations);
+            } finally {
+                operations.clear();
+            }
+        }
+
+        /**
+         * Rollback the transaction, forgetting the changed items
+         */
+        public void abort() throws DatabaseException {
+            operations.clear();
+        }
+
+        /**
+         * Adds a resource to the list of resources encompassed by this transaction
+         *
+         * @param res the resource to add
+         * @param status the status of the resource (ADDED|UPDATED|DELETED)
+         */
+        public void addResource(Object res, int status)
+               throws DatabaseException {
+            operations.add(res);
+        }
+    }
+
+    /**
+     * A node written or deleted by a transaction
+     */
+    static class Operation {
+        final byte type;
+        final String key;
+        final byte[] data;
+
+        Operation(byte type, String key, byte[] data) {
+            this.type = type;
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The operations of a transaction encoded as log record, along with the
+     * positions of the nodes within the record.
+     */
+    static class Batch {
+        final byte[] record;
+        final long id;
+        final String[] keys;
+        // offsets of the nodes within the record, -1 for deleted nodes
+        final long[] offsets;
+        final int[] lengths;
+
+        // set when the batch has been written
+        boolean done = false;
+        IOException error;
+
+        Batch(ArrayList operations, long id) throws IOException {
+            this.id = id;
+            int count = operations.size();
+            keys = new String[count];
+            offsets = new long[count];
+            lengths = new int[count];
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            // placeholder for length and checksum
+            out.writeLong(0);
+            out.writeInt(id > -1 ? count + 1 : count);
+            if (id > -1) {
+                out.writeByte(IDGEN);
+                out.writeLong(id);
+            }
+            for (int i = 0; i < count; i++) {
+                Operation op = (Operation) operations.get(i);
+                byte[] key = op.key.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(op.type);
+                out.writeShort(key.length);
+                out.write(key);
+                keys[i] = op.key;
+                if (op.type == PUT) {
+                    out.writeInt(op.data.length);
+                    offsets[i] = out.size();
+                    lengths[i] = op.data.length;
+                    out.write(op.data);
+                } else {
+                    offsets[i] = -1;
+                }
+            }
+            out.flush();
+
+            record = bytes.toByteArray();
+            int length = record.length - RECORD_HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            crc.update(record, RECORD_HEADER_SIZE, length);
+            ByteBuffer.wrap(record).putInt(0, length).putInt(4, (int) crc.getValue());
+        }
+    }
+
+    /**
+     * The position and length of a node within the log
+     */
+    static final class Location {
+        final long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * An open log file and its memory mapping. Files up to 2 GB are mapped
+     * as a whole, larger files are read with positional reads. Data appended
+     * after the file was mapped is also read with positional reads, until it
+     * has grown enough to be worth a new mapping of the whole file.
+     */
+    static final class LogFile {
+        // minimal growth of the file before it is mapped again, in bytes
+        // and as a share of the current mapping
+        static final long REMAP_MIN_GROWTH = 16 * 1024 * 1024;
+        static final int REMAP_GROWTH_DIVISOR = 8;
+
+        final FileChannel channel;
+        private volatile MappedByteBuffer mapped;
+
+        LogFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        byte[] read(Location location) throws IOException {
+            byte[] data = new byte[location.length];
+            ByteBuffer buf = mapped;
+            if (buf == null || location.offset + location.length > buf.limit()) {
+                buf = remap(location.offset + location.length);
+            }
+            if (buf != null) {
+                ByteBuffer dup = buf.duplicate();
+                dup.position((int) location.offset);
+                dup.get(data);
+            } else {
+                ByteBuffer dst = ByteBuffer.wrap(data);
+                long pos = location.offset;
+                while (dst.hasRemaining()) {
+                    int read = channel.read(dst, pos);
+                    if (read < 0) {
+                        throw new EOFException("Unexpected end of log");
+                    }
+                    pos += read;
+                }
+            }
+            return data;
+        }
+
+        private synchronized MappedByteBuffer remap(long required) throws IOException {
+            if (mapped != null && required <= mapped.limit()) {
+                return mapped;
+            }
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE || required > size) {
+                return null;
+            }
+            if (mapped != null && size - mapped.limit() <
+                    Math.max(REMAP_MIN_GROWTH, mapped.limit() / REMAP_GROWTH_DIVISOR)) {
+                // read the recently appended data with positional reads
+                return null;
+            }
+            // the mapping stays valid until it is garbage collected
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mapped;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.logdb;
+
+import helma.framework.core.Application;
+import helma.objectmodel.INode;
+import helma.objectmodel.IProperty;
+import helma.objectmodel.db.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+
+/**
+ * The binary encoding of embedded nodes stored by the LogDatabase. A node is
+ * stored with the same information as in the XML database: its id, name,
+ * prototype and timestamps, the references to its parent and child nodes,
+ * and its properties except for internal ones starting with an underscore
+ * and Java objects.
+ */
+final class NodeCodec {
+
+    static final int VERSION = 1;
+
+    private NodeCodec() {
+    }
+
+    /**
+     * Encode a node. If resolve is true, the parent and referenced nodes are
+     * retrieved through the node manager, just like the XML database does
+     * when writing a node. Otherwise the node handles stored in the node are
+     * written as they are, which is used to migrate nodes that have just been
+     * read from another database.
+     *
+     * @param node the node
+     * @param resolve whether to retrieve referenced nodes
+     * @return the encoded node
+     * @throws IOException if the node can't be encoded
+     */
+    static byte[] encode(Node node, boolean resolve) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(VERSION);
+        writeString(out, node.getID());
+        writeString(out, node.getName());
+        writeString(out, getPrototype(node));
+        out.writeLong(node.created());
+        out.writeLong(node.lastModified());
+
+        if (resolve) {
+            writeReference(out, node.getParent());
+        } else {
+            writeReference(out, node.getParentHandle());
+        }
+
+        writeProperties(out, node, resolve);
+        writeChildren(out, node, resolve);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeProperties(DataOutputStream out, Node node, boolean resolve)
+            throws IOException {
+        // only explicitly stored properties are written, as in the XML database
+        PropertyMap props = node.getPropertyMap();
+        if (props == null) {
+            out.writeInt(0);
+            return;
+        }
+
+        ArrayList list = new ArrayList();
+        for (Enumeration e = props.keys(); e.hasMoreElements();) {
+            String key = (String) e.nextElement();
+            if (key.charAt(0) == '_') {
+                continue;
+            }
+            Property prop = (Property) node.get(key);
+            if (prop == null || prop.getType() == IProperty.JAVAOBJECT) {
+                continue;
+            }
+            if (prop.getType() == IProperty.DATE && prop.getDateValue() == null) {
+                continue;
+            }
+            if (prop.getType() == IProperty.NODE &&
+                    (resolve ? prop.getNodeValue() == null : prop.getNodeHandle() == null)) {
+                continue;
+            }
+            list.add(key);
+            list.add(prop);
+        }
+
+        out.writeInt(list.size() / 2);
+        for (int i = 0; i < list.size(); i += 2) {
+            Property prop = (Property) list.get(i + 1);
+            int type = prop.getType();
+            writeString(out, (String) list.get(i));
+            out.writeByte(type);
+            switch (type) {
+                case IProperty.BOOLEAN:
+                    out.writeBoolean(prop.getBooleanValue());
+                    break;
+                case IProperty.DATE:
+                    out.writeLong(prop.getDateValue().getTime());
+                    break;
+                case IProperty.INTEGER:
+                    out.writeLong(prop.getIntegerValue());
+                    break;
+                case IProperty.FLOAT:
+                    out.writeDouble(prop.getFloatValue());
+                    break;
+                case IProperty.NODE:
+                    if (resolve) {
+                        writeReference(out, prop.getNodeValue());
+                    } else {
+                        writeReference(out, prop.getNodeHandle());
+                    }
+                    break;
+                default:
+                    writeString(out, prop.getStringValue());
+            }
+        }
+    }
+
+    private static void writeChildren(DataOutputStream out, Node node, boolean resolve)
+            throws IOException {
+        DbMapping smap = (node.getDbMapping() == null) ?
+                null : node.getDbMapping().getSubnodeMapping();
+        // relational child nodes are stored with their own table
+        if (smap != null && smap.isRelational()) {
+            out.writeInt(0);
+            return;
+        }
+
+        if (resolve) {
+            ArrayList list = new ArrayList();
+            for (Enumeration e = node.getSubnodes(); e.hasMoreElements();) {
+                Object child = e.nextElement();
+                if (child != null) {
+                    list.add(child);
+                }
+            }
+            out.writeInt(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                writeReference(out, (INode) list.get(i));
+            }
+        } else {
+            SubnodeList subnodes = node.getSubnodeList();
+            int size = subnodes == null ? 0 : subnodes.size();
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                writeReference(out, subnodes.get(i));
+            }
+        }
+    }
+
+    private static void writeReference(DataOutputStream out, INode node) throws IOException {
+        out.writeBoolean(node != null);
+        if (node != null) {
+            writeString(out, node.getID());
+            writeString(out, getPrototype(node));
+        }
+    }
+
+    private static void writeReference(DataOutputStream out, NodeHandle handle)
+            throws IOException {
+        out.writeBoolean(handle != null);
+        if (handle != null) {
+            Key key = handle.getKey();
+            writeString(out, key.getID());
+            writeString(out, key.getStorageName());
+        }
+    }
+
+    /**
+     * Decode a node.
+     *
+     * @param data the encoded node
+     * @param nmgr the node manager
+     * @param app the application
+     * @return the node
+     * @throws IOException if the data is not a valid encoded node
+     */
+    static Node decode(byte[] data, NodeManager nmgr, Application app) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported node encoding version " + version);
+        }
+        String id = readString(in);
+        String name = readString(in);
+        String prototype = readString(in);
+        if (prototype == null || "".equals(prototype)) {
+            prototype = "hopobject";
+        }
+        long created = in.readLong();
+        long lastModified = in.readLong();
+
+        Node node = new Node(name, id, prototype, nmgr.safe, created, lastModified);
+
+        NodeHandle parent = readReference(in, nmgr);
+        if (parent != null) {
+            node.setParentHandle(parent);
+        }
+
+        int count = in.readInt();
+        if (count > 0) {
+            PropertyMap propMap = new PropertyMap();
+            node.setPropertyMap(propMap);
+            for (int i = 0; i < count; i++) {
+                String propName = readString(in);
+                Property prop = new Property(propName, node);
+                int type = in.readUnsignedByte();
+                switch (type) {
+                    case IProperty.BOOLEAN:
+                        prop.setBooleanValue(in.readBoolean());
+                        break;
+                    case IProperty.DATE:
+                        prop.setDateValue(new Date(in.readLong()));
+                        break;
+                    case IProperty.INTEGER:
+                        prop.setIntegerValue(in.readLong());
+                        break;
+                    case IProperty.FLOAT:
+                        prop.setFloatValue(in.readDouble());
+                        break;
+                    case IProperty.NODE:
+                        prop.setNodeHandle(readReference(in, nmgr));
+                        break;
+                    case IProperty.STRING:
+                        prop.setStringValue(readString(in));
+                        break;
+                    default:
+                        throw new IOException("Invalid property type " + type + " in node " + id);
+                }
+                propMap.put(app.correctPropertyName(propName), prop);
+            }
+        }
+
+        count = in.readInt();
+        if (count > 0) {
+            SubnodeList subnodes = node.createSubnodeList();
+            for (int i = 0; i < count; i++) {
+                subnodes.add(readReference(in, nmgr));
+            }
+        }
+
+        return node;
+    }
+
+    private static NodeHandle readReference(DataInputStream in, NodeManager nmgr)
+            throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String id = readString(in);
+        String prototype = readString(in);
+        DbMapping dbmap = prototype == null ? null : nmgr.getDbMapping(prototype);
+        return new NodeHandle(new DbKey(dbmap, id));
+    }
+
+    /**
+     * retrieve prototype-string of a node, defaults to "hopobject"
+     */
+    private static String getPrototype(INode node) {
+        if ((node.getPrototype() == null) || "".equals(node.getPrototype())) {
+            return "hopobject";
+        } else {
+            return node.getPrototype();
+        }
+    }
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
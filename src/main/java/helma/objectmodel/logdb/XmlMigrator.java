@@ -0,0 +1,104 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.logdb;
+
+import helma.objectmodel.ObjectNotFoundException;
+import helma.objectmodel.db.Node;
+import helma.objectmodel.dom.XmlDatabaseReader;
+import helma.objectmodel.dom.XmlIDGenerator;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+
+/**
+ * Copies the nodes and the id generator of an XML database into a new
+ * LogDatabase. The migration runs once, when the log database is first
+ * opened in a directory containing an XML database. The XML files are
+ * left in place but are no longer used afterwards.
+ */
+final class XmlMigrator {
+
+    // number of nodes written per log record
+    static final int BATCH_SIZE = 1000;
+
+    private XmlMigrator() {
+    }
+
+    /**
+     * Check if a directory contains an XML database.
+     *
+     * @param dir the database directory
+     * @return true if the directory contains an XML database
+     */
+    static boolean hasXmlDatabase(File dir) {
+        return new File(dir, "idgen.xml").exists() || new File(dir, "0.xml").exists();
+    }
+
+    /**
+     * Migrate the XML database in a directory to a log database.
+     *
+     * @param db the log database, which must be empty
+     * @param dir the XML database directory
+     * @return the number of migrated nodes
+     * @throws Exception if a node can't be read or written
+     */
+    static int migrate(LogDatabase db, File dir) throws Exception {
+        long start = System.currentTimeMillis();
+        db.app.logEvent("Migrating XML database in " + dir + " to " + db.file);
+
+        try {
+            XmlIDGenerator idgen = XmlIDGenerator.getIDGenerator(new File(dir, "idgen.xml"));
+            db.raiseID(idgen.getValue());
+        } catch (ObjectNotFoundException notfound) {
+            // no id generator, ids are checked below
+        }
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(".xml") && !"idgen.xml".equals(name);
+            }
+        });
+
+        ArrayList operations = new ArrayList();
+        int count = 0;
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            String key = name.substring(0, name.length() - 4);
+            // the reader keeps state from the previous file, so use a new one
+            Node node = new XmlDatabaseReader(db.nmgr).read(files[i]);
+            operations.add(new LogDatabase.Operation(LogDatabase.PUT, key,
+                    NodeCodec.encode(node, false)));
+            try {
+                db.raiseID(Long.parseLong(key));
+            } catch (NumberFormatException ignore) {
+                // not a generated id
+            }
+            if (operations.size() >= BATCH_SIZE) {
+                db.commit(operations);
+                operations.clear();
+            }
+            count += 1;
+        }
+        db.commit(operations);
+
+        db.app.logEvent("Migrated " + count + " nodes to " + db.file + " in " +
+                (System.currentTimeMillis() - start) + " millis. The XML files in " +
+                dir + " are no longer used and may be removed.");
+        return count;
+    }
+}
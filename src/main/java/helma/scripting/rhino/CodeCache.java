@@ -0,0 +1,248 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.scripting.rhino;
+
+import helma.framework.core.Application;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * A cache for compiled scripts. Scripts are compiled to Java classes, which are
+ * kept in memory and stored in a directory, so unchanged code doesn't have to
+ * be compiled again when a prototype is reevaluated or the application is
+ * restarted. Cache entries are keyed by the source name, optimization level
+ * and language version, and are only used if the checksum of the source
+ * code matches the one of the cached classes.
+ *
+ * Compiling to classes requires an optimization level of 0 or higher, so
+ * the cache is not used in interpreted mode.
+ */
+final class CodeCache {
+
+    static final int MAGIC = 0x48434331;
+
+    final Application app;
+    final File dir;
+
+    // in-memory cache of loaded scripts by key
+    final HashMap scripts = new HashMap();
+
+    // statistics
+    private volatile long hits = 0;
+    private volatile long diskHits = 0;
+    private volatile long misses = 0;
+
+    /**
+     * Create a code cache storing compiled classes in the given directory.
+     *
+     * @param app the application
+     * @param dir the cache directory
+     */
+    CodeCache(Application app, File dir) {
+        this.app = app;
+        this.dir = dir;
+    }
+
+    /**
+     * Get a compiled script for the given source, compiling it if it isn't
+     * cached or the cached version doesn't match the source.
+     *
+     * @param cx the current context
+     * @param id the name of the resource the source is generated from, used as cache key
+     * @param source the source code
+     * @param sourceName the name of the source
+     * @param lineno the starting line number
+     * @return the compiled script
+     */
+    Script getScript(Context cx, String id, String source, String sourceName, int lineno) {
+        String key = getKey(cx, id, lineno);
+        String checksum = digest(source);
+
+        synchronized (this) {
+            Entry entry = (Entry) scripts.get(key);
+            if (entry != null && entry.checksum.equals(checksum)) {
+                hits += 1;
+                return entry.script;
+            }
+        }
+
+        File file = new File(dir, key + ".class");
+        Object[] classes = read(file, checksum);
+        if (classes != null) {
+            diskHits += 1;
+        } else {
+            misses += 1;
+            CompilerEnvirons env = new CompilerEnvirons();
+            env.initFromContext(cx);
+            ClassCompiler compiler = new ClassCompiler(env);
+            classes = compiler.compileToClassFiles(source, sourceName, lineno,
+                    "helma.codecache.Script" + key);
+            write(file, checksum, classes);
+        }
+
+        Script script = load(cx, classes);
+        synchronized (this) {
+            scripts.put(key, new Entry(checksum, script));
+        }
+        return script;
+    }
+
+    /**
+     * Drop all scripts held in memory.
+     */
+    synchronized void clear() {
+        scripts.clear();
+    }
+
+    /**
+     * Returns a string describing the cache statistics.
+     */
+    public String toString() {
+        return "CodeCache[" + dir + ", hits: " + hits + ", disk hits: " + diskHits +
+                ", misses: " + misses + "]";
+    }
+
+    private String getKey(Context cx, String id, int lineno) {
+        StringBuffer buffer = new StringBuffer(id)
+                .append('\n').append(lineno)
+                .append('\n').append(cx.getOptimizationLevel())
+                .append('\n').append(cx.getLanguageVersion())
+                .append('\n').append(cx.getImplementationVersion());
+        return digest(buffer.toString());
+    }
+
+    private Script load(Context cx, Object[] classes) {
+        GeneratedClassLoader loader = cx.createClassLoader(cx.getApplicationClassLoader());
+        Class main = null;
+        for (int i = 0; i < classes.length; i += 2) {
+            Class c = loader.defineClass((String) classes[i], (byte[]) classes[i + 1]);
+            if (main == null) {
+                main = c;
+            }
+        }
+        loader.linkClass(main);
+        try {
+            return (Script) main.getDeclaredConstructor().newInstance();
+        } catch (Exception x) {
+            throw new RuntimeException("Error instantiating compiled script", x);
+        }
+    }
+
+    private Object[] read(File file, String checksum) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || !checksum.equals(in.readUTF())) {
+                return null;
+            }
+            Object[] classes = new Object[in.readInt() * 2];
+            for (int i = 0; i < classes.length; i += 2) {
+                classes[i] = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes[i + 1] = bytes;
+            }
+            return classes;
+        } catch (IOException iox) {
+            app.logEvent("Discarding unreadable code cache file " + file + ": " + iox);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void write(File file, String checksum, Object[] classes) {
+        File tmp = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Can't create directory " + dir);
+            }
+            tmp = File.createTempFile("code", ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(checksum);
+                out.writeInt(classes.length / 2);
+                for (int i = 0; i < classes.length; i += 2) {
+                    byte[] bytes = (byte[]) classes[i + 1];
+                    out.writeUTF((String) classes[i]);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException iox) {
+            app.logError("Error writing code cache file " + file, iox);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    static String digest(String str) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(str.getBytes(StandardCharsets.UTF_8));
+            StringBuffer buffer = new StringBuffer(hash.length * 2);
+            for (int i = 0; i < hash.length; i++) {
+                int b = hash[i] & 0xff;
+                if (b < 0x10) {
+                    buffer.append('0');
+                }
+                buffer.append(Integer.toHexString(b));
+            }
+            return buffer.toString();
+        } catch (NoSuchAlgorithmException nsa) {
+            throw new RuntimeException(nsa);
+        }
+    }
+
+    static class Entry {
+        final String checksum;
+        final Script script;
+
+        Entry(String checksum, Script script) {
+            this.checksum = checksum;
+            this.script = script;
+        }
+    }
+}
@@ -35,6 +35,9 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
 
     private static final long serialVersionUID = 1329862822101428427L;
 
+    // default batch size for iterate() and stream()
+    static final int DEFAULT_BATCH_SIZE = 100;
+
     String className;
     final NodeProxy proxy;
     final RhinoCore core;
@@ -525,6 +528,53 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
         return Context.getCurrentContext().newArray(core.global, array);
     }
 
+    /**
+     *  Return an iterator over the child objects that loads them in batches
+     *  of the given size, so the collection is never held in memory as a whole.
+     *
+     * @param batchSizeArg the number of objects per batch, defaults to 100
+     * @return a NodeIterator
+     */
+    public Scriptable jsFunction_iterate(Object batchSizeArg) {
+        int batchSize = batchSizeArg == Undefined.instance || batchSizeArg == null ?
+                DEFAULT_BATCH_SIZE : (int) ScriptRuntime.toNumber(batchSizeArg);
+        return iterate(batchSize);
+    }
+
+    /**
+     *  Return an iterator over the child objects that loads them in batches.
+     *  The options object may contain a batchSize property.
+     *
+     * @param options the options object, or the batch size
+     * @return a NodeIterator
+     */
+    public Scriptable jsFunction_stream(Object options) {
+        int batchSize = DEFAULT_BATCH_SIZE;
+        if (options instanceof Number) {
+            batchSize = ((Number) options).intValue();
+        } else if (options instanceof Scriptable) {
+            Object size = ScriptableObject.getProperty((Scriptable) options, "batchSize");
+            if (size != Scriptable.NOT_FOUND && size != Undefined.instance && size != null) {
+                batchSize = (int) ScriptRuntime.toNumber(size);
+            }
+        }
+        return iterate(batchSize);
+    }
+
+    private Scriptable iterate(int batchSize) {
+        if (batchSize <= 0) {
+            throw new EvaluatorException("Batch size must be positive in HopObject.iterate()");
+        }
+        NodeCursor cursor = null;
+        if (proxy != null) {
+            INode node = getNode();
+            if (node instanceof Node) {
+                cursor = ((Node) node).getChildCursor(batchSize);
+            }
+        }
+        return new NodeIterator(cursor, core);
+    }
+
     /**
      *
      *
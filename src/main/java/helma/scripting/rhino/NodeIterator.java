@@ -0,0 +1,147 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.scripting.rhino;
+
+import helma.objectmodel.db.Node;
+import helma.objectmodel.db.NodeCursor;
+import org.mozilla.javascript.*;
+
+import java.util.List;
+
+/**
+ * This class wraps around a helma.objectmodel.db.NodeCursor and exposes it
+ * to the JavaScript runtime as returned by HopObject.stream() and
+ * HopObject.iterate(). Child objects are loaded one batch at a time, so
+ * scripts can walk through collections too large to be listed as an array:
+ *
+ * <pre>
+ * var it = this.iterate(500);
+ * while (it.hasNext()) {
+ *     var child = it.next();
+ * }
+ * this.stream({batchSize: 500}).forEach(function(child) { ... });
+ * </pre>
+ *
+ * @see helma.objectmodel.db.NodeCursor
+ */
+public class NodeIterator extends ScriptableObject {
+
+    private static final long serialVersionUID = -2316738145418391876L;
+
+    NodeCursor cursor;
+    RhinoCore core;
+
+    // the current batch and the position within it
+    private List batch;
+    private int index;
+
+    /**
+     * Zero arg constructor for creating the NodeIterator prototype.
+     */
+    public NodeIterator(RhinoCore core) throws RhinoException {
+        this.core = core;
+
+        // initialize functions
+        setParentScope(core.getScope());
+        setPrototype(null);
+        defineFunctionProperties(new String[] {"hasNext", "next", "nextBatch", "forEach"},
+                                 NodeIterator.class, DONTENUM | PERMANENT);
+    }
+
+    /**
+     * Creates a new NodeIterator around a NodeCursor.
+     */
+    NodeIterator(NodeCursor cursor, RhinoCore core) {
+        this.cursor = cursor;
+        this.core = core;
+        setParentScope(core.getScope());
+        setPrototype(core.nodeIteratorProto);
+    }
+
+    /**
+     * Checks if there are more objects to iterate.
+     */
+    public boolean hasNext() {
+        if (cursor == null) {
+            return false;
+        }
+        while ((batch == null || index >= batch.size()) && !cursor.isExhausted()) {
+            batch = cursor.nextBatch();
+            index = 0;
+        }
+        return batch != null && index < batch.size();
+    }
+
+    /**
+     * Returns the next object, or null if there are no more objects.
+     */
+    public Object next() {
+        if (!hasNext()) {
+            return null;
+        }
+        return core.getNodeWrapper((Node) batch.get(index++));
+    }
+
+    /**
+     * Returns the remaining objects of the current batch, or the next batch,
+     * as array. An empty array is returned when there are no more objects.
+     */
+    public Scriptable nextBatch() {
+        Object[] array = new Object[0];
+        if (hasNext()) {
+            array = new Object[batch.size() - index];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = core.getNodeWrapper((Node) batch.get(index++));
+            }
+        }
+        return Context.getCurrentContext().newArray(core.getScope(), array);
+    }
+
+    /**
+     * Invokes a function for each remaining object. Iteration stops
+     * if the function returns false.
+     *
+     * @param fn the function
+     * @return the number of objects passed to the function
+     */
+    public int forEach(Object fn) {
+        if (!(fn instanceof Function)) {
+            throw new EvaluatorException("Argument to forEach() must be a function");
+        }
+        Function func = (Function) fn;
+        Context cx = Context.getCurrentContext();
+        Scriptable scope = core.getScope();
+        int count = 0;
+        while (hasNext()) {
+            Object obj = next();
+            count += 1;
+            Object result = func.call(cx, scope, scope, new Object[] {obj});
+            if (Boolean.FALSE.equals(result)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    public String getClassName() {
+        return "[NodeIterator]";
+    }
+
+    public String toString() {
+        return "[NodeIterator]";
+    }
+}
@@ -37,6 +37,7 @@ import org.mozilla.javascript.LazilyLoadedCtor;
 import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeJavaObject;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.ScriptRuntime;
@@ -51,6 +52,9 @@ import java.io.*;
 import java.net.URI;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.lang.ref.WeakReference;
 
 /**
@@ -84,12 +88,21 @@ public final class RhinoCore implements ScopeProvider {
     // the prototype for path objects
     PathWrapper pathProto;
 
+    // the prototype for child object iterators
+    NodeIterator nodeIteratorProto;
+
     // Any error that may have been found in global code
     String globalError;
 
     // the debugger, if active
     HelmaDebugger debugger = null;
 
+    // the compiled script cache, if enabled
+    CodeCache codeCache = null;
+
+    // scripts compiled in parallel at startup, by resource
+    private Map precompiled = null;
+
     // optimization level for rhino engine, ranges from -1 to 9
     int optLevel = 0;
 
@@ -122,6 +135,7 @@ public final class RhinoCore implements ScopeProvider {
      *  necessary to bootstrap the rest is parsed.
      */
     protected synchronized void initialize() {
+        long start = System.currentTimeMillis();
 
         hasDebugger = "true".equalsIgnoreCase(app.getProperty("rhino.debug"));
         hasTracer = "true".equalsIgnoreCase(app.getProperty("rhino.trace"));
@@ -148,6 +162,17 @@ public final class RhinoCore implements ScopeProvider {
                 app.logError("Invalid rhino.languageVersion: " + v);
             }
         }
+        // compiled scripts can only be cached if we compile to Java classes
+        if (optLevel >= 0 && "true".equalsIgnoreCase(app.getProperty("rhino.codeCache"))) {
+            String dir = app.getProperty("rhino.codeCacheDir");
+            File cacheDir = dir == null ?
+                    new File(app.getDbDir(), "codecache") : new File(dir);
+            if (dir != null && !cacheDir.isAbsolute()) {
+                cacheDir = new File(app.getServerDir(), dir);
+            }
+            codeCache = new CodeCache(app, cacheDir);
+        }
+
         wrapper = new WrapMaker();
         wrapper.setJavaPrimitiveWrap(false);
 
@@ -185,6 +210,7 @@ public final class RhinoCore implements ScopeProvider {
                 .install(global);
 
             pathProto = new PathWrapper(this);
+            nodeIteratorProto = new NodeIterator(this);
 
             hopObjectProto =  HopObject.init(this);
             // use lazy loaded constructors for all extension objects that
@@ -215,11 +241,21 @@ public final class RhinoCore implements ScopeProvider {
                 Prototype proto = (Prototype) i.next();
                 initPrototype(proto);
             }
+            app.logEvent("Initialized scripting environment with " + protos.size() +
+                    " prototypes in " + (System.currentTimeMillis() - start) + " millis");
 
-            // always fully initialize global prototype, because
-            // we always need it and there's no chance to trigger
-            // creation on demand.
-            getPrototype("global");
+            if ("true".equalsIgnoreCase(app.getProperty("rhino.parallelStartup"))) {
+                // compile all prototypes up front instead of on demand
+                compilePrototypes();
+            } else {
+                // always fully initialize global prototype, because
+                // we always need it and there's no chance to trigger
+                // creation on demand.
+                long globalStart = System.currentTimeMillis();
+                getPrototype("global");
+                app.logEvent("Evaluated global prototype in " +
+                        (System.currentTimeMillis() - globalStart) + " millis");
+            }
 
         } catch (Exception e) {
             app.logError("Cannot initialize interpreter", e);
@@ -894,29 +930,23 @@ public final class RhinoCore implements ScopeProvider {
     ////////////////////////////////////////////////
     private synchronized void evaluate(Context cx, TypeInfo type, Resource code) {
         String sourceName = code.getName();
-        Reader reader = null;
 
         Resource previousCurrentResource = app.getCurrentCodeResource();
         app.setCurrentCodeResource(code);
 
-        String encoding = app.getProperty("sourceCharset");
-
         try {
             Scriptable op = type.objProto;
+            // use the scripts compiled at startup if the resource hasn't changed since
+            Script[] scripts = null;
+            Precompiled pre = precompiled == null ? null : (Precompiled) precompiled.remove(code);
+            if (pre != null && pre.lastModified == code.lastModified()) {
+                scripts = pre.scripts;
+            } else {
+                scripts = compile(cx, code);
+            }
             // do the update, evaluating the file
-            if (sourceName.endsWith(".js")) {
-                reader = encoding == null ?
-                        new InputStreamReader(code.getInputStream()) :
-                        new InputStreamReader(code.getInputStream(), encoding);
-                cx.evaluateReader(op, reader, sourceName, 1, null);
-            } else if (sourceName.endsWith(".hac")) {
-                reader = new StringReader(HacHspConverter.convertHac(code, encoding));
-                cx.evaluateReader(op, reader, sourceName, 0, null);
-            } else if (sourceName.endsWith(".hsp")) {
-                reader = new StringReader(HacHspConverter.convertHsp(code, encoding));
-                cx.evaluateReader(op, reader, sourceName, 0, null);
-                reader = new StringReader(HacHspConverter.convertHspAsString(code, encoding));
-                cx.evaluateReader(op, reader, sourceName, 0, null);
+            for (int i = 0; i < scripts.length; i++) {
+                scripts[i].exec(cx, op);
             }
 
         } catch (Exception e) {
@@ -935,14 +965,140 @@ public final class RhinoCore implements ScopeProvider {
             }
         } finally {
             app.setCurrentCodeResource(previousCurrentResource);
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException ignore) {
-                    // shouldn't happen
-                }
+        }
+    }
+
+    /**
+     * Compile a code resource. This doesn't touch any scope, so it
+     * may be called concurrently for different resources.
+     *
+     * @param cx the current context
+     * @param code the code resource
+     * @return the compiled scripts, in the order they need to be executed
+     */
+    private Script[] compile(Context cx, Resource code) throws IOException {
+        String sourceName = code.getName();
+        String encoding = app.getProperty("sourceCharset");
+
+        if (sourceName.endsWith(".js")) {
+            if (codeCache != null) {
+                return new Script[] {
+                    compileString(cx, sourceName, code.getContent(encoding), sourceName, 1)
+                };
+            }
+            Reader reader = encoding == null ?
+                    new InputStreamReader(code.getInputStream()) :
+                    new InputStreamReader(code.getInputStream(), encoding);
+            try {
+                return new Script[] {cx.compileReader(reader, sourceName, 1, null)};
+            } finally {
+                reader.close();
             }
+        } else if (sourceName.endsWith(".hac")) {
+            return new Script[] {
+                compileString(cx, sourceName,
+                        HacHspConverter.convertHac(code, encoding), sourceName, 0)
+            };
+        } else if (sourceName.endsWith(".hsp")) {
+            return new Script[] {
+                compileString(cx, sourceName,
+                        HacHspConverter.convertHsp(code, encoding), sourceName, 0),
+                compileString(cx, sourceName + "#string",
+                        HacHspConverter.convertHspAsString(code, encoding), sourceName, 0)
+            };
+        }
+        return new Script[0];
+    }
+
+    /**
+     * Compile a script, using the compiled script cache if enabled.
+     *
+     * @param cx the current context
+     * @param id the id of the script in the cache
+     * @param source the source code
+     * @param sourceName the source name
+     * @param lineno the starting line number
+     * @return the compiled script
+     */
+    private Script compileString(Context cx, String id, String source,
+                                 String sourceName, int lineno) {
+        if (codeCache != null) {
+            return codeCache.getScript(cx, id, source, sourceName, lineno);
         }
+        return cx.compileString(source, sourceName, lineno, null);
+    }
+
+    /**
+     * Compile the code resources of all prototypes on a fork-join pool and
+     * then evaluate the prototypes, parents before their descendants. Used
+     * at startup if the rhino.parallelStartup app property is true.
+     */
+    private void compilePrototypes() {
+        Collection protos = app.getPrototypes();
+        final ArrayList resources = new ArrayList();
+        for (Iterator i = protos.iterator(); i.hasNext();) {
+            Prototype proto = (Prototype) i.next();
+            proto.checkForUpdates();
+            for (Iterator code = proto.getCodeResources(); code.hasNext();) {
+                resources.add(code.next());
+            }
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        String t = app.getProperty("rhino.compileThreads");
+        if (t != null) {
+            try {
+                threads = Math.max(1, Integer.parseInt(t));
+            } catch (NumberFormatException x) {
+                app.logError("Invalid rhino.compileThreads: " + t);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        final Map compiled = new ConcurrentHashMap();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ArrayList tasks = new ArrayList(resources.size());
+            for (int i = 0; i < resources.size(); i++) {
+                final Resource code = (Resource) resources.get(i);
+                tasks.add(new Callable() {
+                    public Object call() {
+                        return contextFactory.call(new ContextAction() {
+                            public Object run(Context cx) {
+                                try {
+                                    long lastModified = code.lastModified();
+                                    compiled.put(code, new Precompiled(lastModified, compile(cx, code)));
+                                } catch (Exception x) {
+                                    // reported when the prototype is evaluated
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                });
+            }
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+        long compileTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        precompiled = compiled;
+        try {
+            getPrototypeInfo("global");
+            for (Iterator i = protos.iterator(); i.hasNext();) {
+                getPrototypeInfo(((Prototype) i.next()).getName());
+            }
+        } finally {
+            precompiled = null;
+        }
+        long evalTime = System.currentTimeMillis() - start;
+
+        app.logEvent("Compiled " + compiled.size() + " of " + resources.size() +
+                " code resources in " + compileTime + " millis using " + threads +
+                " threads, evaluated " + protos.size() + " prototypes in " +
+                evalTime + " millis");
     }
 
     /**
@@ -952,6 +1108,19 @@ public final class RhinoCore implements ScopeProvider {
         return global;
     }
 
+    /**
+     *  The scripts compiled from a code resource at startup.
+     */
+    static class Precompiled {
+        final long lastModified;
+        final Script[] scripts;
+
+        Precompiled(long lastModified, Script[] scripts) {
+            this.lastModified = lastModified;
+            this.scripts = scripts;
+        }
+    }
+
     /**
      *  TypeInfo helper class
      */
@@ -264,6 +264,19 @@ public abstract class AbstractServletClient extends HttpServlet {
                 }
             }
 
+            // allow the application to stream the response via res.stream()
+            final String streamCookieDomain = resCookieDomain;
+            reqtrans.setStreamHandler(new ResponseTrans.StreamHandler() {
+                public OutputStream startStream(ResponseTrans res) throws IOException {
+                    addCookies(response, res, streamCookieDomain);
+                    writeHeaders(request, response, res);
+                    response.setContentType(res.getContentType());
+                    response.flushBuffer();
+                    return "HEAD".equalsIgnoreCase(request.getMethod()) ?
+                            null : response.getOutputStream();
+                }
+            });
+
             ResponseTrans restrans = getApplication().execute(reqtrans);
 
             // delete uploads if any
@@ -280,21 +293,19 @@ public abstract class AbstractServletClient extends HttpServlet {
             }
 
             // set cookies
-            if (restrans.countCookies() > 0) {
-                CookieTrans[] resCookies = restrans.getCookies();
-
-                for (int i = 0; i < resCookies.length; i++)
-                    try {
-                        Cookie c = resCookies[i].getCookie("/", resCookieDomain);
-
-                        response.addCookie(c);
-                    } catch (Exception x) {
-                        getApplication().logEvent("Error adding cookie: " + x);
-                    }
-            }
+            addCookies(response, restrans, resCookieDomain);
 
             // write response
             writeResponse(request, response, reqtrans, restrans);
+        } catch (ServiceUnavailableException busy) {
+            log("Request rejected: " + busy.getMessage());
+            try {
+                sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                          "The server is currently too busy to process your request. " +
+                          "Please check back later.", busy.getRetryAfter());
+            } catch (IOException iox) {
+                log("Exception in sendError", iox);
+            }
         } catch (Exception x) {
             log("Exception in execute", x);
             try {
@@ -320,47 +331,33 @@ public abstract class AbstractServletClient extends HttpServlet {
             return;
         }
 
-        if (hopres.getETag() != null) {
-            res.setHeader("ETag", hopres.getETag());
-        }
-
         if (hopres.getRedirect() != null) {
+            setETag(res, hopres.getETag(), false);
             sendRedirect(req, res, hopres.getRedirect(), hopres.getStatus());
         } else if (hopres.getNotModified()) {
+            setETag(res, hopres.getETag(), false);
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
         } else {
-            if (!hopres.isCacheable() || !caching) {
-                // Disable caching of response.
-                if (isOneDotOne(req.getProtocol())) {
-                    // for HTTP 1.1
-                    res.setHeader("Cache-Control",
-                                  "no-cache, no-store, must-revalidate, max-age=0");
-                } else {
-                    // for HTTP 1.0
-                    res.setDateHeader("Expires", System.currentTimeMillis() - 10000);
-                    res.setHeader("Pragma", "no-cache");
+            writeHeaders(req, res, hopres);
+
+            byte[] content = hopres.getContent();
+            boolean gzip = false;
+            // leave alone responses the application encoded itself
+            if (getApplication().isCompressible(hopres) &&
+                    !res.containsHeader("Content-Encoding")) {
+                res.addHeader("Vary", "Accept-Encoding");
+                if (hopreq.acceptsGzip()) {
+                    content = hopres.getCompressedContent(null);
+                    res.setHeader("Content-Encoding", "gzip");
+                    gzip = true;
                 }
             }
+            setETag(res, hopres.getETag(), gzip);
 
-            if (hopres.getRealm() != null) {
-                res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\"");
-            }
-
-            if (hopres.getStatus() > 0) {
-                res.setStatus(hopres.getStatus());
-            }
-
-            // set last-modified header to now
-            long modified = hopres.getLastModified();
-            if (modified > -1) {
-                res.setDateHeader("Last-Modified", modified);
-            }
-
-            res.setContentLength(hopres.getContentLength());
+            res.setContentLength(content == null ? 0 : content.length);
             res.setContentType(hopres.getContentType());
 
             if (!"HEAD".equalsIgnoreCase(req.getMethod())) {
-                byte[] content = hopres.getContent();
                 if (content != null) {
                     try {
                         OutputStream out = res.getOutputStream();
@@ -374,13 +371,89 @@ public abstract class AbstractServletClient extends HttpServlet {
         }
     }
 
+    /**
+     * Set the ETag header of a response. Compressed responses get a distinct
+     * ETag as required for different encodings of the same resource, which
+     * is mapped back to the plain ETag when the client sends it back.
+     */
+    void setETag(HttpServletResponse res, String etag, boolean gzip) {
+        if (etag == null) {
+            return;
+        }
+        if (gzip && etag.endsWith("\"")) {
+            etag = etag.substring(0, etag.length() - 1) + RequestTrans.GZIP_ETAG_SUFFIX + "\"";
+        }
+        res.setHeader("ETag", etag);
+    }
+
+    /**
+     * Set the status, caching, authentication and last-modified headers
+     * of a response.
+     */
+    void writeHeaders(HttpServletRequest req, HttpServletResponse res,
+                      ResponseTrans hopres) {
+        if (!hopres.isCacheable() || !caching) {
+            // Disable caching of response.
+            if (isOneDotOne(req.getProtocol())) {
+                // for HTTP 1.1
+                res.setHeader("Cache-Control",
+                              "no-cache, no-store, must-revalidate, max-age=0");
+            } else {
+                // for HTTP 1.0
+                res.setDateHeader("Expires", System.currentTimeMillis() - 10000);
+                res.setHeader("Pragma", "no-cache");
+            }
+        }
+
+        if (hopres.getRealm() != null) {
+            res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\"");
+        }
+
+        if (hopres.getStatus() > 0) {
+            res.setStatus(hopres.getStatus());
+        }
+
+        // set last-modified header to now
+        long modified = hopres.getLastModified();
+        if (modified > -1) {
+            res.setDateHeader("Last-Modified", modified);
+        }
+    }
+
+    /**
+     * Add the cookies set by the application to the servlet response.
+     */
+    void addCookies(HttpServletResponse response, ResponseTrans restrans,
+                    String resCookieDomain) {
+        if (restrans.countCookies() > 0) {
+            CookieTrans[] resCookies = restrans.getCookies();
+
+            for (int i = 0; i < resCookies.length; i++)
+                try {
+                    Cookie c = resCookies[i].getCookie("/", resCookieDomain);
+
+                    response.addCookie(c);
+                } catch (Exception x) {
+                    getApplication().logEvent("Error adding cookie: " + x);
+                }
+        }
+    }
+
     void sendError(HttpServletResponse response, int code, String message)
             throws IOException {
+        sendError(response, code, message, -1);
+    }
+
+    void sendError(HttpServletResponse response, int code, String message, int retryAfter)
+            throws IOException {
         if (response.isCommitted()) {
             return;
         }
         response.reset();
         response.setStatus(code);
+        if (retryAfter > -1) {
+            response.setIntHeader("Retry-After", retryAfter);
+        }
         response.setContentType("text/html");
 
         if (!"true".equalsIgnoreCase(getApplication().getProperty("suppressErrorPage"))) {
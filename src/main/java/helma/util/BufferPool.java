@@ -0,0 +1,98 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of string buffers grouped by capacity, used to recycle
+ * response buffers across requests. Each request evaluator owns one pool,
+ * so the pool is hardly ever contended, but it is safe to use from the
+ * servlet thread that closes a response.
+ *
+ * Buffers are put into the largest size class that fits their capacity,
+ * buffers that have grown beyond the maximum capacity are dropped so a
+ * single large response doesn't pin memory forever.
+ */
+public final class BufferPool {
+
+    // capacities of the size classes
+    private static final int[] SIZES = {64, 2048, 16384, 131072};
+
+    // buffers larger than this are not recycled
+    private static final int MAX_CAPACITY = 1024 * 1024;
+
+    private final ArrayDeque[] free;
+    private final int maxPerClass;
+
+    /**
+     * Create a buffer pool that keeps up to 4 buffers per size class.
+     */
+    public BufferPool() {
+        this(4);
+    }
+
+    /**
+     * Create a buffer pool.
+     *
+     * @param maxPerClass the maximum number of idle buffers per size class
+     */
+    public BufferPool(int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        free = new ArrayDeque[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            free[i] = new ArrayDeque();
+        }
+    }
+
+    /**
+     * Get an empty buffer with at least the given capacity.
+     *
+     * @param minCapacity the minimum capacity
+     * @return an empty string buffer
+     */
+    public synchronized StringBuffer get(int minCapacity) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (SIZES[i] >= minCapacity) {
+                StringBuffer buf = (StringBuffer) free[i].pollFirst();
+                return buf != null ? buf : new StringBuffer(SIZES[i]);
+            }
+        }
+        return new StringBuffer(minCapacity);
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use the buffer afterwards.
+     *
+     * @param buf the buffer
+     */
+    public synchronized void release(StringBuffer buf) {
+        int capacity = buf.capacity();
+        if (capacity > MAX_CAPACITY) {
+            return;
+        }
+        for (int i = SIZES.length - 1; i >= 0; i--) {
+            if (SIZES[i] <= capacity) {
+                if (free[i].size() < maxPerClass) {
+                    buf.setLength(0);
+                    free[i].addFirst(buf);
+                }
+                return;
+            }
+        }
+    }
+}
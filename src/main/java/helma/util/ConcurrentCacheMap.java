@@ -0,0 +1,354 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import helma.framework.core.Application;
+import helma.objectmodel.ObjectCache;
+
+/**
+ * A lock-striped variant of {@link CacheMap} for use as node cache in
+ * applications with many concurrent request evaluators. It can be enabled
+ * by setting <code>cacheimpl = helma.util.ConcurrentCacheMap</code> in
+ * app.properties.
+ *
+ * <p>The cache is split into a fixed number of segments selected by key hash.
+ * Each segment uses the same two-generation rotation scheme as CacheMap,
+ * which gives an approximate least-recently-used eviction policy. Lookups of
+ * recently used entries are lock-free; writes, promotions of entries from
+ * the old to the new generation, and table rotation only lock the affected
+ * segment.</p>
+ *
+ * <p>Note that unlike CacheMap, methods are not synchronized on the cache
+ * instance. Code that needs several cache operations to be atomic must
+ * still synchronize on the cache object itself.</p>
+ */
+public class ConcurrentCacheMap implements ObjectCache {
+
+    // the segments, selected by the spread hash code of the key
+    private final Segment[] segments;
+
+    // mask used to select a segment
+    private final int segmentMask;
+
+    // total rotation threshold, i.e. half the cache capacity
+    private volatile int threshold;
+
+    // statistics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+
+    // the application to output messages to
+    private Application app = null;
+
+    /**
+     * Zero argument constructor. Creates a ConcurrentCacheMap with capacity
+     * of 1000 and a number of segments derived from the number of available
+     * processors.
+     */
+    public ConcurrentCacheMap() {
+        this(1000, defaultSegmentCount());
+    }
+
+    /**
+     * Creates a ConcurrentCacheMap with the given capacity and the default
+     * number of segments.
+     *
+     * @param capacity the maximum number of entries
+     */
+    public ConcurrentCacheMap(int capacity) {
+        this(capacity, defaultSegmentCount());
+    }
+
+    /**
+     * Creates a ConcurrentCacheMap with the given capacity and number of segments.
+     *
+     * @param capacity the maximum number of entries
+     * @param segmentCount the number of segments, rounded up to the next power of two
+     * @exception IllegalArgumentException if capacity or segment count are not positive
+     */
+    public ConcurrentCacheMap(int capacity, int segmentCount) {
+        if (capacity <= 0 || segmentCount <= 0)
+            throw new IllegalArgumentException();
+        int size = 1;
+        while (size < segmentCount) {
+            size <<= 1;
+        }
+        segments = new Segment[size];
+        segmentMask = size - 1;
+        threshold = capacity / 2;
+        int segmentThreshold = segmentThreshold(threshold);
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment(segmentThreshold);
+        }
+    }
+
+    /**
+     * Returns the default number of segments, which is four times the number
+     * of available processors, but at most 256.
+     */
+    private static int defaultSegmentCount() {
+        return Math.min(256, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Returns the rotation threshold per segment for the given total threshold.
+     * We never go below a minimum, otherwise small caches with many segments
+     * would rotate on every other insertion.
+     */
+    private int segmentThreshold(int totalThreshold) {
+        return Math.max(8, totalThreshold / segments.length);
+    }
+
+    /**
+     * Return the segment responsible for the given key.
+     */
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        // spread higher bits downwards, as in java.util.HashMap
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * Set the capacity of the cache.
+     *
+     * @param capacity the maximum number of entries
+     */
+    public void setCapacity(int capacity) {
+        int newThreshold = capacity / 2;
+        if (newThreshold != threshold) {
+            if (app != null)
+                app.logEvent("Setting cache capacity to " + capacity);
+            threshold = newThreshold;
+            int segmentThreshold = segmentThreshold(newThreshold);
+            for (int i = 0; i < segments.length; i++) {
+                segments[i].setThreshold(segmentThreshold);
+            }
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public int containsKeys(Object[] keys) {
+        int notfound = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (get(keys[i]) != null)
+                keys[i] = null;
+            else
+                notfound++;
+        }
+        return notfound;
+    }
+
+    public Object get(Object key) {
+        Object value = segmentFor(key).get(key);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    public Object put(Object key, Object value) {
+        return segmentFor(key).put(key, value);
+    }
+
+    public Object remove(Object key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public boolean clear() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].clear();
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            size += segments[i].size();
+        }
+        return size;
+    }
+
+    /**
+     * Called when the application using this cache is stopped. We
+     * simply clear out our cache contents.
+     */
+    public void shutdown() {
+        clear();
+    }
+
+    /**
+     * Set the application to use for debug and profiling output
+     */
+    public void init(Application app) {
+        this.app = app;
+        if (app != null) {
+            updateProperties(app.getProperties());
+        }
+    }
+
+    /**
+     * The app properties have been modified, reload settings
+     */
+    public void updateProperties(Properties props) {
+        try {
+            int cacheSize = Integer.parseInt(props.getProperty("cachesize", "1000"));
+            setCapacity(cacheSize);
+        } catch (Exception x) {
+            String message = "Invalid cachesize setting: " + props.getProperty("cachesize");
+            if (app != null) {
+                app.logError(message);
+            } else {
+                System.err.println(message);
+            }
+        }
+    }
+
+    public Object[] getCachedObjects() {
+        ArrayList keys = new ArrayList(size());
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].collectKeys(keys);
+        }
+        return keys.toArray();
+    }
+
+    public Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("size", size());
+        stats.put("threshold", threshold);
+        stats.put("segments", segments.length);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("rotations", rotations.sum());
+        return stats;
+    }
+
+    public String toString() {
+        return "ConcurrentCacheMap[size=" + size() + ", segments=" + segments.length + "]";
+    }
+
+    /**
+     * A single cache segment. The new table is read without locking,
+     * all modifications are done while holding the segment's monitor.
+     */
+    final class Segment {
+
+        private volatile Map oldTable;
+        private volatile Map newTable;
+        private int threshold;
+
+        Segment(int threshold) {
+            this.threshold = threshold;
+            oldTable = createTable();
+            newTable = createTable();
+        }
+
+        private Map createTable() {
+            return new ConcurrentHashMap(threshold * 4 / 3 + 2);
+        }
+
+        synchronized void setThreshold(int threshold) {
+            this.threshold = threshold;
+            if (newTable.size() > threshold) {
+                rotate();
+            }
+        }
+
+        Object get(Object key) {
+            Object value = newTable.get(key);
+            if (value != null || oldTable.isEmpty()) {
+                return value;
+            }
+            synchronized (this) {
+                // check again, another thread may have promoted the entry
+                value = newTable.get(key);
+                if (value == null) {
+                    value = oldTable.remove(key);
+                    if (value != null) {
+                        // Move object from old table to new table.
+                        insert(key, value);
+                    }
+                }
+                return value;
+            }
+        }
+
+        synchronized Object put(Object key, Object value) {
+            Object oldValue = newTable.put(key, value);
+            if (oldValue != null)
+                return oldValue;
+            oldValue = oldTable.remove(key);
+            checkRotation();
+            return oldValue;
+        }
+
+        synchronized Object remove(Object key) {
+            Object oldValue = newTable.remove(key);
+            if (oldValue == null)
+                oldValue = oldTable.remove(key);
+            return oldValue;
+        }
+
+        synchronized void clear() {
+            newTable.clear();
+            oldTable.clear();
+        }
+
+        int size() {
+            return newTable.size() + oldTable.size();
+        }
+
+        synchronized void collectKeys(ArrayList keys) {
+            keys.addAll(newTable.keySet());
+            keys.addAll(oldTable.keySet());
+        }
+
+        // must be called while holding the segment's monitor
+        private void insert(Object key, Object value) {
+            newTable.put(key, value);
+            checkRotation();
+        }
+
+        // must be called while holding the segment's monitor
+        private void checkRotation() {
+            if (newTable.size() >= threshold) {
+                rotate();
+            }
+        }
+
+        // must be called while holding the segment's monitor
+        private void rotate() {
+            oldTable = newTable;
+            newTable = createTable();
+            rotations.increment();
+        }
+    }
+}
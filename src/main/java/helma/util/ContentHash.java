@@ -0,0 +1,221 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A fast, non-cryptographic 128 bit hash used to generate ETags for response
+ * content. The hash is a streaming variant of MurmurHash3 (x64, 128 bit) that
+ * works on 16 bit units, so text can be hashed directly from its chars without
+ * encoding it first. Bytes are hashed as one unit each.
+ *
+ * Instances are not thread safe and are meant to be reused through reset(),
+ * e.g. one per request evaluator.
+ */
+public final class ContentHash {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    // number of chars copied out of a string buffer at a time
+    private static final int CHUNK_SIZE = 4096;
+
+    private long h1, h2;
+
+    // the partial block of up to 8 units and the number of units in it
+    private long k1, k2;
+    private int pending;
+
+    // number of units hashed in full blocks
+    private long length;
+
+    // scratch space for hashing string buffers
+    private char[] chunk;
+
+    /**
+     * Create a new content hash.
+     */
+    public ContentHash() {
+        reset();
+    }
+
+    /**
+     * Reset the hash to its initial state.
+     */
+    public void reset() {
+        h1 = h2 = 0;
+        k1 = k2 = 0;
+        pending = 0;
+        length = 0;
+    }
+
+    /**
+     * Add the chars of a string buffer to the hash.
+     *
+     * @param buf the buffer
+     */
+    public void update(StringBuffer buf) {
+        if (chunk == null) {
+            chunk = new char[CHUNK_SIZE];
+        }
+        int size = buf.length();
+        for (int pos = 0; pos < size; pos += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, size - pos);
+            buf.getChars(pos, pos + n, chunk, 0);
+            update(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Add the chars of a string to the hash.
+     *
+     * @param str the string
+     */
+    public void update(String str) {
+        update(str.toCharArray(), 0, str.length());
+    }
+
+    /**
+     * Add a range of chars to the hash.
+     *
+     * @param chars the chars
+     * @param offset the offset of the first char
+     * @param len the number of chars
+     */
+    public void update(char[] chars, int offset, int len) {
+        int end = offset + len;
+        int i = offset;
+        // complete a partial block
+        while (pending > 0 && i < end) {
+            unit(chars[i++]);
+        }
+        // hash full blocks directly
+        for (; i + 8 <= end; i += 8) {
+            block((long) chars[i] | (long) chars[i + 1] << 16 |
+                  (long) chars[i + 2] << 32 | (long) chars[i + 3] << 48,
+                  (long) chars[i + 4] | (long) chars[i + 5] << 16 |
+                  (long) chars[i + 6] << 32 | (long) chars[i + 7] << 48);
+        }
+        while (i < end) {
+            unit(chars[i++]);
+        }
+    }
+
+    /**
+     * Add a range of bytes to the hash.
+     *
+     * @param bytes the bytes
+     * @param offset the offset of the first byte
+     * @param len the number of bytes
+     */
+    public void update(byte[] bytes, int offset, int len) {
+        int end = offset + len;
+        for (int i = offset; i < end; i++) {
+            unit(bytes[i] & 0xff);
+        }
+    }
+
+    /**
+     * Complete the hash computation and return the hash as a quoted base64
+     * string suitable as ETag. The hash is reset afterwards.
+     *
+     * @return the ETag
+     */
+    public String toETag() {
+        byte[] hash = digest();
+        return "\"" + new String(Base64.encodeBase64(hash)) + "\"";
+    }
+
+    /**
+     * Complete the hash computation and return the 16 bytes of the hash.
+     * The hash is reset afterwards.
+     *
+     * @return the hash
+     */
+    public byte[] digest() {
+        if (pending > 0) {
+            h1 ^= mixK1(k1);
+            h2 ^= mixK2(k2);
+        }
+        long len = (length + pending) * 2;
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] hash = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            hash[i] = (byte) (h1 >>> (i * 8));
+            hash[i + 8] = (byte) (h2 >>> (i * 8));
+        }
+        reset();
+        return hash;
+    }
+
+    private void unit(int u) {
+        if (pending < 4) {
+            k1 |= (long) u << (pending * 16);
+        } else {
+            k2 |= (long) u << ((pending - 4) * 16);
+        }
+        if (++pending == 8) {
+            block(k1, k2);
+            k1 = k2 = 0;
+            pending = 0;
+        }
+    }
+
+    private void block(long b1, long b2) {
+        h1 ^= mixK1(b1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(b2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+
+        length += 8;
+    }
+
+    private static long mixK1(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    private static long mixK2(long k) {
+        k *= C2;
+        k = Long.rotateLeft(k, 33);
+        return k * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb93e53ae2cd3L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -19,6 +19,12 @@ package helma.util;
 import org.apache.commons.logging.Log;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.text.*;
 import java.util.*;
 import java.util.zip.GZIPOutputStream;
@@ -37,6 +43,10 @@ public class FileLogger extends Logger implements Log {
     private File logdir;
     private File logfile;
 
+    // channel and encoder used to write batches of log entries
+    private FileChannel channel;
+    private CharsetEncoder encoder;
+
     // number format for log file rotation
     DecimalFormat nformat = new DecimalFormat("000");
     DateFormat aformat = new SimpleDateFormat("yyyy-MM-dd");
@@ -76,8 +86,12 @@ public class FileLogger extends Logger implements Log {
                 }
             }
             // create a new log file, appending to an existing file
-            writer = new PrintWriter(new FileWriter(logfile.getAbsolutePath(), true),
-                                     false);
+            channel = new FileOutputStream(logfile.getAbsolutePath(), true).getChannel();
+            if (encoder == null) {
+                encoder = Charset.defaultCharset().newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
         } catch (IOException iox) {
             System.err.println("Error creating log " + name + ": " + iox);
         }
@@ -87,13 +101,13 @@ public class FileLogger extends Logger implements Log {
      * Actually closes the file writer of a log.
      */
     synchronized void closeFile() {
-        if (writer != null) {
+        if (channel != null) {
             try {
-                writer.close();
+                channel.close();
             } catch (Exception ignore) {
                 // ignore
             } finally {
-                writer = null;
+                channel = null;
             }
         }
     }
@@ -102,12 +116,33 @@ public class FileLogger extends Logger implements Log {
      * This is called by the runner thread to to make sure we have an open writer.
      */
     protected synchronized void ensureOpen() {
-        // open a new writer if writer is null or the log file has been deleted
-        if (writer == null || !logfile.exists()) {
+        // open a new channel if channel is null or the log file has been deleted
+        if (channel == null || !logfile.exists()) {
             openFile();
         }
     }
 
+    /**
+     * Write a batch of rendered log entries to the log file in one go.
+     * @param batch the rendered log entries
+     * @throws IOException if an i/o error occurred
+     */
+    protected synchronized void writeBatch(CharSequence batch) throws IOException {
+        if (channel == null) {
+            throw new IOException("Log file " + logfile + " is not open");
+        }
+        try {
+            ByteBuffer bytes = encoder.encode(CharBuffer.wrap(batch));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException iox) {
+            // reopen the file on the next attempt
+            closeFile();
+            throw iox;
+        }
+    }
+
     /**
      *  Rotate log files, closing the file writer and renaming the old
      *  log file. Returns the renamed log file for zipping, or null if
@@ -0,0 +1,140 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer for log entries. Any number of threads may
+ * add entries concurrently, while entries are taken out by one thread at a time,
+ * which is the logging thread or a thread shutting down logging.
+ *
+ * Each slot carries a sequence number that tells producers whether the slot is
+ * free for the current lap and the consumer whether it has been filled, so
+ * neither side ever has to take a lock.
+ */
+final class LogQueue {
+
+    private final int mask;
+    private final AtomicReferenceArray slots;
+    private final AtomicLongArray sequence;
+
+    // next position to add to, shared by all producers
+    private final AtomicLong tail = new AtomicLong();
+
+    // next position to take from, only written by the consumer
+    private volatile long head = 0;
+
+    /**
+     * Create a new log queue.
+     *
+     * @param capacity the minimum capacity, rounded up to the next power of two
+     */
+    LogQueue(int capacity) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        slots = new AtomicReferenceArray(size);
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    /**
+     * Add an entry to the queue.
+     *
+     * @param entry the entry
+     * @return true if the entry was added, false if the queue is full
+     */
+    boolean offer(Object entry) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequence.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(index, entry);
+                    // publish the entry to the consumer
+                    sequence.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the slot still holds an entry from the previous lap
+                return false;
+            } else {
+                // another producer got this slot first
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Take the oldest entry from the queue. Must not be called by more than
+     * one thread at a time.
+     *
+     * @return the oldest entry, or null if the queue is empty
+     */
+    Object poll() {
+        long pos = head;
+        int index = (int) pos & mask;
+        if (sequence.get(index) != pos + 1) {
+            // empty, or the producer hasn't published its entry yet
+            return null;
+        }
+        Object entry = slots.get(index);
+        slots.lazySet(index, null);
+        // hand the slot back to producers for the next lap
+        sequence.set(index, pos + mask + 1);
+        head = pos + 1;
+        return entry;
+    }
+
+    /**
+     * Remove all entries from the queue. Must not be called by more than
+     * one thread at a time.
+     *
+     * @return the number of entries removed
+     */
+    int clear() {
+        int count = 0;
+        while (poll() != null) {
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the approximate number of entries in the queue.
+     */
+    int size() {
+        long size = tail.get() - head;
+        return size < 0 ? 0 : (int) Math.min(size, mask + 1);
+    }
+
+    /**
+     * Returns true if the queue is empty.
+     */
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -21,15 +21,43 @@ import org.apache.commons.logging.Log;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A simple logger that writes to a PrintStream such as System.out.
+ *
+ * Log entries are put into a bounded, lock-free queue by the logging threads
+ * and written out in batches by the logging thread managed by {@link Logging}.
+ * The queue size is set through the <code>helma.logqueuesize</code> system
+ * property (default 2048). What happens when the queue is full is determined
+ * by the <code>helma.logoverflow</code> system property:
+ * <ul>
+ * <li><code>drop</code> - discard the entry (default)</li>
+ * <li><code>count</code> - discard the entry, and write the number of
+ *     discarded entries to the log once the queue has been drained</li>
+ * <li><code>block</code> - wait until the logging thread has made room</li>
+ * </ul>
  */
 public class Logger implements Log {
 
-    // buffer for log items; create a synchronized list for log entries since
-    // different threads may attempt to modify the list at the same time
-    List entries = Collections.synchronizedList(new LinkedList());
+    public final static int OVERFLOW_DROP = 0;
+    public final static int OVERFLOW_COUNT = 1;
+    public final static int OVERFLOW_BLOCK = 2;
+
+    // maximum number of chars collected before a batch is written out
+    final static int MAX_BATCH_SIZE = 65536;
+
+    final static String lineSeparator = System.getProperty("line.separator");
+
+    // queue of log items; different threads may add entries at the same time
+    LogQueue entries;
+
+    // what to do with new entries when the queue is full
+    int overflow = OVERFLOW_DROP;
+
+    // number of entries discarded since the last report
+    final AtomicLong dropped = new AtomicLong();
 
     // Writer for log output
     PrintWriter writer;
@@ -38,9 +66,8 @@ public class Logger implements Log {
     String canonicalName;
 
     // fields for date rendering and caching
-    static DateFormat dformat = new SimpleDateFormat("[yyyy/MM/dd HH:mm:ss] ");
-    static long dateLastRendered;
-    static String dateCache;
+    static final DateFormat dformat = new SimpleDateFormat("[yyyy/MM/dd HH:mm:ss] ");
+    static volatile RenderedDate dateCache = new RenderedDate(-1, null);
 
     public final static int TRACE = 1;
     public final static int DEBUG = 2;
@@ -76,9 +103,23 @@ public class Logger implements Log {
     }
 
     /**
-     * Get loglevel from System properties
+     * Get loglevel and queue settings from System properties
      */
      private void init() {
+        int queueSize = 2048;
+        try {
+            queueSize = Integer.parseInt(System.getProperty("helma.logqueuesize", "2048"));
+        } catch (NumberFormatException nfe) {
+            // use default
+        }
+        entries = new LogQueue(queueSize);
+
+        String policy = System.getProperty("helma.logoverflow");
+        if ("count".equalsIgnoreCase(policy))
+            overflow = OVERFLOW_COUNT;
+        else if ("block".equalsIgnoreCase(policy))
+            overflow = OVERFLOW_BLOCK;
+
         String level = System.getProperty("helma.loglevel");
         if ("trace".equalsIgnoreCase(level))
             logLevel = TRACE;
@@ -110,6 +151,31 @@ public class Logger implements Log {
         this.logLevel = logLevel;
     }
 
+    /**
+     * Get the policy for entries logged while the queue is full.
+     * @return one of OVERFLOW_DROP, OVERFLOW_COUNT or OVERFLOW_BLOCK
+     */
+    public int getOverflowPolicy() {
+        return overflow;
+    }
+
+    /**
+     * Set the policy for entries logged while the queue is full.
+     * @param overflow one of OVERFLOW_DROP, OVERFLOW_COUNT or OVERFLOW_BLOCK
+     */
+    public void setOverflowPolicy(int overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * Get the number of log entries discarded because the queue was full
+     * and not yet reported in the log.
+     * @return the number of discarded entries
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
     /**
      * Return a string representation of this Logger
      */
@@ -134,18 +200,26 @@ public class Logger implements Log {
      * @param exception an exception, or null
      */
     protected void log(String level, Object msg, Throwable exception) {
-        lastMessage = System.currentTimeMillis();
-        // it's enough to render the date every second
-        if ((lastMessage - 1000) > dateLastRendered) {
-            renderDate();
-        }
-        // add a safety net so we don't grow indefinitely even if writer thread
-        // has gone. the 2000 entries threshold is somewhat arbitrary. 
-        if (entries.size() < 2000) {
-            String message = msg == null ? "null" : msg.toString();
-            Thread thread = Thread.currentThread();
-            String threadId = "[" + thread.getName() + "] ";
-            entries.add(new Entry(dateCache, level, message, threadId, exception));
+        long now = System.currentTimeMillis();
+        lastMessage = now;
+        String message = msg == null ? "null" : msg.toString();
+        Thread thread = Thread.currentThread();
+        String threadId = "[" + thread.getName() + "] ";
+        Entry entry = new Entry(renderDate(now), level, message, threadId, exception);
+
+        // the queue is bounded so we don't grow indefinitely even if the
+        // writer thread has gone.
+        if (!entries.offer(entry)) {
+            if (overflow == OVERFLOW_BLOCK) {
+                while (Logging.isRunning()) {
+                    Logging.wakeup();
+                    LockSupport.parkNanos(1000000L);
+                    if (entries.offer(entry)) {
+                        return;
+                    }
+                }
+            }
+            dropped.incrementAndGet();
         }
     }
 
@@ -161,11 +235,11 @@ public class Logger implements Log {
             // make sure we have a valid writer
             ensureOpen();
 
+            StringBuffer batch = new StringBuffer(4096);
             String color;
-            int l = entries.size();
+            Entry entry;
 
-            for (int i = 0; i < l; i++) {
-                Entry entry = (Entry) entries.remove(0);
+            while ((entry = (Entry) entries.poll()) != null) {
 
                 if (entry.level == "[TRACE] " || entry.level == "[DEBUG] ") {
                     color = "\u001B[0m";
@@ -181,18 +255,38 @@ public class Logger implements Log {
                     color = "\u001B[32m";
                 }
 
-                writer.print(color);
-                writer.print(entry.date);
-                writer.print(entry.level);
-                writer.print(entry.threadId);
-                writer.println(entry.message);
+                batch.append(color)
+                     .append(entry.date)
+                     .append(entry.level)
+                     .append(entry.threadId)
+                     .append(entry.message)
+                     .append(lineSeparator);
 
                 if (entry.exception != null)
-                    entry.exception.printStackTrace(writer);
+                    batch.append(getStackTrace(entry.exception));
 
-                writer.print("\033[0m");
+                batch.append("\033[0m");
+
+                if (batch.length() >= MAX_BATCH_SIZE) {
+                    writeBatch(batch);
+                    batch.setLength(0);
+                }
+            }
+
+            // report entries discarded due to a full queue
+            long count = overflow == OVERFLOW_COUNT ? dropped.getAndSet(0) : 0;
+            if (count > 0) {
+                batch.append("\u001B[0;33m")
+                     .append(renderDate(System.currentTimeMillis()))
+                     .append("[WARN] Discarded ").append(count)
+                     .append(" log entries because the log queue was full")
+                     .append(lineSeparator)
+                     .append("\033[0m");
+            }
+
+            if (batch.length() > 0) {
+                writeBatch(batch);
             }
-            writer.flush();
 
         } catch (Exception x) {
             int size = entries.size();
@@ -208,6 +302,16 @@ public class Logger implements Log {
         }
     }
 
+    /**
+     * Write a batch of rendered log entries. This is called by the runner thread.
+     * @param batch the rendered log entries
+     * @throws IOException if an i/o error occurred
+     */
+    protected void writeBatch(CharSequence batch) throws IOException {
+        writer.write(batch.toString());
+        writer.flush();
+    }
+
     /**
      * This is called by the runner thread to to make sure we have an open writer.
      */
@@ -215,11 +319,24 @@ public class Logger implements Log {
         // nothing to do for console logger
     }
 
-    // Pre-render the date to use for log messages. Called about once a second.
-    protected static synchronized void renderDate() {
-        Date date = new Date();
-        dateCache = dformat.format(date);
-        dateLastRendered = date.getTime();
+    /**
+     * Get the rendered date for a log message. The date has a resolution of one
+     * second, so it is only rendered when the first message within a second is logged.
+     * @param now the current time in milliseconds
+     * @return the rendered date
+     */
+    protected static String renderDate(long now) {
+        long second = now / 1000;
+        RenderedDate date = dateCache;
+        if (date.second != second) {
+            String text;
+            synchronized (dformat) {
+                text = dformat.format(new Date(second * 1000));
+            }
+            date = new RenderedDate(second, text);
+            dateCache = date;
+        }
+        return date.text;
     }
 
     // methods to implement org.apache.commons.logging.Log interface
@@ -330,6 +447,16 @@ public class Logger implements Log {
         }
     }
 
+    static final class RenderedDate {
+        final long second;
+        final String text;
+
+        RenderedDate(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
     /**
      * return a "quiet" version of this log that routes debug() output to trace()
      * @return a possibly less verbose version of this log.
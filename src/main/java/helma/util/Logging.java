@@ -32,7 +32,7 @@ import java.util.*;
 public class Logging extends LogFactory {
 
     // we use one static thread for all Loggers
-    static Runner runner;
+    static volatile Runner runner;
 
     // the list of active loggers
     static ArrayList loggers = new ArrayList();
@@ -147,6 +147,28 @@ public class Logging extends LogFactory {
         }
     }
 
+    /**
+     * Check whether the logger thread is active.
+     * @return true if the logger thread is running
+     */
+    static boolean isRunning() {
+        Runner r = runner;
+        return r != null && r.isAlive();
+    }
+
+    /**
+     * Wake up the logger thread so it writes out queued log entries
+     * without waiting for its next regular pass.
+     */
+    static void wakeup() {
+        Runner r = runner;
+        if (r != null) {
+            synchronized (r) {
+                r.notifyAll();
+            }
+        }
+    }
+
     /**
      * Shut down logging, stopping the logger thread and closing all logs.
      */
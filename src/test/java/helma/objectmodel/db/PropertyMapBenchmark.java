@@ -0,0 +1,79 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.objectmodel.IProperty;
+
+import java.util.Date;
+
+/**
+ * Prints the heap used by the property maps of a number of nodes (default
+ * 500000) as read from the database, and after all their properties have
+ * been accessed, which is what every map used to hold.
+ */
+public class PropertyMapBenchmark {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        String[] names = {"name", "title", "body", "creator", "created",
+                          "modified", "status", "hits", "score", "online"};
+        PropertyMap.Layout layout = new PropertyMap.Layout(names);
+        // values are shared, so only the cost of the table itself is measured
+        String str = "value";
+        Date date = new Date();
+        Long hits = Long.valueOf(1000);
+        Double score = Double.valueOf(0.5);
+        NodeHandle creator = new NodeHandle(new DbKey(null, "1"));
+
+        PropertyMap[] maps = new PropertyMap[count];
+        long base = usedMemory();
+        for (int i = 0; i < count; i++) {
+            PropertyMap map = new PropertyMap(layout, null);
+            map.putValue("name", str, IProperty.STRING);
+            map.putValue("title", str, IProperty.STRING);
+            map.putValue("body", str, IProperty.STRING);
+            map.putValue("creator", creator, IProperty.NODE);
+            map.putValue("created", date, IProperty.DATE);
+            map.putValue("modified", date, IProperty.DATE);
+            map.putValue("status", str, IProperty.STRING);
+            map.putValue("hits", hits, IProperty.INTEGER);
+            map.putValue("score", score, IProperty.FLOAT);
+            map.putValue("online", Boolean.TRUE, IProperty.BOOLEAN);
+            maps[i] = map;
+        }
+        long values = usedMemory() - base;
+        for (int i = 0; i < count; i++) {
+            maps[i].toArray();
+        }
+        long properties = usedMemory() - base;
+
+        // uses the maps, so they are still reachable when memory is measured
+        System.out.println(maps.length + " nodes with " + names.length + " properties");
+        System.out.println("values only:  " + (values / 1024 / 1024) + " MB, " +
+                           (values / count) + " bytes per node");
+        System.out.println("all accessed: " + (properties / 1024 / 1024) + " MB, " +
+                           (properties / count) + " bytes per node");
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}